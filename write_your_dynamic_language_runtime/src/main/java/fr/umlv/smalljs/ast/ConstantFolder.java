@@ -0,0 +1,190 @@
+package fr.umlv.smalljs.ast;
+
+import fr.umlv.smalljs.ast.Expr.Block;
+import fr.umlv.smalljs.ast.Expr.FieldAccess;
+import fr.umlv.smalljs.ast.Expr.FieldAssignment;
+import fr.umlv.smalljs.ast.Expr.Folded;
+import fr.umlv.smalljs.ast.Expr.Fun;
+import fr.umlv.smalljs.ast.Expr.FunCall;
+import fr.umlv.smalljs.ast.Expr.If;
+import fr.umlv.smalljs.ast.Expr.Literal;
+import fr.umlv.smalljs.ast.Expr.LocalVarAccess;
+import fr.umlv.smalljs.ast.Expr.LocalVarAssignment;
+import fr.umlv.smalljs.ast.Expr.MethodCall;
+import fr.umlv.smalljs.ast.Expr.New;
+import fr.umlv.smalljs.ast.Expr.Return;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Folds the calls of the operators on constants and removes the dead branch of an if
+ * whose condition is a literal, the pass is run on the body of a function before the code generation.
+ *
+ * The operators are globals that can be redefined, so a folded call is replaced by a {@link Folded}
+ * that keeps the call, the backend uses the value while the operators are the ones used to compute it
+ * and calls them again otherwise. For the same reason, an if whose condition is a folded call is kept,
+ * the backend jumps to its live branch while the operators are unchanged.
+ * The functions declared in the body are not folded, they are folded when their code is generated.
+ */
+public final class ConstantFolder {
+  /**
+   * The names of the operators created by the {@link ASTBuilder}.
+   */
+  public static final Set<String> OPERATORS = Set.of("+", "-", "*", "/", "%", "==", "!=", "<", "<=", ">", ">=");
+
+  private ConstantFolder() {
+    throw new AssertionError();
+  }
+
+  /**
+   * The semantics of the builtin operators of a backend.
+   */
+  public interface Builtins {
+    /**
+     * Computes an operator on two constants.
+     * @param name the name of the operator, one of {@link #OPERATORS}.
+     * @return the result or null if the operator can not be computed when the code is generated.
+     */
+    Object apply(String name, Object left, Object right);
+
+    /**
+     * Returns true if a constant used as the condition of an if selects the true branch.
+     */
+    boolean isTrue(Object constant);
+  }
+
+  /**
+   * Folds the constants of a block.
+   * @param block the body of a function.
+   * @param builtins the semantics of the builtin operators.
+   * @return a new block.
+   */
+  public static Block fold(Block block, Builtins builtins) {
+    return (Block) VISITOR.visit(block, builtins);
+  }
+
+  /**
+   * Returns the names of the operators called by a folded call.
+   */
+  public static Set<String> operators(Folded folded) {
+    var operators = new LinkedHashSet<String>();
+    collectOperators(folded.funCall(), operators);
+    return operators;
+  }
+
+  /**
+   * Returns the call of a folded call with the folded arguments replaced by their calls.
+   */
+  public static FunCall unfold(Folded folded) {
+    var funCall = folded.funCall();
+    var args = funCall.args().stream()
+        .map(arg -> arg instanceof Folded ? unfold((Folded) arg) : arg)
+        .collect(toList());
+    return new FunCall(funCall.qualifier(), args, funCall.lineNumber());
+  }
+
+  private static void collectOperators(FunCall funCall, Set<String> operators) {
+    operators.add(((LocalVarAccess) funCall.qualifier()).name());
+    for (var arg : funCall.args()) {
+      if (arg instanceof Folded) {
+        collectOperators(((Folded) arg).funCall(), operators);
+      }
+    }
+  }
+
+  private static Expr fold(Expr expr, Builtins builtins) {
+    return VISITOR.visit(expr, builtins);
+  }
+
+  private static List<Expr> fold(List<Expr> exprs, Builtins builtins) {
+    return exprs.stream().map(expr -> fold(expr, builtins)).collect(toList());
+  }
+
+  private static Block foldBlock(Block block, Builtins builtins) {
+    return new Block(fold(block.instrs(), builtins), block.lineNumber());
+  }
+
+  private static Object constant(Expr expr) {
+    if (expr instanceof Literal<?>) {
+      return ((Literal<?>) expr).value();
+    }
+    if (expr instanceof Folded) {
+      return ((Folded) expr).value();
+    }
+    return null;
+  }
+
+  // true if a block declares a local variable, so it can not be removed
+  private static boolean declaresVariables(Block block) {
+    for (var instr : block.instrs()) {
+      if (instr instanceof LocalVarAssignment && ((LocalVarAssignment) instr).declaration()) {
+        return true;
+      }
+      if (instr instanceof Block && declaresVariables((Block) instr)) {
+        return true;
+      }
+      if (instr instanceof If && (declaresVariables(((If) instr).trueBlock()) || declaresVariables(((If) instr).falseBlock()))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static final Visitor<Builtins, Expr> VISITOR = new Visitor<Builtins, Expr>()
+    .when(Block.class, ConstantFolder::foldBlock)
+    .when(Literal.class, (literal, builtins) -> literal)
+    .when(Folded.class, (folded, builtins) -> folded)
+    .when(FunCall.class, (funCall, builtins) -> {
+      var qualifier = fold(funCall.qualifier(), builtins);
+      var args = fold(funCall.args(), builtins);
+      var newFunCall = new FunCall(qualifier, args, funCall.lineNumber());
+      if (qualifier instanceof LocalVarAccess && OPERATORS.contains(((LocalVarAccess) qualifier).name()) && args.size() == 2) {
+        var left = constant(args.get(0));
+        var right = constant(args.get(1));
+        if (left != null && right != null) {
+          var value = builtins.apply(((LocalVarAccess) qualifier).name(), left, right);
+          if (value != null) {
+            return new Folded(newFunCall, value, funCall.lineNumber());
+          }
+        }
+      }
+      return newFunCall;
+    })
+    .when(LocalVarAssignment.class, (localVarAssignment, builtins) ->
+      new LocalVarAssignment(localVarAssignment.name(), fold(localVarAssignment.expr(), builtins),
+        localVarAssignment.declaration(), localVarAssignment.lineNumber()))
+    .when(LocalVarAccess.class, (localVarAccess, builtins) -> localVarAccess)
+    .when(Fun.class, (fun, builtins) -> fun)
+    .when(Return.class, (_return, builtins) -> new Return(fold(_return.expr(), builtins), _return.lineNumber()))
+    .when(If.class, (_if, builtins) -> {
+      var condition = fold(_if.condition(), builtins);
+      var trueBlock = foldBlock(_if.trueBlock(), builtins);
+      var falseBlock = foldBlock(_if.falseBlock(), builtins);
+      if (condition instanceof Literal<?>) {
+        var isTrue = builtins.isTrue(((Literal<?>) condition).value());
+        var deadBlock = isTrue ? falseBlock : trueBlock;
+        if (!declaresVariables(deadBlock)) {
+          return isTrue ? trueBlock : falseBlock;
+        }
+      }
+      return new If(condition, trueBlock, falseBlock, _if.lineNumber());
+    })
+    .when(New.class, (_new, builtins) -> {
+      var initMap = new LinkedHashMap<String, Expr>();
+      _new.initMap().forEach((key, init) -> initMap.put(key, fold(init, builtins)));
+      return new New(initMap, _new.lineNumber());
+    })
+    .when(FieldAccess.class, (fieldAccess, builtins) ->
+      new FieldAccess(fold(fieldAccess.receiver(), builtins), fieldAccess.name(), fieldAccess.lineNumber()))
+    .when(FieldAssignment.class, (fieldAssignment, builtins) ->
+      new FieldAssignment(fold(fieldAssignment.receiver(), builtins), fieldAssignment.name(),
+        fold(fieldAssignment.expr(), builtins), fieldAssignment.lineNumber()))
+    .when(MethodCall.class, (methodCall, builtins) ->
+      new MethodCall(fold(methodCall.receiver(), builtins), methodCall.name(), fold(methodCall.args(), builtins),
+        methodCall.lineNumber()));
+}
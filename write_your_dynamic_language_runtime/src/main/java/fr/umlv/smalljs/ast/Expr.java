@@ -58,6 +58,17 @@ public sealed interface Expr {
     }
   }
 
+  /**
+   * A call of an operator on constants and its value computed by the {@link ConstantFolder},
+   * the call is kept because the value is only valid while the operators are the builtin ones.
+   */
+  record Folded(FunCall funCall, Object value, int lineNumber) implements Expr {
+    public Folded {
+      requireNonNull(funCall);
+      requireNonNull(value);
+    }
+  }
+
   record Literal<T>(T value, int lineNumber) implements Expr {
     public Literal {
       requireNonNull(value);
@@ -6,6 +6,7 @@ import fr.umlv.smalljs.ast.Script;
 import fr.umlv.smalljs.ast.Visitor;
 import fr.umlv.smalljs.rt.Failure;
 import fr.umlv.smalljs.rt.JSObject;
+import fr.umlv.smalljs.rt.Tracer;
 
 import java.io.PrintStream;
 import java.util.Arrays;
@@ -122,7 +123,9 @@ public class ASTInterpreter {
     Block body = script.body();
     globalEnv.register("global", globalEnv);
     globalEnv.register("print", JSObject.newFunction("print", (self, receiver, args) -> {
-      System.err.println("print called with " + Arrays.toString(args));
+      if (Tracer.enabled(Tracer.CALLS, Tracer.DEBUG)) {
+        Tracer.trace(Tracer.CALLS, Tracer.DEBUG, "print called with " + Arrays.toString(args));
+      }
       outStream.println(Arrays.stream(args).map(Object::toString).collect(Collectors.joining(" ")));
       return UNDEFINED;
     }));
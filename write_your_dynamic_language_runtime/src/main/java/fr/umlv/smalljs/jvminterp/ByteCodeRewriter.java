@@ -4,11 +4,13 @@ import static java.lang.invoke.MethodType.genericMethodType;
 import static org.objectweb.asm.Opcodes.*;
 
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.invoke.CallSite;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodHandles.Lookup;
 import java.lang.invoke.MethodType;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import fr.umlv.smalljs.rt.Failure;
@@ -21,10 +23,12 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.tree.InvokeDynamicInsnNode;
 import org.objectweb.asm.util.CheckClassAdapter;
 
+import fr.umlv.smalljs.ast.ConstantFolder;
 import fr.umlv.smalljs.ast.Expr;
 import fr.umlv.smalljs.ast.Expr.Block;
 import fr.umlv.smalljs.ast.Expr.FieldAccess;
 import fr.umlv.smalljs.ast.Expr.FieldAssignment;
+import fr.umlv.smalljs.ast.Expr.Folded;
 import fr.umlv.smalljs.ast.Expr.Fun;
 import fr.umlv.smalljs.ast.Expr.FunCall;
 import fr.umlv.smalljs.ast.Expr.If;
@@ -37,12 +41,13 @@ import fr.umlv.smalljs.ast.Expr.New;
 import fr.umlv.smalljs.ast.Expr.Return;
 import fr.umlv.smalljs.ast.VoidVisitor;
 import fr.umlv.smalljs.rt.JSObject;
+import fr.umlv.smalljs.rt.Tracer;
 
 public class ByteCodeRewriter {
   private final VoidVisitor<JSObject> visitor;
 
-  private ByteCodeRewriter(MethodVisitor mv, FunDictionary dictionary) {
-    this.visitor = createVisitor(mv, dictionary);
+  private ByteCodeRewriter(MethodVisitor mv, FunDictionary dictionary, JSObject global) {
+    this.visitor = createVisitor(mv, dictionary, global);
   }
 
   public static JSObject createFunction(String name, List<String> parameters, Block body, JSObject global) {
@@ -53,6 +58,7 @@ public class ByteCodeRewriter {
       env.register(parameter, env.length());
     }
     var parameterCount = env.length();
+    body = ConstantFolder.fold(body, builtins(global));
     visitVariable(body, env);
     var localVariableCount = env.length();
 
@@ -72,7 +78,7 @@ public class ByteCodeRewriter {
     }
 
     var dictionary = new FunDictionary();
-    var rewriter = new ByteCodeRewriter(mv, dictionary);
+    var rewriter = new ByteCodeRewriter(mv, dictionary, global);
     rewriter.visitor.visit(body, env);
 
     mv.visitLdcInsn(new ConstantDynamic("undefined", "Ljava/lang/Object;", BSM_UNDEFINED));
@@ -81,7 +87,9 @@ public class ByteCodeRewriter {
     mv.visitEnd();
 
     var instrs = cv.toByteArray();
-    dumpBytecode(instrs);
+    if (Tracer.enabled(Tracer.CODEGEN, Tracer.DEBUG)) {
+      dumpBytecode(instrs);
+    }
 
     var functionClassLoader = new FunClassLoader(dictionary, global);
     var type = functionClassLoader.createClass("script", instrs);
@@ -97,9 +105,38 @@ public class ByteCodeRewriter {
     return JSObject.newFunction(name, mh);
   }
 
+  // only the builtin operators of the global environment when the code is generated are computed,
+  // a constant condition is true if it is not false like for the truth of an if
+  private static ConstantFolder.Builtins builtins(JSObject global) {
+    return new ConstantFolder.Builtins() {
+      @Override
+      public Object apply(String name, Object left, Object right) {
+        var operator = global.lookup(name);
+        if (!JVMInterpreter.isBuiltinOperator(name, operator)) {
+          return null;
+        }
+        try {
+          var value = ((JSObject) operator).invoke(JSObject.UNDEFINED, new Object[] { left, right });
+          // only the values that can be loaded as constants
+          return (value instanceof Integer || value instanceof String || value instanceof Boolean) ? value : null;
+        } catch (RuntimeException e) {
+          // computed at runtime, where the error is reported
+          return null;
+        }
+      }
+
+      @Override
+      public boolean isTrue(Object constant) {
+        return constant != Boolean.FALSE;
+      }
+    };
+  }
+
   private static void dumpBytecode(byte[] array) {
     ClassReader reader = new ClassReader(array);
-    CheckClassAdapter.verify(reader, true, new PrintWriter(System.err));
+    var writer = new StringWriter();
+    CheckClassAdapter.verify(reader, true, new PrintWriter(writer));
+    Tracer.trace(Tracer.CODEGEN, Tracer.DEBUG, writer.toString());
   }
 
   private static void visitVariable(Expr expr, JSObject env) {
@@ -119,6 +156,9 @@ public class ByteCodeRewriter {
       .when(FunCall.class, (funCall, env) -> {
         // do nothing
       })
+      .when(Folded.class, (folded, env) -> {
+        // do nothing
+      })
       .when(LocalVarAssignment.class, (localVarAssignment, env) -> {
         if (localVarAssignment.declaration()) {
           env.register(localVarAssignment.name(), env.length());
@@ -172,8 +212,29 @@ public class ByteCodeRewriter {
   private static final Handle BSM_GET = bsm("bsm_get", CallSite.class, Lookup.class, String.class, MethodType.class, String.class);
   private static final Handle BSM_SET = bsm("bsm_set", CallSite.class, Lookup.class, String.class, MethodType.class, String.class);
   private static final Handle BSM_METHODCALL = bsm("bsm_methodcall", CallSite.class, Lookup.class, String.class, MethodType.class);
+  private static final Handle BSM_FOLDED = bsm("bsm_folded", CallSite.class, Lookup.class, String.class, MethodType.class, int.class);
+
+  // push true while the operators are the ones used to compute the folded value
+  private static void visitFoldedGuard(MethodVisitor mv, Folded folded, FunDictionary dictionary, JSObject global) {
+    var operators = new LinkedHashMap<String, Object>();
+    for (var name : ConstantFolder.operators(folded)) {
+      operators.put(name, global.lookup(name));
+    }
+    var operatorsId = dictionary.registerOperators(operators);
+    mv.visitInvokeDynamicInsn("folded", "()Z", BSM_FOLDED, operatorsId);
+  }
 
-  private static VoidVisitor<JSObject> createVisitor(MethodVisitor mv, FunDictionary dictionary) {
+  private static void visitConstant(MethodVisitor mv, Object value) {
+    if (value instanceof Integer) {
+      mv.visitLdcInsn(new ConstantDynamic("const_int", "Ljava/lang/Integer;", BSM_CONST, value));
+    } else if (value instanceof Boolean) {
+      mv.visitFieldInsn(GETSTATIC, "java/lang/Boolean", (Boolean) value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+    } else {
+      mv.visitLdcInsn((String) value);
+    }
+  }
+
+  private static VoidVisitor<JSObject> createVisitor(MethodVisitor mv, FunDictionary dictionary, JSObject global) {
     var visitor = new VoidVisitor<JSObject>();
     visitor
       .when(Block.class, (block, env) -> {
@@ -193,13 +254,20 @@ public class ByteCodeRewriter {
         //throw new UnsupportedOperationException("TODO Literal");
         // get the literal value, and use visitLDCInsn
         // if it's an Integer, wrap it into a ConstantDynamic because the JVM doesn't have a primitive for boxed integer
-        var value = literal.value();
-        if (value instanceof Integer intValue) {
-          var wrappedValue = new ConstantDynamic("const_int", "Ljava/lang/Integer;", BSM_CONST, intValue);
-          mv.visitLdcInsn(wrappedValue);
-        } else {
-          mv.visitLdcInsn((String) value);
-        }
+        visitConstant(mv, literal.value());
+      })
+      .when(Folded.class, (folded, env) -> {
+        // the constant is loaded while the operators are the ones used by the ConstantFolder,
+        // otherwise the call is evaluated
+        var slowLabel = new Label();
+        var endLabel = new Label();
+        visitFoldedGuard(mv, folded, dictionary, global);
+        mv.visitJumpInsn(IFEQ, slowLabel);
+        visitConstant(mv, folded.value());
+        mv.visitJumpInsn(GOTO, endLabel);
+        mv.visitLabel(slowLabel);
+        visitor.visit(ConstantFolder.unfold(folded), env);
+        mv.visitLabel(endLabel);
       })
       .when(FunCall.class, (funCall, env) -> {
         //   throw new UnsupportedOperationException("TODO FunCall");
@@ -272,12 +340,22 @@ public class ByteCodeRewriter {
         //throw new UnsupportedOperationException("TODO If");
         var falseLabel = new Label();
         var endLabel = new Label();
-        // visit the condition
-        visitor.visit(_if.condition(), env);
+        var trueLabel = new Label();
+        if (_if.condition() instanceof Folded) {
+          // a folded condition jumps to the live branch while the operators are unchanged
+          var folded = (Folded) _if.condition();
+          visitFoldedGuard(mv, folded, dictionary, global);
+          mv.visitJumpInsn(IFNE, folded.value() != Boolean.FALSE ? trueLabel : falseLabel);
+          visitor.visit(ConstantFolder.unfold(folded), env);
+        } else {
+          // visit the condition
+          visitor.visit(_if.condition(), env);
+        }
 
         mv.visitInvokeDynamicInsn("truth", "(Ljava/lang/Object;)Z", BSM_TRUTH);
         // generate an invokedynamic to transform an Object to a boolean using BSM_TRUTH
         mv.visitJumpInsn(IFEQ, falseLabel);
+        mv.visitLabel(trueLabel);
         // visit the true block
         visitor.visit(_if.trueBlock(), env);
         mv.visitJumpInsn(GOTO, endLabel);
@@ -1,11 +1,13 @@
 package fr.umlv.smalljs.jvminterp;
 
 import java.util.ArrayList;
+import java.util.Map;
 
 import fr.umlv.smalljs.ast.Expr.Fun;
 
 class FunDictionary {
   private final ArrayList<Fun> dictionnary = new ArrayList<>();
+  private final ArrayList<Map<String, Object>> operatorsDictionnary = new ArrayList<>();
   
   int register(Fun fun) {
     var id = dictionnary.size();
@@ -18,4 +20,16 @@ class FunDictionary {
     dictionnary.set(id, null);     // Fun will be garbage collected
     return fun;
   }
+
+  int registerOperators(Map<String, Object> operators) {
+    var id = operatorsDictionnary.size();
+    operatorsDictionnary.add(operators);
+    return id;
+  }
+
+  Map<String, Object> lookupOperatorsAndClear(int id) {
+    var operators = operatorsDictionnary.get(id);
+    operatorsDictionnary.set(id, null);
+    return operators;
+  }
 }
\ No newline at end of file
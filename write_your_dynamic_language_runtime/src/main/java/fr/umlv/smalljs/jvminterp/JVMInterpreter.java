@@ -4,7 +4,10 @@ import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
 
 import java.io.PrintStream;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import fr.umlv.smalljs.ast.Expr.Block;
@@ -12,7 +15,40 @@ import fr.umlv.smalljs.ast.Script;
 import fr.umlv.smalljs.rt.JSObject;
 
 public class JVMInterpreter {
+  // the operators are shared by all the global environments, so the ByteCodeRewriter can recognize them
+  private static final Map<String, JSObject> BUILTIN_OPERATORS = builtinOperators();
+
   @SuppressWarnings("unchecked")
+  private static Map<String, JSObject> builtinOperators() {
+    var operators = new LinkedHashMap<String, JSObject>();
+    operators.put("+", JSObject.newFunction("+", (self, receiver, args) -> (Integer) args[0] + (Integer) args[1]));
+    operators.put("-", JSObject.newFunction("-", (self, receiver, args) -> (Integer) args[0] - (Integer) args[1]));
+    operators.put("/", JSObject.newFunction("/", (self, receiver, args) -> (Integer) args[0] / (Integer) args[1]));
+    operators.put("*", JSObject.newFunction("*", (self, receiver, args) -> (Integer) args[0] * (Integer) args[1]));
+    operators.put("%", JSObject.newFunction("%", (self, receiver, args) -> (Integer) args[0] * (Integer) args[1]));
+
+    operators.put("==", JSObject.newFunction("==", (self, receiver, args) -> args[0].equals(args[1])));
+    operators.put("!=", JSObject.newFunction("!=", (self, receiver, args) -> !args[0].equals(args[1])));
+    operators.put("<", JSObject.newFunction("<",   (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) < 0)));
+    operators.put("<=", JSObject.newFunction("<=", (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) <= 0)));
+    operators.put(">", JSObject.newFunction(">",   (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) > 0)));
+    operators.put(">=", JSObject.newFunction(">=", (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) >= 0)));
+    return Collections.unmodifiableMap(operators);
+  }
+
+  // true if the operator is the builtin operator of that name
+  static boolean isBuiltinOperator(String name, Object operator) {
+    var builtin = BUILTIN_OPERATORS.get(name);
+    return builtin != null && builtin == operator;
+  }
+
+  /**
+   * Registers the builtin operators in a global environment.
+   */
+  public static void registerBuiltinOperators(JSObject globalEnv) {
+    BUILTIN_OPERATORS.forEach(globalEnv::register);
+  }
+
   public static void interpret(Script script, PrintStream outStream) {
     JSObject globalEnv = JSObject.newEnv(null);
     Block body = script.body();
@@ -22,18 +58,7 @@ public class JVMInterpreter {
         outStream.println(Arrays.stream(args).map(String::valueOf).collect(Collectors.joining(" ")));
         return UNDEFINED;
     }));
-    globalEnv.register("+", JSObject.newFunction("+", (self, receiver, args) -> (Integer) args[0] + (Integer) args[1]));
-    globalEnv.register("-", JSObject.newFunction("-", (self, receiver, args) -> (Integer) args[0] - (Integer) args[1]));
-    globalEnv.register("/", JSObject.newFunction("/", (self, receiver, args) -> (Integer) args[0] / (Integer) args[1]));
-    globalEnv.register("*", JSObject.newFunction("*", (self, receiver, args) -> (Integer) args[0] * (Integer) args[1]));
-    globalEnv.register("%", JSObject.newFunction("%", (self, receiver, args) -> (Integer) args[0] * (Integer) args[1]));
-
-    globalEnv.register("==", JSObject.newFunction("==", (self, receiver, args) -> args[0].equals(args[1])));
-    globalEnv.register("!=", JSObject.newFunction("!=", (self, receiver, args) -> !args[0].equals(args[1])));
-    globalEnv.register("<", JSObject.newFunction("<",   (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) < 0)));
-    globalEnv.register("<=", JSObject.newFunction("<=", (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) <= 0)));
-    globalEnv.register(">", JSObject.newFunction(">",   (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) > 0)));
-    globalEnv.register(">=", JSObject.newFunction(">=", (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) >= 0)));
+    registerBuiltinOperators(globalEnv);
 
     JSObject function = ByteCodeRewriter.createFunction("main", List.of(), body, globalEnv);
     function.invoke(UNDEFINED, new Object[0]);
@@ -6,6 +6,7 @@ import fr.umlv.smalljs.rt.JSObject;
 
 import java.lang.invoke.*;
 import java.lang.invoke.MethodHandles.Lookup;
+import java.util.Map;
 
 import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
 import static java.lang.invoke.MethodHandles.insertArguments;
@@ -96,6 +97,14 @@ public class RT {
     return new ConstantCallSite(insertArguments(REGISTER, 1, fieldName).asType(type));
   }
 
+  public static CallSite bsm_folded(Lookup lookup, String name, MethodType type, int operatorsId) {
+    var classLoader = (FunClassLoader) lookup.lookupClass()
+      .getClassLoader();
+    var operators = classLoader.getDictionary()
+      .lookupOperatorsAndClear(operatorsId);
+    return new FoldedGuard(classLoader.getGlobal(), operators);
+  }
+
   @SuppressWarnings("unused")  // used by a method handle
   private static MethodHandle lookupMethodHandle(JSObject receiver, String fieldName) {
     var function = (JSObject) receiver.lookup(fieldName);
@@ -157,6 +166,46 @@ public class RT {
     }
   }
 
+  // true while the operators of a folded call are the ones used to compute its value,
+  // the operators are only checked again when the global environment changes
+  private static class FoldedGuard extends MutableCallSite {
+    private static final MethodHandle SLOW_PATH;
+
+    static {
+      var lookup = MethodHandles.lookup();
+      try {
+        SLOW_PATH = lookup.findVirtual(FoldedGuard.class, "slowPath", methodType(boolean.class));
+      } catch (NoSuchMethodException | IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private final JSObject global;
+    private final Map<String, Object> operators;
+
+    public FoldedGuard(JSObject global, Map<String, Object> operators) {
+      super(methodType(boolean.class));
+      this.global = global;
+      this.operators = operators;
+      setTarget(SLOW_PATH.bindTo(this));
+    }
+
+    @SuppressWarnings("unused")  // called by a MH
+    private boolean slowPath() {
+      // read the switch point first, so a concurrent register can not be missed
+      var switchPoint = global.getSwitchPoint();
+      for (var entry : operators.entrySet()) {
+        if (global.lookup(entry.getKey()) != entry.getValue()) {
+          // an operator has been redefined, the call is always evaluated
+          setTarget(MethodHandles.constant(boolean.class, false));
+          return false;
+        }
+      }
+      setTarget(switchPoint.guardWithTest(MethodHandles.constant(boolean.class, true), SLOW_PATH.bindTo(this)));
+      return true;
+    }
+  }
+
   private static class InliningFieldCache extends MutableCallSite {
     private static final MethodHandle SLOW_PATH, LAYOUT_CHECK, FAST_ACCESS;
 
@@ -3,6 +3,7 @@ package fr.umlv.smalljs.main;
 import fr.umlv.smalljs.ast.Script;
 import fr.umlv.smalljs.astinterp.ASTInterpreter;
 import fr.umlv.smalljs.jvminterp.JVMInterpreter;
+import fr.umlv.smalljs.rt.Tracer;
 import fr.umlv.smalljs.stackinterp.StackInterpreter;
 
 import java.io.IOException;
@@ -47,6 +48,7 @@ public class Main {
         interpreter.accept(script, System.out);
       }
     } catch(RuntimeException e) {
+      Tracer.dump(System.err);
       e.printStackTrace();
       printHelp();
     }
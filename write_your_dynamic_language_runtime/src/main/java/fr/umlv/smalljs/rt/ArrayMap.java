@@ -5,18 +5,19 @@ import java.util.AbstractMap;
 import java.util.AbstractSet;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
 
 public class ArrayMap extends AbstractMap<String, Object> {
   public static class Layout {
     private final LinkedHashMap<String, Integer> slotMap;
-    private final HashMap<String, Layout> forwardMap = new HashMap<>();
+    // the layouts are shared by all objects, so by several threads
+    private final ConcurrentHashMap<String, Layout> forwardMap = new ConcurrentHashMap<>();
     
     private Layout(LinkedHashMap<String, Integer> slotMap) {
       this.slotMap = slotMap;
@@ -9,6 +9,7 @@ import java.lang.invoke.SwitchPoint;
 import java.util.Collections;
 import java.util.IdentityHashMap;
 import java.util.Set;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 
 public class JSObject {
@@ -47,6 +48,14 @@ public class JSObject {
     this.name = requireNonNull(name);
     this.mh = INVOKER.bindTo(invoker).bindTo(this).asVarargsCollector(Object[].class);
   }
+
+  /**
+   * Creates an object that stores its values elsewhere, a subclass overrides
+   * {@link #lookup(String)}, {@link #register(String, Object)}, {@link #length()} and {@link #forEach(BiConsumer)}.
+   */
+  protected JSObject() {
+    this(null, "object", (_1, _2, _3) -> { throw new Failure("object can not be applied"); });
+  }
   
   public static JSObject newObject(JSObject proto) {
     return new JSObject(proto, "object", (_1, _2, _3) -> { throw new Failure("object can not be applied"); });
@@ -126,9 +135,16 @@ public class JSObject {
     return valueMap.size();
   }
   
+  /**
+   * Calls the action on each key and value of this object, the prototype is not visited.
+   */
+  public void forEach(BiConsumer<? super String, Object> action) {
+    valueMap.forEach(action);
+  }
+
   public JSObject mirror(Function<Object, Object> valueMapper) {
     var mirror = newObject(null);
-    valueMap.forEach((key, value) -> {
+    forEach((key, value) -> {
       mirror.register(key, valueMapper.apply(value));  
     });
     return mirror;
@@ -159,7 +175,7 @@ public class JSObject {
     }
     var jsObject = (JSObject)object;
     builder.append("{ // ").append(jsObject.name).append('\n');
-    jsObject.valueMap.forEach((key, value) -> {
+    jsObject.forEach((key, value) -> {
       builder.append("  ").append(key).append(": ");
       toString(value, builder, seen);
       builder.append("\n");
@@ -0,0 +1,183 @@
+package fr.umlv.smalljs.rt;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Tracer of the execution of the interpreters.
+ *
+ * The categories and the level are read once from the system properties {@code smalljs.trace},
+ * a comma separated list of categories (dispatch, calls, heap, codegen) or "all",
+ * and {@code smalljs.trace.level} (info, debug or trace, info by default).
+ * Both are constants, so a trace point
+ * <pre>
+ *   if (Tracer.enabled(Tracer.CALLS, Tracer.DEBUG)) {
+ *     Tracer.trace(Tracer.CALLS, Tracer.DEBUG, "call " + name);
+ *   }
+ * </pre>
+ * is removed by the JIT if its category or its level is not enabled, the message is only
+ * computed if the trace point is enabled.
+ *
+ * By default, the events are recorded in a lock-free ring buffer that keeps the last
+ * {@code smalljs.trace.size} events (4096 by default) and {@link #dump(PrintStream)}
+ * prints them, for example when an execution fails.
+ * With {@code smalljs.trace.sink=stderr}, the events are printed when they are recorded.
+ */
+public final class Tracer {
+  // categories
+  public static final int DISPATCH = 1;
+  public static final int CALLS = 2;
+  public static final int HEAP = 4;
+  public static final int CODEGEN = 8;
+
+  // levels
+  public static final int INFO = 1;
+  public static final int DEBUG = 2;
+  public static final int TRACE = 3;
+
+  /**
+   * Receives the events of the tracer, may be called concurrently.
+   */
+  @FunctionalInterface
+  public interface Sink {
+    void record(int category, int level, String message);
+  }
+
+  /**
+   * A sink that keeps the last events, the writers never block.
+   */
+  public static final class RingBuffer implements Sink {
+    private final AtomicReferenceArray<String> events;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * @param capacity the number of events kept, rounded to a power of two.
+     */
+    public RingBuffer(int capacity) {
+      if (capacity < 1 || capacity > 1 << 30) {
+        throw new IllegalArgumentException("invalid capacity " + capacity);
+      }
+      var size = Integer.highestOneBit(capacity);
+      size = size < capacity ? size << 1 : size;
+      events = new AtomicReferenceArray<>(size);
+      mask = size - 1;
+    }
+
+    @Override
+    public void record(int category, int level, String message) {
+      var index = next.getAndIncrement();
+      events.lazySet((int) (index & mask), format(category, level, message));
+    }
+
+    /**
+     * @return the events kept, from the oldest to the newest, an event recorded concurrently
+     * may be missing or may replace an old one.
+     */
+    public List<String> events() {
+      var end = next.get();
+      var start = Math.max(0, end - events.length());
+      var list = new ArrayList<String>((int) (end - start));
+      for (var i = start; i < end; i++) {
+        var event = events.get((int) (i & mask));
+        if (event != null) {
+          list.add(event);
+        }
+      }
+      return list;
+    }
+  }
+
+  private static final int CATEGORIES = parseCategories(System.getProperty("smalljs.trace", ""));
+  private static final int LEVEL = parseLevel(System.getProperty("smalljs.trace.level", "info"));
+  private static final RingBuffer RING_BUFFER = new RingBuffer(Integer.getInteger("smalljs.trace.size", 4096));
+
+  private static volatile Sink sink = "stderr".equals(System.getProperty("smalljs.trace.sink"))
+      ? (category, level, message) -> System.err.println(format(category, level, message))
+      : RING_BUFFER;
+
+  private Tracer() {
+    throw new AssertionError();
+  }
+
+  private static int parseCategories(String property) {
+    var categories = 0;
+    for (var name : property.split(",")) {
+      categories |= switch (name.trim()) {
+        case "" -> 0;
+        case "all" -> DISPATCH | CALLS | HEAP | CODEGEN;
+        case "dispatch" -> DISPATCH;
+        case "calls" -> CALLS;
+        case "heap" -> HEAP;
+        case "codegen" -> CODEGEN;
+        default -> throw new IllegalArgumentException("unknown trace category " + name);
+      };
+    }
+    return categories;
+  }
+
+  private static int parseLevel(String property) {
+    return switch (property) {
+      case "info" -> INFO;
+      case "debug" -> DEBUG;
+      case "trace" -> TRACE;
+      default -> throw new IllegalArgumentException("unknown trace level " + property);
+    };
+  }
+
+  private static String format(int category, int level, String message) {
+    var categoryName = switch (category) {
+      case DISPATCH -> "dispatch";
+      case CALLS -> "calls";
+      case HEAP -> "heap";
+      case CODEGEN -> "codegen";
+      default -> String.valueOf(category);
+    };
+    var levelName = switch (level) {
+      case INFO -> "info";
+      case DEBUG -> "debug";
+      case TRACE -> "trace";
+      default -> String.valueOf(level);
+    };
+    return "[" + categoryName + ' ' + levelName + "] " + message;
+  }
+
+  /**
+   * Returns true if the events of the category at that level are recorded.
+   */
+  public static boolean enabled(int category, int level) {
+    return (CATEGORIES & category) != 0 && level <= LEVEL;
+  }
+
+  /**
+   * Records an event, the caller should check that the trace point is {@link #enabled(int, int)} first.
+   */
+  public static void trace(int category, int level, String message) {
+    sink.record(category, level, message);
+  }
+
+  /**
+   * Replaces the sink of the events.
+   */
+  public static void setSink(Sink sink) {
+    Tracer.sink = requireNonNull(sink);
+  }
+
+  /**
+   * Prints the events kept by the ring buffer, does nothing if no category is enabled.
+   */
+  public static void dump(PrintStream out) {
+    if (CATEGORIES == 0) {
+      return;
+    }
+    out.println("last trace events:");
+    for (var event : RING_BUFFER.events()) {
+      out.println(event);
+    }
+  }
+}
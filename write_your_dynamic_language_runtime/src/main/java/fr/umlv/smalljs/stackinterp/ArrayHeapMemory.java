@@ -0,0 +1,40 @@
+package fr.umlv.smalljs.stackinterp;
+
+import java.util.Arrays;
+
+final class ArrayHeapMemory implements HeapMemory {
+  private final int[] array;
+
+  ArrayHeapMemory(int size) {
+    this(new int[size]);
+  }
+
+  private ArrayHeapMemory(int[] array) {
+    this.array = array;
+  }
+
+  @Override
+  public int get(int index) {
+    return array[index];
+  }
+
+  @Override
+  public void set(int index, int value) {
+    array[index] = value;
+  }
+
+  @Override
+  public int size() {
+    return array.length;
+  }
+
+  @Override
+  public void copy(int srcIndex, int dstIndex, int length) {
+    System.arraycopy(array, srcIndex, array, dstIndex, length);
+  }
+
+  @Override
+  public HeapMemory resize(int newSize) {
+    return new ArrayHeapMemory(Arrays.copyOf(array, newSize));
+  }
+}
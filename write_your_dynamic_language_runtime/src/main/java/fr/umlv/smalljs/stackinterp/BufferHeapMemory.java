@@ -0,0 +1,90 @@
+package fr.umlv.smalljs.stackinterp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// a memory outside the Java heap, either a direct buffer or a buffer mapped on a file
+final class BufferHeapMemory implements HeapMemory {
+  private final IntBuffer buffer;
+  private final Path file;  // or null
+
+  private BufferHeapMemory(IntBuffer buffer, Path file) {
+    this.buffer = buffer;
+    this.file = file;
+  }
+
+  private static void checkSize(int size) {
+    if (size > Integer.MAX_VALUE / Integer.BYTES) {
+      throw new IllegalArgumentException("heap too big for an off heap memory " + size);
+    }
+  }
+
+  static BufferHeapMemory allocateDirect(int size) {
+    checkSize(size);
+    var buffer = ByteBuffer.allocateDirect(size * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+    return new BufferHeapMemory(buffer, null);
+  }
+
+  static BufferHeapMemory map(Path file, int size) {
+    return map(file, size, true);
+  }
+
+  private static BufferHeapMemory map(Path file, int size, boolean truncate) {
+    checkSize(size);
+    // the mapping stays valid after the channel is closed
+    try (var channel = truncate
+        ? FileChannel.open(file, CREATE, READ, WRITE, TRUNCATE_EXISTING)
+        : FileChannel.open(file, READ, WRITE)) {
+      var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) size * Integer.BYTES)
+          .order(ByteOrder.nativeOrder())
+          .asIntBuffer();
+      return new BufferHeapMemory(buffer, file);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public int get(int index) {
+    return buffer.get(index);
+  }
+
+  @Override
+  public void set(int index, int value) {
+    buffer.put(index, value);
+  }
+
+  @Override
+  public int size() {
+    return buffer.capacity();
+  }
+
+  @Override
+  public void copy(int srcIndex, int dstIndex, int length) {
+    // a bulk copy between two views of the same memory, the ranges may overlap like with a memmove
+    var src = buffer.duplicate().position(srcIndex).limit(srcIndex + length);
+    buffer.duplicate().position(dstIndex).put(src);
+  }
+
+  @Override
+  public HeapMemory resize(int newSize) {
+    if (file != null) {
+      // the file already contains the words, just map a bigger region
+      return map(file, newSize, false);
+    }
+    var memory = allocateDirect(newSize);
+    var length = Math.min(newSize, size());
+    memory.buffer.duplicate().put(buffer.duplicate().limit(length));
+    return memory;
+  }
+}
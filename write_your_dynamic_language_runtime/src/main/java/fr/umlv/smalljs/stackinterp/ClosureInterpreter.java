@@ -0,0 +1,539 @@
+package fr.umlv.smalljs.stackinterp;
+
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+import fr.umlv.smalljs.rt.Tracer;
+
+import java.util.IdentityHashMap;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.ACTIVATION_SIZE;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.BP_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.FUNCALL_PREFIX;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.FUN_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.NO_RESULT;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.PC_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.callSiteMiss;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.collectHandles;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.QUALIFIER_BASE_ARG_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.RECEIVER_BASE_ARG_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.fieldSlot;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.frameSize;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.initBottomFrame;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.intrinsic;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.refold;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.resolveGlobal;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.roots;
+import static fr.umlv.smalljs.stackinterp.TagValues.*;
+
+/**
+ * An engine that translates the instructions of a {@link Code} once into an array of handlers,
+ * one per instruction with its operands already decoded, and runs them.
+ * Each handler returns the index of the next handler to run (closure compilation).
+ *
+ * The frames have the same layout as the frames of the {@link StackInterpreter},
+ * so both engines share the stack, the heap and the scanning of the roots by the GC.
+ * The instructions are never modified, the handlers have their own inline caches.
+ */
+final class ClosureInterpreter {
+  @FunctionalInterface
+  interface Handler {
+    /**
+     * Executes an instruction.
+     * @return the index of the next handler or {@link #HALT}.
+     */
+    int execute(Machine machine);
+  }
+
+  // returned by the handler of the last RET
+  static final int HALT = -1;
+
+  // the registers of the engine
+  static final class Machine {
+    final ClosureInterpreter interpreter;
+    final VM vm;
+    final Heap heap;
+    final Dictionary dict;
+    final JSObject globalEnv;
+    final int undefined;
+
+    int[] stack;
+    int sp;
+    int bp;
+    int functionId;
+    Code code;
+    Handler[] handlers;
+    int result;
+
+    Machine(ClosureInterpreter interpreter, VM vm, Dictionary dict, JSObject globalEnv) {
+      this.interpreter = interpreter;
+      this.vm = vm;
+      this.heap = vm.heap();
+      this.dict = dict;
+      this.globalEnv = globalEnv;
+      this.undefined = encodeDictObject(UNDEFINED, dict);
+    }
+
+    void push(int value) {
+      stack[sp++] = value;
+    }
+
+    int pop() {
+      return stack[--sp];
+    }
+  }
+
+  private final IdentityHashMap<Code, Handler[]> handlersMap = new IdentityHashMap<>();
+
+  Handler[] handlers(Code code, Dictionary dict) {
+    var handlers = handlersMap.get(code);
+    if (handlers == null) {
+      handlers = translate(code, dict);
+      handlersMap.put(code, handlers);
+    }
+    return handlers;
+  }
+
+  Object execute(JSObject function, Object receiver, Object[] args, int bp, Dictionary dict, JSObject globalEnv, VM vm) {
+    var machine = new Machine(this, vm, dict, globalEnv);
+    var code = (Code) function.lookup("__code__");
+    var stack = vm.ensureStackCapacity(bp + frameSize(code));
+
+    // the stack may have been used by a previous execution, mark the bottom of the stack
+    initBottomFrame(function, receiver, args, code.parameterCount(), code.slotCount(), stack, bp, dict, vm.heap());
+
+    machine.stack = stack;
+    machine.bp = bp;
+    machine.sp = bp + code.slotCount() + ACTIVATION_SIZE;
+    machine.functionId = dict.functionId(function, code);
+    machine.code = code;
+    machine.handlers = handlers(code, dict);
+
+    var dispatchCount = 0L;
+    for (var pc = 0; pc != HALT; ) {
+      dispatchCount++;
+      if (Tracer.enabled(Tracer.DISPATCH, Tracer.TRACE)) {
+        Tracer.trace(Tracer.DISPATCH, Tracer.TRACE, pc + " " + Instructions.name(machine.code.instrs()[pc]));
+      }
+      pc = machine.handlers[pc].execute(machine);
+    }
+    vm.addDispatchCount(dispatchCount);
+    return decodeAnyValue(machine.result, dict, machine.heap);
+  }
+
+  private static Handler[] translate(Code code, Dictionary dict) {
+    var instrs = code.instrs();
+    var handlers = new Handler[instrs.length];
+    // the caches of the handlers, the ones of the code are only used to find the names
+    var caches = new InlineCaches();
+    for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+      handlers[pc] = translate(code, pc, caches, dict);
+    }
+    return handlers;
+  }
+
+  private static Handler translate(Code code, int pc, InlineCaches caches, Dictionary dict) {
+    var instrs = code.instrs();
+    var opcode = instrs[pc];
+    var next = pc + Instructions.length(opcode);
+    switch (opcode) {
+      case Instructions.CONST: {
+        var value = instrs[pc + 1];
+        return machine -> {
+          machine.push(value);
+          return next;
+        };
+      }
+      case Instructions.LOOKUP:
+      case Instructions.LOOKUP_CACHED: {
+        var site = newGlobalSite(caches, globalName(code, opcode, instrs[pc + 1]));
+        return machine -> {
+          machine.push(global(machine, site));
+          return next;
+        };
+      }
+      case Instructions.FOLDED:
+      case Instructions.JUMP_FOLDED: {
+        var label = instrs[pc + 1];
+        var codeSite = code.inlineCaches().foldedSite(instrs[pc + 2]);
+        var site = caches.foldedSite(caches.newFoldedSite(codeSite.value, codeSite.operators));
+        var push = opcode == Instructions.FOLDED;
+        return machine -> {
+          if (site.unfolded) {
+            return next;
+          }
+          if (site.isValid(machine.globalEnv) || refold(site, machine.globalEnv)) {
+            if (push) {
+              machine.push(site.value);
+            }
+            return label;
+          }
+          // an operator has been redefined, execute the code that follows from now on
+          site.unfolded = true;
+          return next;
+        };
+      }
+      case Instructions.UNFOLDED:
+        return machine -> next;
+      case Instructions.REGISTER: {
+        var name = (String) decodeDictObject(instrs[pc + 1], dict);
+        return machine -> {
+          var value = decodeAnyValue(machine.pop(), machine.dict, machine.heap);
+          machine.globalEnv.register(name, value);
+          return next;
+        };
+      }
+      case Instructions.LOAD: {
+        var slot = instrs[pc + 1];
+        return machine -> {
+          machine.push(machine.stack[machine.bp + slot]);
+          return next;
+        };
+      }
+      case Instructions.STORE: {
+        var slot = instrs[pc + 1];
+        return machine -> {
+          machine.stack[machine.bp + slot] = machine.pop();
+          return next;
+        };
+      }
+      case Instructions.DUP:
+        return machine -> {
+          machine.push(machine.stack[machine.sp - 1]);
+          return next;
+        };
+      case Instructions.POP:
+        return machine -> {
+          machine.sp--;
+          return next;
+        };
+      case Instructions.SWAP:
+        return machine -> {
+          var stack = machine.stack;
+          var sp = machine.sp;
+          var value = stack[sp - 1];
+          stack[sp - 1] = stack[sp - 2];
+          stack[sp - 2] = value;
+          return next;
+        };
+      case Instructions.FUNCALL:
+      case Instructions.FUNCALL_CACHED: {
+        var argumentCount = opcode == Instructions.FUNCALL ?
+            instrs[pc + 1] : code.inlineCaches().callSite(instrs[pc + 1]).argumentCount;
+        var site = caches.callSite(caches.newCallSite(argumentCount));
+        return machine -> call(machine, site, next);
+      }
+      case Instructions.TAILCALL:
+      case Instructions.TAILCALL_CACHED: {
+        var argumentCount = opcode == Instructions.TAILCALL ?
+            instrs[pc + 1] : code.inlineCaches().callSite(instrs[pc + 1]).argumentCount;
+        var site = caches.callSite(caches.newCallSite(argumentCount));
+        return machine -> tailCall(machine, site, next);
+      }
+      case Instructions.RET:
+        return ClosureInterpreter::ret;
+      case Instructions.GOTO: {
+        var label = instrs[pc + 1];
+        return machine -> label;
+      }
+      case Instructions.JUMP_IF_FALSE: {
+        var label = instrs[pc + 1];
+        return machine -> machine.pop() == FALSE ? label : next;
+      }
+      case Instructions.NEW: {
+        var vClass = instrs[pc + 1];
+        var fieldCount = ((JSObject) decodeDictObject(vClass, dict)).length();
+        return machine -> {
+          newObject(machine, vClass, fieldCount, next);
+          return next;
+        };
+      }
+      case Instructions.GET:
+      case Instructions.GET_MONO:
+      case Instructions.GET_POLY:
+      case Instructions.GET_MEGA: {
+        var site = newFieldSite(caches, fieldName(code, opcode, instrs[pc + 1]));
+        return machine -> {
+          machine.push(getField(machine, machine.pop(), site));
+          return next;
+        };
+      }
+      case Instructions.PUT:
+      case Instructions.PUT_MONO:
+      case Instructions.PUT_POLY:
+      case Instructions.PUT_MEGA: {
+        var site = newFieldSite(caches, fieldName(code, opcode, instrs[pc + 1]));
+        return machine -> {
+          var value = machine.pop();
+          putField(machine, machine.pop(), site, value);
+          return next;
+        };
+      }
+      case Instructions.LOAD_GET: {
+        var slot = instrs[pc + 1];
+        var site = newFieldSite(caches, fieldName(code, opcode, instrs[pc + 2]));
+        return machine -> {
+          machine.push(getField(machine, machine.stack[machine.bp + slot], site));
+          return next;
+        };
+      }
+      case Instructions.GLOBAL_CALLEE: {
+        var site = newGlobalSite(caches, globalName(code, opcode, instrs[pc + 1]));
+        return machine -> {
+          machine.push(global(machine, site));
+          machine.push(machine.undefined);
+          return next;
+        };
+      }
+      case Instructions.GET_METHOD: {
+        var site = newFieldSite(caches, fieldName(code, opcode, instrs[pc + 1]));
+        return machine -> {
+          var receiver = machine.pop();
+          machine.push(getField(machine, receiver, site));
+          machine.push(receiver);
+          return next;
+        };
+      }
+      case Instructions.STORE_LOAD: {
+        var storeSlot = instrs[pc + 1];
+        var loadSlot = instrs[pc + 2];
+        return machine -> {
+          machine.stack[machine.bp + storeSlot] = machine.pop();
+          machine.push(machine.stack[machine.bp + loadSlot]);
+          return next;
+        };
+      }
+      case Instructions.ADD:
+      case Instructions.SUB:
+      case Instructions.MUL:
+      case Instructions.DIV:
+      case Instructions.REM:
+      case Instructions.LT:
+      case Instructions.LE:
+      case Instructions.GT:
+      case Instructions.GE:
+      case Instructions.EQ:
+      case Instructions.NE: {
+        var codeSite = code.inlineCaches().globalSite(instrs[pc + 1]);
+        var site = newGlobalSite(caches, codeSite.name);
+        site.intrinsic = codeSite.intrinsic;
+        // the instruction is followed by a FUNCALL 2
+        var afterFuncall = next + 2;
+        return machine -> operation(machine, opcode, site, next, afterFuncall);
+      }
+      case Instructions.PRINT:
+        return machine -> {
+          var value = decodeAnyValue(machine.pop(), machine.dict, machine.heap);
+          var print = (JSObject) machine.globalEnv.lookup("print");
+          machine.push(encodeAnyValue(print.invoke(UNDEFINED, new Object[] { value }), machine.dict));
+          return next;
+        };
+      default:
+        throw new AssertionError("unknown instruction " + opcode);
+    }
+  }
+
+  private static int globalName(Code code, int opcode, int operand) {
+    return opcode == Instructions.LOOKUP ? operand : code.inlineCaches().globalSite(operand).name;
+  }
+
+  private static int fieldName(Code code, int opcode, int operand) {
+    return opcode == Instructions.GET || opcode == Instructions.PUT
+        ? operand
+        : code.inlineCaches().fieldSite(operand)[InlineCaches.FIELD_NAME];
+  }
+
+  private static InlineCaches.GlobalSite newGlobalSite(InlineCaches caches, int name) {
+    return caches.globalSite(caches.newGlobalSite(name));
+  }
+
+  private static int[] newFieldSite(InlineCaches caches, int fieldName) {
+    return caches.fieldSite(caches.newFieldSite(fieldName));
+  }
+
+  private static int global(Machine machine, InlineCaches.GlobalSite site) {
+    if (!site.isValid(machine.globalEnv)) {
+      resolveGlobal(site, machine.globalEnv, machine.dict);
+    }
+    return site.value;
+  }
+
+  // a handler never changes, so a full site stays megamorphic and does a lookup on a miss
+  private static int slot(Machine machine, int[] site, int vClass) {
+    var slot = InlineCaches.polymorphicSlot(site, vClass);
+    if (slot == InlineCaches.MISS) {
+      slot = fieldSlot(vClass, site[InlineCaches.FIELD_NAME], machine.dict);
+      InlineCaches.addEntry(site, vClass, slot);
+    }
+    return slot;
+  }
+
+  private static int getField(Machine machine, int value, int[] site) {
+    var ref = decodeReference(value);
+    var slot = slot(machine, site, machine.heap.get(ref));
+    return slot == InlineCaches.NO_FIELD ? machine.undefined : machine.heap.get(ref + OBJECT_HEADER_SIZE + slot);
+  }
+
+  private static void putField(Machine machine, int value, int[] site, int fieldValue) {
+    var ref = decodeReference(value);
+    var slot = slot(machine, site, machine.heap.get(ref));
+    if (slot == InlineCaches.NO_FIELD) {
+      throw new Failure("invalid field " + decodeDictObject(site[InlineCaches.FIELD_NAME], machine.dict));
+    }
+    machine.heap.set(ref + OBJECT_HEADER_SIZE + slot, fieldValue);
+    machine.heap.writeBarrier(ref, fieldValue);
+  }
+
+  private static int operation(Machine machine, int opcode, InlineCaches.GlobalSite site, int funcall, int afterFuncall) {
+    var stack = machine.stack;
+    var sp = machine.sp;
+    var left = stack[sp - 2];
+    var right = stack[sp - 1];
+    var function = global(machine, site);
+    if (function == site.intrinsic && isSmallInt(left) && isSmallInt(right)) {
+      var result = intrinsic(opcode, decodeSmallInt(left), decodeSmallInt(right));
+      if (result != NO_RESULT) {
+        stack[sp - 2] = result;
+        machine.sp = sp - 1;
+        return afterFuncall;
+      }
+    }
+    // fallback, insert the function and the receiver below the arguments and run the FUNCALL
+    stack[sp + 1] = right;
+    stack[sp] = left;
+    stack[sp - 1] = machine.undefined;
+    stack[sp - 2] = function;
+    machine.sp = sp + 2;
+    return funcall;
+  }
+
+  private static void newObject(Machine machine, int vClass, int fieldCount, int next) {
+    var heap = machine.heap;
+    var dict = machine.dict;
+    var stack = machine.stack;
+    var sp = machine.sp;
+    var bp = machine.bp;
+    var code = machine.code;
+    var ref = heap.allocate(OBJECT_HEADER_SIZE + fieldCount, vClass, dict, roots(machine.vm, sp, bp, next, code, dict));
+    var baseArg = sp - fieldCount;
+    for (var i = 0; i < fieldCount; i++) {
+      heap.set(ref + OBJECT_HEADER_SIZE + i, stack[baseArg + i]);
+    }
+    machine.sp = baseArg;
+    machine.push(encodeReference(ref));
+  }
+
+  private static int call(Machine machine, InlineCaches.CallSite site, int returnPc) {
+    var dict = machine.dict;
+    var argumentCount = site.argumentCount;
+    var baseArg = machine.sp - argumentCount;
+    var qualifier = machine.stack[baseArg + QUALIFIER_BASE_ARG_OFFSET];
+    if (site.isHit(qualifier)) {
+      site.hitCount++;
+    } else {
+      callSiteMiss(site, qualifier, dict);
+    }
+    var code = site.code;
+    if (code == null) {
+      return callNative(machine, site.function, argumentCount, returnPc);
+    }
+    var stack = machine.vm.ensureStackCapacity(baseArg - 1 + frameSize(code));
+
+    // save bp/pc/function in the activation zone
+    var activation = baseArg - 1 + code.slotCount();
+    stack[activation + BP_OFFSET] = machine.bp;
+    stack[activation + PC_OFFSET] = returnPc;
+    stack[activation + FUN_OFFSET] = machine.functionId;
+
+    var bp = baseArg - 1;
+    for (var i = bp + code.parameterCount(); i < bp + code.slotCount(); i++) {
+      stack[i] = machine.undefined;
+    }
+    machine.stack = stack;
+    machine.bp = bp;
+    machine.sp = activation + ACTIVATION_SIZE;
+    machine.functionId = site.functionId;
+    machine.code = code;
+    machine.handlers = machine.interpreter.handlers(code, dict);
+    return 0;
+  }
+
+  private static int callNative(Machine machine, JSObject function, int argumentCount, int returnPc) {
+    var dict = machine.dict;
+    var stack = machine.stack;
+    var baseArg = machine.sp - argumentCount;
+    var result = StackInterpreter.callNative(function, stack, baseArg, argumentCount, dict, machine.vm,
+        roots(machine.vm, machine.sp, machine.bp, returnPc, machine.code, dict));
+    machine.stack = machine.vm.stack();
+    machine.sp = baseArg - FUNCALL_PREFIX;
+    machine.push(result);
+    if (dict.shouldCollectHandles()) {
+      collectHandles(machine.vm, machine.sp, machine.bp, returnPc, machine.code, dict);
+    }
+    return returnPc;
+  }
+
+  // a native function is called like with a FUNCALL and the following RET returns the result,
+  // otherwise the new frame replaces the current one
+  private static int tailCall(Machine machine, InlineCaches.CallSite site, int retPc) {
+    var dict = machine.dict;
+    var stack = machine.stack;
+    var argumentCount = site.argumentCount;
+    var baseArg = machine.sp - argumentCount;
+    var qualifier = stack[baseArg + QUALIFIER_BASE_ARG_OFFSET];
+    if (site.isHit(qualifier)) {
+      site.hitCount++;
+    } else {
+      callSiteMiss(site, qualifier, dict);
+    }
+    var code = site.code;
+    if (code == null) {
+      return callNative(machine, site.function, argumentCount, retPc);
+    }
+
+    var bp = machine.bp;
+    var activation = bp + machine.code.slotCount();
+    var savedBp = stack[activation + BP_OFFSET];
+    var savedPc = stack[activation + PC_OFFSET];
+    var savedFunction = stack[activation + FUN_OFFSET];
+
+    stack = machine.vm.ensureStackCapacity(bp + frameSize(code));
+    System.arraycopy(stack, baseArg + RECEIVER_BASE_ARG_OFFSET, stack, bp, argumentCount + 1);
+    activation = bp + code.slotCount();
+    stack[activation + BP_OFFSET] = savedBp;
+    stack[activation + PC_OFFSET] = savedPc;
+    stack[activation + FUN_OFFSET] = savedFunction;
+    for (var i = bp + code.parameterCount(); i < activation; i++) {
+      stack[i] = machine.undefined;
+    }
+    machine.stack = stack;
+    machine.sp = activation + ACTIVATION_SIZE;
+    machine.functionId = site.functionId;
+    machine.code = code;
+    machine.handlers = machine.interpreter.handlers(code, dict);
+    return 0;
+  }
+
+  private static int ret(Machine machine) {
+    var stack = machine.stack;
+    var result = machine.pop();
+    var bp = machine.bp;
+    var activation = bp + machine.code.slotCount();
+    var pc = stack[activation + PC_OFFSET];
+    if (pc == 0) {
+      // end of the execution
+      machine.result = result;
+      return HALT;
+    }
+
+    var functionId = stack[activation + FUN_OFFSET];
+    var code = (Code) machine.dict.functionCode(functionId);
+    machine.sp = bp - 1;
+    machine.bp = stack[activation + BP_OFFSET];
+    machine.functionId = functionId;
+    machine.code = code;
+    machine.handlers = machine.interpreter.handlers(code, machine.dict);
+    machine.push(result);
+    return pc;
+  }
+}
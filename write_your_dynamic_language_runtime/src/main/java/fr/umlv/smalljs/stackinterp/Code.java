@@ -2,11 +2,43 @@ package fr.umlv.smalljs.stackinterp;
 
 import static java.util.Objects.requireNonNull;
 
-public record Code(int[] instrs, int parameterCount, int slotCount) {
+/**
+ * Code of a function for the {@link StackInterpreter} and the {@link ClosureInterpreter}.
+ * A frame is laid out as
+ * <pre>
+ *   [0, slotCount[                                parameters and local variables
+ *   [slotCount, slotCount + ACTIVATION_SIZE[      activation zone
+ *   [slotCount + ACTIVATION_SIZE, frameSize[      operand stack, at most maxStack values
+ * </pre>
+ * maxStack is computed by the {@link StackAnalyzer}, the {@link StackMap} tells the GC
+ * which slots are live at each instruction.
+ */
+public record Code(int[] instrs, int parameterCount, int slotCount, int maxStack, StackMap stackMap, InlineCaches inlineCaches) {
 	public Code {
 		if (parameterCount < 1 || slotCount < 1 || parameterCount > slotCount) {
 			throw new IllegalArgumentException("invalid parameter or slot count");
 		}
+		if (maxStack < 0) {
+			throw new IllegalArgumentException("invalid max stack");
+		}
 		requireNonNull(instrs);
+		requireNonNull(stackMap);
+		requireNonNull(inlineCaches);
+	}
+
+	public Code(int[] instrs, int parameterCount, int slotCount, int maxStack, InlineCaches inlineCaches) {
+		this(instrs, parameterCount, slotCount, maxStack, StackMap.of(instrs, slotCount), inlineCaches);
+	}
+
+	/**
+	 * Creates a code without analyzing the instructions,
+	 * the operand stack is sized by an upper bound, an instruction pushes at most one value per int.
+	 */
+	public Code(int[] instrs, int parameterCount, int slotCount, InlineCaches inlineCaches) {
+		this(instrs, parameterCount, slotCount, instrs.length, inlineCaches);
+	}
+
+	public Code(int[] instrs, int parameterCount, int slotCount) {
+		this(instrs, parameterCount, slotCount, new InlineCaches());
 	}
-}
\ No newline at end of file
+}
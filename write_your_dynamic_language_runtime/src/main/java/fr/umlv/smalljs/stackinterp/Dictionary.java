@@ -1,21 +1,275 @@
 package fr.umlv.smalljs.stackinterp;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import fr.umlv.smalljs.rt.JSObject;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * Values that are not small ints or references.
+ * The constants are the values known when the code is generated (literals, classes, functions, names),
+ * they live as long as the dictionary.
+ * The handles are the values created at runtime (results of native calls), a handle is reclaimed
+ * by a full collection of the {@link Heap} if no slot of the stack or of the heap contains it.
+ *
+ * The constants are indexed by an open addressing table, strings and boxed numbers are compared
+ * with equals, the other constants (functions, classes, codes) are compared by identity.
+ * Reading a constant is lock-free, adding a constant takes a lock, so the constants can be shared
+ * by several threads. The handles are not thread safe.
+ *
+ * The interpreted functions have a dense id in a function table that stores their code
+ * ({@link Code} or {@link RegisterCode}), a frame stores the id of the calling function,
+ * so a call or a return does not lookup the field {@code __code__}.
+ */
 public class Dictionary {
-	private final HashMap<Object, Integer> indexMap = new HashMap<>();
-	private final ArrayList<Object> constants = new ArrayList<>();
+	private static final Object FREE = new Object();
+	private static final Object NULL_KEY = new Object();
+	private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(Object[].class);
+	private static final VarHandle FUNCTION_IDS = MethodHandles.arrayElementVarHandle(int[].class);
+	private static final int MIN_COLLECT_THRESHOLD = 1_024;
+
+	// the keys of a table are never modified once the table is replaced by a bigger one,
+	// a key is published after its index, its constant and the size of the dictionary,
+	// functionIds stores the function id + 1 of a constant or 0 if the constant is not in the function table
+	private record Table(Object[] keys, int[] indexes, Object[] constants, int[] functionIds) {}
+
+	private volatile Table table;
+	private volatile int size;  // modified under the lock
+
+	// an id is published after its function and its code
+	private record Functions(JSObject[] functions, Object[] codes) {}
+
+	private volatile Functions functions = new Functions(new JSObject[16], new Object[16]);
+	private int functionCount;  // modified under the lock
+
+	private Object[] handles = new Object[16];
+	private int handleTop;  // the handles above are never used
+	private int[] freeHandles = new int[16];
+	private int freeCount;
+	private final BitSet marks = new BitSet();
+	private int collectThreshold = MIN_COLLECT_THRESHOLD;
+	private int executionCount;
+
+	public Dictionary() {
+		this(64);
+	}
+
+	/**
+	 * Creates a dictionary that can store expectedSize constants without being resized.
+	 */
+	public Dictionary(int expectedSize) {
+		if (expectedSize < 0) {
+			throw new IllegalArgumentException("invalid expected size " + expectedSize);
+		}
+		var capacity = Math.max(8, Integer.highestOneBit(Math.max(1, expectedSize)) << 2);
+		var constantCapacity = Math.max(8, expectedSize);
+		table = new Table(new Object[capacity], new int[capacity], new Object[constantCapacity], new int[constantCapacity]);
+	}
+
+	// strings and boxed numbers are compared with equals
+	private static boolean byValue(Object key) {
+		return key instanceof String || key instanceof Number || key instanceof Boolean;
+	}
+
+	private static int hash(Object key) {
+		var hash = byValue(key) ? key.hashCode() : System.identityHashCode(key);
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean same(Object key, Object other) {
+		return key == other || (byValue(key) && key.equals(other));
+	}
 
 	public int index(Object constant) {
-		return indexMap.computeIfAbsent(constant, key -> {
-			var index = constants.size();
-			constants.add(key);
+		var index = indexOf(constant);
+		return index != -1 ? index : add(constant);
+	}
+
+	private synchronized int add(Object constant) {
+		var index = indexOf(constant);  // may have been added by another thread
+		if (index != -1) {
 			return index;
-		});
+		}
+		var table = this.table;
+		index = size;
+		if (index == table.constants.length || (index + 1) << 1 > table.keys.length) {
+			table = resize(table, index);
+			this.table = table;
+		}
+		var key = constant == null ? NULL_KEY : constant;
+		var keys = table.keys;
+		var mask = keys.length - 1;
+		var slot = hash(key) & mask;
+		while (keys[slot] != null) {
+			slot = (slot + 1) & mask;
+		}
+		table.constants[index] = constant;
+		table.indexes[slot] = index;
+		// the size is written first, so an index found by a lock-free lookup is always valid
+		size = index + 1;
+		KEYS.setRelease(keys, slot, key);
+		return index;
+	}
+
+	private static Table resize(Table table, int size) {
+		var keys = table.keys;
+		var capacity = keys.length << 1;
+		var newKeys = new Object[capacity];
+		var newIndexes = new int[capacity];
+		var mask = capacity - 1;
+		for (var i = 0; i < keys.length; i++) {
+			var key = keys[i];
+			if (key == null) {
+				continue;
+			}
+			var slot = hash(key) & mask;
+			while (newKeys[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			newKeys[slot] = key;
+			newIndexes[slot] = table.indexes[i];
+		}
+		var constants = table.constants;
+		if (size == constants.length) {
+			return new Table(newKeys, newIndexes, Arrays.copyOf(constants, size << 1), Arrays.copyOf(table.functionIds, size << 1));
+		}
+		return new Table(newKeys, newIndexes, constants, table.functionIds);
 	}
 
 	public Object getConst(int index) {
-		return constants.get(index);
+		Objects.checkIndex(index, size);
+		return table.constants[index];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// index of an existing constant or -1, lock-free
+	int indexOf(Object constant) {
+		var key = constant == null ? NULL_KEY : constant;
+		var table = this.table;
+		var keys = table.keys;
+		var mask = keys.length - 1;
+		for (var slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+			var other = KEYS.getAcquire(keys, slot);
+			if (other == null) {
+				return -1;
+			}
+			if (same(key, other)) {
+				return table.indexes[slot];
+			}
+		}
+	}
+
+	/**
+	 * Returns the id of an interpreted function, the function is added to the function table if necessary.
+	 * @param function the function.
+	 * @param code the code of the function.
+	 */
+	public int functionId(JSObject function, Object code) {
+		var index = index(function);
+		var id = (int) FUNCTION_IDS.getAcquire(table.functionIds, index) - 1;
+		return id != -1 ? id : addFunction(index, function, code);
+	}
+
+	private synchronized int addFunction(int index, JSObject function, Object code) {
+		var functionIds = table.functionIds;
+		var id = functionIds[index] - 1;
+		if (id != -1) {
+			return id;
+		}
+		var functions = this.functions;
+		id = functionCount;
+		if (id == functions.functions.length) {
+			functions = new Functions(Arrays.copyOf(functions.functions, id << 1), Arrays.copyOf(functions.codes, id << 1));
+			this.functions = functions;
+		}
+		functions.functions[id] = function;
+		functions.codes[id] = code;
+		functionCount = id + 1;
+		FUNCTION_IDS.setRelease(functionIds, index, id + 1);
+		return id;
+	}
+
+	// id of the function stored at the index of a constant or -1, lock-free
+	int constantFunctionId(int index) {
+		var functionIds = table.functionIds;
+		return index < functionIds.length ? (int) FUNCTION_IDS.getAcquire(functionIds, index) - 1 : -1;
+	}
+
+	public JSObject function(int id) {
+		return functions.functions[id];
+	}
+
+	public Object functionCode(int id) {
+		return functions.codes[id];
+	}
+
+	int newHandle(Object value) {
+		int index;
+		if (freeCount != 0) {
+			index = freeHandles[--freeCount];
+		} else {
+			if (handleTop == handles.length) {
+				handles = Arrays.copyOf(handles, handleTop << 1);
+			}
+			index = handleTop++;
+		}
+		handles[index] = value;
+		return index;
+	}
+
+	Object getHandle(int index) {
+		var value = handles[index];
+		if (value == FREE) {
+			throw new IllegalStateException("handle " + index + " already reclaimed");
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the number of live handles.
+	 */
+	public int handleCount() {
+		return handleTop - freeCount;
+	}
+
+	// true if enough handles were created since the last sweep to trigger a collection
+	boolean shouldCollectHandles() {
+		return handleCount() >= collectThreshold;
+	}
+
+	void markHandle(int index) {
+		marks.set(index);
+	}
+
+	// free the handles not marked since the last sweep, if another execution uses the dictionary,
+	// its stack was not scanned so nothing is freed
+	void sweepHandles() {
+		if (executionCount <= 1) {
+			for (var i = 0; i < handleTop; i++) {
+				if (handles[i] != FREE && !marks.get(i)) {
+					handles[i] = FREE;
+					if (freeCount == freeHandles.length) {
+						freeHandles = Arrays.copyOf(freeHandles, freeCount << 1);
+					}
+					freeHandles[freeCount++] = i;
+				}
+			}
+		}
+		marks.clear();
+		collectThreshold = Math.max(MIN_COLLECT_THRESHOLD, 2 * handleCount());
+	}
+
+	void enterExecution() {
+		executionCount++;
+	}
+
+	void exitExecution() {
+		executionCount--;
 	}
 }
@@ -0,0 +1,104 @@
+package fr.umlv.smalljs.stackinterp;
+
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A script of an {@link Isolate} that suspends itself by calling the builtin {@code yield(value)}
+ * and is resumed later, maybe by another thread.
+ *
+ * When a fiber yields, its frames are copied from the stack of the VM into an array just big enough,
+ * the stack segment, so a parked fiber is only this segment and a few registers and the stack of the VM
+ * can be used by the other fibers. The objects referenced by a parked fiber stay in the heap of the isolate,
+ * the stack segments of the parked fibers are scanned by the GC.
+ *
+ * The fibers of an isolate share its globals and its heap and run one at a time, the fibers of different
+ * isolates run in parallel. Only the {@link VMConfig.Engine#SWITCH} engine can suspend an execution
+ * and a fiber can not yield from a function called by a native function.
+ */
+public final class Fiber {
+  private final Isolate isolate;
+  final JSObject function;
+
+  boolean done;
+  boolean yielding;  // true if the fiber has yielded and is not resumed yet
+  Object yieldedValue;
+
+  // the stack segment and the registers of a parked fiber, the stack is null before the first resume
+  int[] stack;
+  int sp;
+  int bp;
+  int pc;
+  int functionId;
+
+  Fiber(Isolate isolate, JSObject function) {
+    this.isolate = isolate;
+    this.function = function;
+  }
+
+  /**
+   * Runs the fiber until it yields or its script returns.
+   * @param value the return value of the call to yield that has suspended the fiber, ignored by the first resume.
+   * @return the value yielded by the fiber or the result of the script if the fiber is done.
+   * @throws IllegalStateException if the fiber is done.
+   */
+  public Object resume(Object value) {
+    return isolate.resume(this, value);
+  }
+
+  /**
+   * Resumes the fiber asynchronously.
+   * @param value the return value of the call to yield that has suspended the fiber, ignored by the first resume.
+   * @param executor the executor that runs the fiber.
+   * @return a future of the value yielded by the fiber or of the result of the script.
+   */
+  public CompletableFuture<Object> submit(Object value, Executor executor) {
+    requireNonNull(executor);
+    return CompletableFuture.supplyAsync(() -> resume(value), executor);
+  }
+
+  /**
+   * @return true if the script of the fiber has returned or has failed.
+   */
+  public boolean isDone() {
+    synchronized (isolate) {
+      return done;
+    }
+  }
+
+  // called by the builtin yield, the interpreter parks the fiber when the builtin returns
+  static void yield(Object value) {
+    var vm = VM.current();
+    var fiber = vm == null ? null : vm.fiber();
+    if (fiber == null) {
+      throw new Failure("yield called outside a fiber");
+    }
+    if (vm.nativeDepth() != 1) {
+      throw new Failure("yield called by a function called by a native function");
+    }
+    fiber.yielding = true;
+    fiber.yieldedValue = value;
+  }
+
+  // save the frames and the registers, the frames are the values below sp
+  void park(int[] stack, int sp, int bp, int pc, int functionId) {
+    this.stack = Arrays.copyOf(stack, sp);
+    this.sp = sp;
+    this.bp = bp;
+    this.pc = pc;
+    this.functionId = functionId;
+  }
+
+  // the frames have been copied back on the stack of the VM
+  void unpark() {
+    stack = null;
+    yielding = false;
+    yieldedValue = null;
+  }
+}
@@ -0,0 +1,577 @@
+package fr.umlv.smalljs.stackinterp;
+
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+import fr.umlv.smalljs.rt.Tracer;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+import static fr.umlv.smalljs.stackinterp.TagValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeHandle;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.isHandle;
+import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
+
+/**
+ * The heap of the stack interpreter, it is split in two generations
+ * <pre>
+ *   [0, oldTop[                      the old generation
+ *   [oldTop, nurseryStart[           free space of the old generation
+ *   [nurseryStart, nurseryTop[       the nursery
+ *   [nurseryTop, capacity[           free space of the nursery
+ * </pre>
+ *
+ * Objects are allocated in the nursery using a bump pointer, when the nursery is full
+ * a minor GC copies the live objects of the nursery at the end of the old generation.
+ * The old objects that reference nursery objects are recorded in a remembered set
+ * by a write barrier.
+ *
+ * When the old generation is full, a full GC marks the whole heap and compacts
+ * the live objects in place (see stack_interpreter.md). If after a full GC the live objects
+ * use more than the growth threshold, the heap grows up to its maximum size.
+ * Besides the objects, the heap stores the strings created at runtime (see {@link #STRING_CLASS}).
+ * A full GC also frees the handles of the {@link Dictionary} that are not referenced
+ * by the roots or by a live object.
+ */
+public final class Heap {
+  static final int GC_OFFSET = 1;
+  static final int GC_MARK = -1;
+  static final int GC_EMPTY = -2;
+  static final int GC_REMEMBERED = -3;  // an old object in the remembered set
+
+  /**
+   * The class of the strings, a string has no field, after the header, a word contains
+   * {@code length << 1 | coder} followed by the chars, 4 chars per word in Latin-1 or 2 chars per word in UTF-16.
+   */
+  static final JSObject STRING_CLASS = JSObject.newObject(null);
+  private static final int LATIN1 = 0;
+  private static final int UTF16 = 1;
+
+  /**
+   * The roots of the garbage collector.
+   */
+  @FunctionalInterface
+  public interface Roots {
+    /**
+     * Calls the visitor on each root, the root is replaced by the value returned by the visitor.
+     * @param visitor a function called on each root.
+     */
+    void scan(IntUnaryOperator visitor);
+  }
+
+  private final int maxSize;
+  private final int growthThreshold; // in percent
+  private final int nurseryPercent;
+  private HeapMemory memory;
+  private int oldTop;
+  private int nurseryStart;
+  private int nurseryTop;
+
+  // mark stack, avoid to recursively mark the objects
+  private int[] worklist = new int[16];
+  private int top;
+
+  // old objects that may reference nursery objects
+  private int[] remembered = new int[16];
+  private int rememberedSize;
+
+  // views used by the native functions, the objects of the reachable views are roots
+  private final ArrayList<WeakReference<HeapObjectView>> views = new ArrayList<>();
+  private int viewThreshold = 16;
+
+  // statistics
+  private int collectionCount;
+  private int minorCollectionCount;
+  private long totalPauseNanos;
+  private long maxPauseNanos;
+  private long reclaimedBytes;
+  private long promotedBytes;
+  private int growCount;
+  private int peakUsed;
+
+  public Heap(int size) {
+    this(size, size, 100, 0, HeapMemory.onHeap());
+  }
+
+  public Heap(int initialSize, int maxSize, int growthThreshold, int nurseryPercent, HeapMemory.Factory memoryFactory) {
+    if (initialSize < OBJECT_HEADER_SIZE || maxSize < initialSize) {
+      throw new IllegalArgumentException("invalid heap sizes " + initialSize + " " + maxSize);
+    }
+    if (growthThreshold < 1 || growthThreshold > 100) {
+      throw new IllegalArgumentException("invalid growth threshold " + growthThreshold);
+    }
+    if (nurseryPercent < 0 || nurseryPercent > 50) {
+      throw new IllegalArgumentException("invalid nursery percentage " + nurseryPercent);
+    }
+    this.memory = memoryFactory.allocate(initialSize);
+    this.maxSize = maxSize;
+    this.growthThreshold = growthThreshold;
+    this.nurseryPercent = nurseryPercent;
+    resetNursery();
+  }
+
+  private int nurserySize(int capacity) {
+    return (int) ((long) capacity * nurseryPercent / 100);
+  }
+
+  // empty the nursery, it may be smaller than expected if the old generation overflows
+  private void resetNursery() {
+    nurseryStart = Math.max(oldTop, memory.size() - nurserySize(memory.size()));
+    nurseryTop = nurseryStart;
+  }
+
+  int get(int address) {
+    return memory.get(address);
+  }
+
+  void set(int address, int value) {
+    memory.set(address, value);
+  }
+
+  /**
+   * Write barrier, must be called when the field of an object is updated.
+   * @param ref the address of the object.
+   * @param value the new value of the field.
+   */
+  void writeBarrier(int ref, int value) {
+    if (ref < nurseryStart && isReference(value) && decodeReference(value) >= nurseryStart
+        && memory.get(ref + GC_OFFSET) == GC_EMPTY) {
+      remember(ref);
+    }
+  }
+
+  private void remember(int ref) {
+    memory.set(ref + GC_OFFSET, GC_REMEMBERED);
+    if (rememberedSize == remembered.length) {
+      remembered = Arrays.copyOf(remembered, rememberedSize << 1);
+    }
+    remembered[rememberedSize++] = ref;
+  }
+
+  // register a view so its object is kept alive and its address updated by the GC
+  void pin(HeapObjectView view) {
+    if (views.size() == viewThreshold) {
+      views.removeIf(reference -> reference.get() == null);
+      viewThreshold = Math.max(16, views.size() << 1);
+    }
+    views.add(new WeakReference<>(view));
+  }
+
+  // call the visitor on the object of each reachable view, the view is updated with the returned value
+  private void scanViews(IntUnaryOperator visitor) {
+    views.removeIf(reference -> {
+      var view = reference.get();
+      if (view == null) {
+        return true;
+      }
+      view.ref = decodeReference(visitor.applyAsInt(encodeReference(view.ref)));
+      return false;
+    });
+  }
+
+  /**
+   * Allocates an object of {@code size} words and initializes its header,
+   * doing a GC and maybe growing the heap if there is not enough room.
+   * @param size size of the object in words, including the header.
+   * @param vClass the class of the object encoded as a dictionary object.
+   * @return the address of the object.
+   * @throws Failure if there is still not enough memory after a GC.
+   */
+  int allocate(int size, int vClass, Dictionary dict, Roots roots) {
+    if (nurseryTop + size > memory.size()) {
+      if (size <= memory.size() - nurseryStart) {
+        collectYoung(dict, roots);
+      }
+      if (nurseryTop + size > memory.size()) {
+        // too big for the nursery
+        return allocateOld(size, vClass, dict, roots);
+      }
+    }
+    var ref = nurseryTop;
+    nurseryTop += size;
+    memory.set(ref, vClass);
+    memory.set(ref + GC_OFFSET, GC_EMPTY);
+    updatePeak();
+    return ref;
+  }
+
+  private int allocateOld(int size, int vClass, Dictionary dict, Roots roots) {
+    if (oldTop + size > nurseryStart) {
+      collect(dict, roots, size);
+      if (oldTop + size > nurseryStart) {
+        throw new Failure("out of memory, can not allocate " + size + " words");
+      }
+    }
+    var ref = oldTop;
+    oldTop += size;
+    memory.set(ref, vClass);
+    // the fields are not yet initialized, they may reference nursery objects,
+    // if the nursery is empty (or there is no nursery) the fields can only reference old objects
+    if (nurseryTop != nurseryStart) {
+      remember(ref);
+    } else {
+      memory.set(ref + GC_OFFSET, GC_EMPTY);
+    }
+    updatePeak();
+    return ref;
+  }
+
+  private void updatePeak() {
+    var used = used();
+    if (used > peakUsed) {
+      peakUsed = used;
+    }
+  }
+
+  private int objectSize(int ref, Dictionary dict) {
+    var clazz = (JSObject) decodeDictObject(memory.get(ref), dict);
+    if (clazz == STRING_CLASS) {
+      return OBJECT_HEADER_SIZE + 1 + payloadSize(memory.get(ref + OBJECT_HEADER_SIZE));
+    }
+    return OBJECT_HEADER_SIZE + clazz.length();
+  }
+
+  // the words of a string are not tagged values
+  private int fieldCount(int ref, Dictionary dict) {
+    var clazz = (JSObject) decodeDictObject(memory.get(ref), dict);
+    return clazz == STRING_CLASS ? 0 : clazz.length();
+  }
+
+  private static int payloadSize(int lengthAndCoder) {
+    var length = lengthAndCoder >>> 1;
+    return (lengthAndCoder & 1) == LATIN1 ? (length + 3) >> 2 : (length + 1) >> 1;
+  }
+
+  /**
+   * Allocates a string, the chars are stored in Latin-1 if possible, in UTF-16 otherwise.
+   * @return the address of the string.
+   */
+  int allocateString(String string, Dictionary dict, Roots roots) {
+    var length = string.length();
+    var coder = LATIN1;
+    for (var i = 0; i < length; i++) {
+      if (string.charAt(i) > 0xFF) {
+        coder = UTF16;
+        break;
+      }
+    }
+    var lengthAndCoder = length << 1 | coder;
+    var ref = allocate(OBJECT_HEADER_SIZE + 1 + payloadSize(lengthAndCoder), encodeDictObject(STRING_CLASS, dict), dict, roots);
+    memory.set(ref + OBJECT_HEADER_SIZE, lengthAndCoder);
+    var payload = ref + OBJECT_HEADER_SIZE + 1;
+    var charsPerWord = coder == LATIN1 ? 4 : 2;
+    var bits = Integer.SIZE / charsPerWord;
+    for (var i = 0; i < length; i += charsPerWord) {
+      var word = 0;
+      for (var j = 0; j < charsPerWord && i + j < length; j++) {
+        word |= string.charAt(i + j) << (j * bits);
+      }
+      memory.set(payload + i / charsPerWord, word);
+    }
+    return ref;
+  }
+
+  boolean isString(int ref, Dictionary dict) {
+    return decodeDictObject(memory.get(ref), dict) == STRING_CLASS;
+  }
+
+  String getString(int ref) {
+    var lengthAndCoder = memory.get(ref + OBJECT_HEADER_SIZE);
+    var length = lengthAndCoder >>> 1;
+    var payload = ref + OBJECT_HEADER_SIZE + 1;
+    var charsPerWord = (lengthAndCoder & 1) == LATIN1 ? 4 : 2;
+    var bits = Integer.SIZE / charsPerWord;
+    var mask = (1 << bits) - 1;
+    var chars = new char[length];
+    for (var i = 0; i < length; i++) {
+      chars[i] = (char) ((memory.get(payload + i / charsPerWord) >>> ((i % charsPerWord) * bits)) & mask);
+    }
+    return new String(chars);
+  }
+
+  // the heap is parseable in two ranges, [0, oldTop[ and [nurseryStart, nurseryTop[,
+  // so jump over the free space of the old generation
+  private int skipFreeSpace(int ref) {
+    return ref == oldTop ? nurseryStart : ref;
+  }
+
+  // minor collection, all live objects of the nursery are promoted in the old generation
+  private void collectYoung(Dictionary dict, Roots roots) {
+    var nurseryUsed = nurseryTop - nurseryStart;
+    if (nurseryUsed > nurseryStart - oldTop) {
+      // the survivors may not fit in the old generation
+      collect(dict, roots, 0);
+      return;
+    }
+
+    var start = System.nanoTime();
+    var promotedStart = oldTop;
+    IntUnaryOperator evacuate = value -> evacuate(value, dict);
+
+    // 1. copy the nursery objects referenced by the roots
+    roots.scan(evacuate);
+    scanViews(evacuate);
+
+    // 2. copy the nursery objects referenced by the remembered old objects
+    for (var i = 0; i < rememberedSize; i++) {
+      var ref = remembered[i];
+      scanFields(ref, dict, evacuate);
+      memory.set(ref + GC_OFFSET, GC_EMPTY);
+    }
+    rememberedSize = 0;
+
+    // 3. copy the nursery objects referenced by the promoted objects
+    for (var ref = promotedStart; ref < oldTop; ref += objectSize(ref, dict)) {
+      scanFields(ref, dict, evacuate);
+    }
+
+    var promoted = oldTop - promotedStart;
+    promotedBytes += (long) promoted * Integer.BYTES;
+    minorCollectionCount++;
+    resetNursery();
+    record(start, nurseryUsed - promoted);
+    if (Tracer.enabled(Tracer.HEAP, Tracer.INFO)) {
+      Tracer.trace(Tracer.HEAP, Tracer.INFO, "minor gc, " + promoted + " words promoted, " + (nurseryUsed - promoted) + " words reclaimed");
+    }
+  }
+
+  // if the value is a reference to a nursery object, copy the object in the old generation
+  // (only once) and return the new reference
+  private int evacuate(int value, Dictionary dict) {
+    if (!isReference(value)) {
+      return value;
+    }
+    var ref = decodeReference(value);
+    if (ref < nurseryStart) {
+      return value;
+    }
+    var forward = memory.get(ref + GC_OFFSET);
+    if (forward == GC_EMPTY) {
+      var size = objectSize(ref, dict);
+      forward = oldTop;
+      memory.copy(ref, forward, size);
+      oldTop += size;
+      memory.set(ref + GC_OFFSET, forward);
+    }
+    return encodeReference(forward);
+  }
+
+  private void scanFields(int ref, Dictionary dict, IntUnaryOperator visitor) {
+    var end = ref + OBJECT_HEADER_SIZE + fieldCount(ref, dict);
+    for (var i = ref + OBJECT_HEADER_SIZE; i < end; i++) {
+      memory.set(i, visitor.applyAsInt(memory.get(i)));
+    }
+  }
+
+  // full collection then grow the heap if necessary
+  private void collect(Dictionary dict, Roots roots, int required) {
+    collect(dict, roots);
+    if (oldTop + required > nurseryStart || (long) oldTop * 100 > (long) memory.size() * growthThreshold) {
+      grow(oldTop + required);
+    }
+  }
+
+  // grow the heap so the live data are below the threshold, never above the maximum size
+  private void grow(int required) {
+    var newSize = (long) memory.size();
+    while (newSize < maxSize
+        && (newSize - nurserySize((int) newSize) < required || required * 100L > newSize * growthThreshold)) {
+      newSize <<= 1;
+    }
+    newSize = Math.min(newSize, maxSize);
+    if (newSize == memory.size()) {
+      return;
+    }
+    // the nursery is empty, only the old generation needs to be copied
+    memory = memory.resize((int) newSize);
+    resetNursery();
+    growCount++;
+    if (Tracer.enabled(Tracer.HEAP, Tracer.INFO)) {
+      Tracer.trace(Tracer.HEAP, Tracer.INFO, "heap grown to " + newSize + " words");
+    }
+  }
+
+  /**
+   * Runs a full garbage collection, after the collection the nursery is empty.
+   */
+  public void collect(Dictionary dict, Roots roots) {
+    var start = System.nanoTime();
+    var used = used();
+
+    // 0. the remembered set is useless, the nursery will be empty
+    for (var i = 0; i < rememberedSize; i++) {
+      memory.set(remembered[i] + GC_OFFSET, GC_EMPTY);
+    }
+    rememberedSize = 0;
+
+    // 1. mark all objects and handles reachable from the roots, free the other handles
+    mark(dict, roots);
+    dict.sweepHandles();
+
+    // 2. compute the new address of all live objects and store it in the GC slot
+    var newTop = 0;
+    for (var ref = skipFreeSpace(0); ref < nurseryTop; ref = skipFreeSpace(ref + objectSize(ref, dict))) {
+      if (memory.get(ref + GC_OFFSET) == GC_MARK) {
+        memory.set(ref + GC_OFFSET, newTop);
+        newTop += objectSize(ref, dict);
+      }
+    }
+
+    // 3. check if memory can be freed
+    if (newTop == used && nurseryTop == nurseryStart) {
+      for (var ref = 0; ref < oldTop; ref += objectSize(ref, dict)) {
+        memory.set(ref + GC_OFFSET, GC_EMPTY);
+      }
+      collectionCount++;
+      record(start, 0);
+      return;
+    }
+
+    // 4. rewrite all field references of the live objects
+    IntUnaryOperator forward = value -> isReference(value)
+        ? encodeReference(memory.get(decodeReference(value) + GC_OFFSET))
+        : value;
+    for (var ref = skipFreeSpace(0); ref < nurseryTop; ref = skipFreeSpace(ref + objectSize(ref, dict))) {
+      if (memory.get(ref + GC_OFFSET) != GC_EMPTY) {
+        scanFields(ref, dict, forward);
+      }
+    }
+
+    // 5. rewrite the roots
+    roots.scan(forward);
+    scanViews(forward);
+
+    // 6. move the live objects to their new addresses
+    for (var ref = skipFreeSpace(0); ref < nurseryTop; ) {
+      var size = objectSize(ref, dict);
+      var newRef = memory.get(ref + GC_OFFSET);
+      if (newRef != GC_EMPTY) {
+        memory.copy(ref, newRef, size);
+        memory.set(newRef + GC_OFFSET, GC_EMPTY);
+      }
+      ref = skipFreeSpace(ref + size);
+    }
+
+    oldTop = newTop;
+    resetNursery();
+    collectionCount++;
+    record(start, used - newTop);
+    if (Tracer.enabled(Tracer.HEAP, Tracer.INFO)) {
+      Tracer.trace(Tracer.HEAP, Tracer.INFO, "full gc, " + newTop + " words live, " + (used - newTop) + " words reclaimed");
+    }
+  }
+
+  private void mark(Dictionary dict, Roots roots) {
+    IntUnaryOperator marker = value -> {
+      markValue(value, dict);
+      return value;
+    };
+    roots.scan(marker);
+    scanViews(marker);
+    while (top != 0) {
+      var ref = worklist[--top];
+      var end = ref + OBJECT_HEADER_SIZE + fieldCount(ref, dict);
+      for (var i = ref + OBJECT_HEADER_SIZE; i < end; i++) {
+        markValue(memory.get(i), dict);
+      }
+    }
+  }
+
+  private void markValue(int value, Dictionary dict) {
+    if (isHandle(value)) {
+      dict.markHandle(decodeHandle(value));
+      return;
+    }
+    if (!isReference(value)) {
+      return;
+    }
+    var ref = decodeReference(value);
+    if (memory.get(ref + GC_OFFSET) != GC_EMPTY) {
+      return;  // already marked
+    }
+    memory.set(ref + GC_OFFSET, GC_MARK);
+    if (top == worklist.length) {
+      worklist = Arrays.copyOf(worklist, top << 1);
+    }
+    worklist[top++] = ref;
+  }
+
+  private void record(long start, int reclaimedWords) {
+    var pause = System.nanoTime() - start;
+    totalPauseNanos += pause;
+    maxPauseNanos = Math.max(maxPauseNanos, pause);
+    reclaimedBytes += (long) reclaimedWords * Integer.BYTES;
+  }
+
+  /**
+   * @return the size of the heap in words.
+   */
+  public int capacity() {
+    return memory.size();
+  }
+
+  public int maxCapacity() {
+    return maxSize;
+  }
+
+  /**
+   * @return the size of the nursery in words.
+   */
+  public int nurseryCapacity() {
+    return memory.size() - nurseryStart;
+  }
+
+  /**
+   * @return the number of words currently allocated.
+   */
+  public int used() {
+    return oldTop + nurseryTop - nurseryStart;
+  }
+
+  /**
+   * @return the maximum number of words allocated at the same time.
+   */
+  public int peakUsed() {
+    return peakUsed;
+  }
+
+  public int growCount() {
+    return growCount;
+  }
+
+  /**
+   * @return the number of full collections.
+   */
+  public int collectionCount() {
+    return collectionCount;
+  }
+
+  public int minorCollectionCount() {
+    return minorCollectionCount;
+  }
+
+  public long totalPauseNanos() {
+    return totalPauseNanos;
+  }
+
+  public long maxPauseNanos() {
+    return maxPauseNanos;
+  }
+
+  public long reclaimedBytes() {
+    return reclaimedBytes;
+  }
+
+  /**
+   * @return the number of bytes copied from the nursery to the old generation.
+   */
+  public long promotedBytes() {
+    return promotedBytes;
+  }
+}
@@ -0,0 +1,75 @@
+package fr.umlv.smalljs.stackinterp;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The memory used to store the words of a {@link Heap}.
+ *
+ * By default the memory is a Java int array, it can also be allocated outside of the Java heap
+ * so the objects of a script are not scanned by the Java GC, or mapped on a file
+ * so the heap can be inspected from outside the process.
+ */
+public interface HeapMemory {
+  int get(int index);
+
+  void set(int index, int value);
+
+  /**
+   * @return the size of the memory in words.
+   */
+  int size();
+
+  /**
+   * Copies {@code length} words from {@code srcIndex} to {@code dstIndex}, the two ranges may overlap.
+   */
+  void copy(int srcIndex, int dstIndex, int length);
+
+  /**
+   * Returns a memory of {@code newSize} words that starts with the content of the current memory,
+   * the current memory should not be used anymore.
+   */
+  HeapMemory resize(int newSize);
+
+  /**
+   * Allocates the memory of a heap.
+   */
+  @FunctionalInterface
+  interface Factory {
+    HeapMemory allocate(int size);
+  }
+
+  /**
+   * @return a factory of memories backed by a Java int array.
+   */
+  static Factory onHeap() {
+    return ArrayHeapMemory::new;
+  }
+
+  /**
+   * @return a factory of memories allocated outside of the Java heap.
+   */
+  static Factory offHeap() {
+    return BufferHeapMemory::allocateDirect;
+  }
+
+  /**
+   * Returns a factory of memories mapped on a file, the words are stored using the native byte order.
+   * The factory can only allocate the memory of one heap, two heaps mapped on the same file
+   * would overwrite each other, so a {@link VMConfig} using this factory can only create one {@link VM}.
+   * @param file the file, created if it doesn't exist, its content is overwritten.
+   * @throws IllegalStateException if the factory allocates a second memory.
+   */
+  static Factory mapped(Path file) {
+    requireNonNull(file);
+    var used = new AtomicBoolean();
+    return size -> {
+      if (used.getAndSet(true)) {
+        throw new IllegalStateException("the file " + file + " is already mapped by another heap");
+      }
+      return BufferHeapMemory.map(file, size);
+    };
+  }
+}
@@ -0,0 +1,71 @@
+package fr.umlv.smalljs.stackinterp;
+
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+
+import java.util.function.BiConsumer;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.TagValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeAnyValue;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeAnyValue;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A view of an object of the {@link Heap} seen by the native functions.
+ * The fields are decoded when they are read and encoded in the heap when they are registered,
+ * nothing is copied. The view is a root of the heap while it is reachable, the GC updates
+ * the address of the object when the object is moved.
+ */
+final class HeapObjectView extends JSObject {
+  private final Heap heap;
+  private final Dictionary dict;
+  int ref;  // updated by the GC
+
+  HeapObjectView(Heap heap, Dictionary dict, int ref) {
+    this.heap = requireNonNull(heap);
+    this.dict = requireNonNull(dict);
+    this.ref = ref;
+    heap.pin(this);
+  }
+
+  Heap heap() {
+    return heap;
+  }
+
+  private JSObject clazz() {
+    return (JSObject) decodeDictObject(heap.get(ref), dict);
+  }
+
+  private Object field(int slot) {
+    return decodeAnyValue(heap.get(ref + OBJECT_HEADER_SIZE + slot), dict, heap);
+  }
+
+  @Override
+  public Object lookup(String key) {
+    var slot = clazz().lookup(requireNonNull(key));
+    return slot == UNDEFINED ? UNDEFINED : field((int) slot);
+  }
+
+  @Override
+  public void register(String key, Object value) {
+    var slot = clazz().lookup(requireNonNull(key));
+    if (slot == UNDEFINED) {
+      throw new Failure("invalid field " + key);
+    }
+    var encoded = encodeAnyValue(requireNonNull(value), dict, heap);
+    heap.set(ref + OBJECT_HEADER_SIZE + (int) slot, encoded);
+    heap.writeBarrier(ref, encoded);
+  }
+
+  @Override
+  public int length() {
+    return clazz().length();
+  }
+
+  @Override
+  public void forEach(BiConsumer<? super String, Object> action) {
+    clazz().forEach((key, slot) -> action.accept(key, field((int) slot)));
+  }
+}
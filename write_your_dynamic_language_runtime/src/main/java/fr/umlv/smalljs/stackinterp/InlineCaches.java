@@ -0,0 +1,244 @@
+package fr.umlv.smalljs.stackinterp;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+import java.lang.invoke.SwitchPoint;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The inline caches of the instructions of a {@link Code}.
+ *
+ * The first time a GET or a PUT is executed, it is rewritten into a GET_MONO or PUT_MONO
+ * that references a field site, the site caches the slot of the field for the classes seen.
+ * Once the site contains more than one class the instruction becomes polymorphic
+ * and if there are more than {@link #POLYMORPHIC_SIZE} classes the instruction becomes megamorphic
+ * and always does a lookup.
+ *
+ * The first time a LOOKUP is executed, it is rewritten into a LOOKUP_CACHED that references
+ * a global site, the site caches the encoded value of the global until the switch point
+ * of the global environment is invalidated by a register.
+ *
+ * The first time a FUNCALL is executed, it is rewritten into a FUNCALL_CACHED that references
+ * a call site, the site caches the last function called, its code and its checked arity.
+ * A TAILCALL is rewritten the same way into a TAILCALL_CACHED.
+ *
+ * A FOLDED or a JUMP_FOLDED references a folded site, the site contains the value of a call of operators
+ * on constants computed by the {@link fr.umlv.smalljs.ast.ConstantFolder}, the value is used until the switch point
+ * of the global environment is invalidated, then the operators are checked again. If an operator has been
+ * redefined, the instruction is rewritten into an UNFOLDED and the code of the call that follows it is executed.
+ *
+ * The superinstructions created by the {@link Peephole} optimizer have their sites allocated
+ * upfront, they never change of opcode, a megamorphic superinstruction does a lookup for each miss.
+ */
+public final class InlineCaches {
+  static final int POLYMORPHIC_SIZE = 4;
+
+  // a field site is an array [field_name, entry_count, class_0, slot_0, ... class_3, slot_3]
+  // with the field name and the classes encoded as dictionary objects
+  static final int FIELD_NAME = 0;
+  static final int ENTRY_COUNT = 1;
+  static final int FIRST_ENTRY = 2;
+
+  // slot of a field that doesn't exist
+  static final int NO_FIELD = -1;
+  // slot returned when the class is not in the cache
+  static final int MISS = -2;
+
+  // a switch point already invalidated, so a new global site is resolved on its first execution
+  private static final SwitchPoint INVALIDATED = new SwitchPoint();
+  static {
+    SwitchPoint.invalidateAll(new SwitchPoint[] { INVALIDATED });
+  }
+
+  static final class GlobalSite {
+    final int name;
+    int value;
+    // the global environment of the value, a function may be executed with several environments
+    JSObject globalEnv;
+    SwitchPoint switchPoint = INVALIDATED;
+    // for an intrinsic instruction, the encoded builtin function
+    int intrinsic;
+
+    GlobalSite(int name) {
+      this.name = name;
+    }
+
+    // true if the value is the one of the global in globalEnv
+    boolean isValid(JSObject globalEnv) {
+      return this.globalEnv == globalEnv && !switchPoint.hasBeenInvalidated();
+    }
+  }
+
+  static final class CallSite {
+    final int argumentCount;
+    // the cached function encoded as a dictionary constant, 0 if no function is cached,
+    // 0 is also the reference 0 so a hit must be checked with isHit()
+    int qualifier;
+    JSObject function;
+    int functionId;
+    // null if the function is native
+    Code code;
+    int hitCount;
+    int missCount;
+
+    CallSite(int argumentCount) {
+      this.argumentCount = argumentCount;
+    }
+
+    // true if the function of the qualifier is the cached one
+    boolean isHit(int qualifier) {
+      return qualifier == this.qualifier && TagValues.isConstant(qualifier);
+    }
+  }
+
+  static final class FoldedSite {
+    // the encoded value of the call
+    final int value;
+    // the operators used to compute the value by name
+    final Map<String, Object> operators;
+    // the global environment where the operators have been checked
+    JSObject globalEnv;
+    SwitchPoint switchPoint = INVALIDATED;
+    // true if an operator has been redefined, only used by the handlers that can not be rewritten
+    boolean unfolded;
+
+    FoldedSite(int value, Map<String, Object> operators) {
+      this.value = value;
+      this.operators = operators;
+    }
+
+    // true if the operators have been checked in globalEnv and have not changed since
+    boolean isValid(JSObject globalEnv) {
+      return this.globalEnv == globalEnv && !switchPoint.hasBeenInvalidated();
+    }
+  }
+
+  private int[][] fieldSites = new int[4][];
+  private int fieldSiteCount;
+  private GlobalSite[] globalSites = new GlobalSite[4];
+  private int globalSiteCount;
+  private CallSite[] callSites = new CallSite[4];
+  private int callSiteCount;
+  private FoldedSite[] foldedSites = new FoldedSite[4];
+  private int foldedSiteCount;
+
+  int newFieldSite(int fieldName) {
+    if (fieldSiteCount == fieldSites.length) {
+      fieldSites = Arrays.copyOf(fieldSites, fieldSiteCount << 1);
+    }
+    // a class encoded as a dictionary object is never 0
+    var site = new int[FIRST_ENTRY + 2 * POLYMORPHIC_SIZE];
+    site[FIELD_NAME] = fieldName;
+    fieldSites[fieldSiteCount] = site;
+    return fieldSiteCount++;
+  }
+
+  int[] fieldSite(int index) {
+    return fieldSites[index];
+  }
+
+  int newGlobalSite(int name) {
+    if (globalSiteCount == globalSites.length) {
+      globalSites = Arrays.copyOf(globalSites, globalSiteCount << 1);
+    }
+    globalSites[globalSiteCount] = new GlobalSite(name);
+    return globalSiteCount++;
+  }
+
+  GlobalSite globalSite(int index) {
+    return globalSites[index];
+  }
+
+  int newCallSite(int argumentCount) {
+    if (callSiteCount == callSites.length) {
+      callSites = Arrays.copyOf(callSites, callSiteCount << 1);
+    }
+    callSites[callSiteCount] = new CallSite(argumentCount);
+    return callSiteCount++;
+  }
+
+  CallSite callSite(int index) {
+    return callSites[index];
+  }
+
+  int newFoldedSite(int value, Map<String, Object> operators) {
+    if (foldedSiteCount == foldedSites.length) {
+      foldedSites = Arrays.copyOf(foldedSites, foldedSiteCount << 1);
+    }
+    foldedSites[foldedSiteCount] = new FoldedSite(value, operators);
+    return foldedSiteCount++;
+  }
+
+  FoldedSite foldedSite(int index) {
+    return foldedSites[index];
+  }
+
+  static int polymorphicSlot(int[] site, int vClass) {
+    var end = FIRST_ENTRY + 2 * site[ENTRY_COUNT];
+    for (var i = FIRST_ENTRY; i < end; i += 2) {
+      if (site[i] == vClass) {
+        return site[i + 1];
+      }
+    }
+    return MISS;
+  }
+
+  /**
+   * Adds an entry to a field site.
+   * @return false if the site is full.
+   */
+  static boolean addEntry(int[] site, int vClass, int slot) {
+    var count = site[ENTRY_COUNT];
+    if (count == POLYMORPHIC_SIZE) {
+      return false;
+    }
+    site[FIRST_ENTRY + 2 * count] = vClass;
+    site[FIRST_ENTRY + 2 * count + 1] = slot;
+    site[ENTRY_COUNT] = count + 1;
+    return true;
+  }
+
+  /**
+   * @return the number of GET/PUT instructions that have been quickened.
+   */
+  public int fieldSiteCount() {
+    return fieldSiteCount;
+  }
+
+  /**
+   * @return the number of LOOKUP instructions that have been quickened.
+   */
+  public int globalSiteCount() {
+    return globalSiteCount;
+  }
+
+  /**
+   * @return the number of FUNCALL instructions that have been quickened.
+   */
+  public int callSiteCount() {
+    return callSiteCount;
+  }
+
+  /**
+   * @return the number of calls that found their function in the call site.
+   */
+  public long callHitCount() {
+    var count = 0L;
+    for (var i = 0; i < callSiteCount; i++) {
+      count += callSites[i].hitCount;
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of calls that did not find their function in the call site.
+   */
+  public long callMissCount() {
+    var count = 0L;
+    for (var i = 0; i < callSiteCount; i++) {
+      count += callSites[i].missCount;
+    }
+    return count;
+  }
+}
@@ -1,19 +1,23 @@
 package fr.umlv.smalljs.stackinterp;
 
+import fr.umlv.smalljs.ast.ConstantFolder;
 import fr.umlv.smalljs.ast.Expr;
 import fr.umlv.smalljs.ast.Expr.*;
 import fr.umlv.smalljs.ast.VoidVisitor;
 import fr.umlv.smalljs.rt.Failure;
 import fr.umlv.smalljs.rt.JSObject;
+import fr.umlv.smalljs.rt.Tracer;
 
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
 import static fr.umlv.smalljs.stackinterp.Instructions.*;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeConstant;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
-import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
 
 public class InstrRewriter {
   static class InstrBuffer {
@@ -37,7 +41,9 @@ public class InstrRewriter {
     }
 
     int placeholder() {
-      return size++;
+      var position = size;
+      emit(0);
+      return position;
     }
 
     void patch(int position, int label) {
@@ -49,41 +55,96 @@ public class InstrRewriter {
     }
   }
 
-  private InstrRewriter(Dictionary dict, InstrBuffer buffer, JSObject globalEnv) {
-    this.visitor = createVisitor(buffer, dict, globalEnv);
+  // operators of the global environment that have an intrinsic instruction
+  static final Map<String, Integer> INTRINSICS = Map.ofEntries(
+    Map.entry("+", ADD), Map.entry("-", SUB), Map.entry("*", MUL), Map.entry("/", DIV), Map.entry("%", REM),
+    Map.entry("<", LT), Map.entry("<=", LE), Map.entry(">", GT), Map.entry(">=", GE),
+    Map.entry("==", EQ), Map.entry("!=", NE));
+
+  private InstrRewriter(Dictionary dict, InstrBuffer buffer, JSObject globalEnv, VMConfig config, InlineCaches inlineCaches) {
+    this.visitor = createVisitor(buffer, dict, globalEnv, config, inlineCaches);
   }
 
   public static JSObject createFunction(Optional<String> name, List<String> parameters, Block body, Dictionary dict, JSObject globalEnv) {
+    return createFunction(name, parameters, body, dict, globalEnv, VMConfig.DEFAULT);
+  }
+
+  public static JSObject createFunction(Optional<String> name, List<String> parameters, Block body, Dictionary dict, JSObject globalEnv,
+                                        VMConfig config) {
     var env = JSObject.newEnv(null);
 
     env.register("this", 0);
     for (var parameter : parameters) {
       env.register(parameter, env.length());
     }
+    if (config.constantFolding()) {
+      body = ConstantFolder.fold(body, builtins(globalEnv));
+    }
     visitVariable(body, env);
 
     var buffer = new InstrBuffer();
-    var rewriter = new InstrRewriter(dict, buffer, globalEnv);
+    var inlineCaches = new InlineCaches();
+    var rewriter = new InstrRewriter(dict, buffer, globalEnv, config, inlineCaches);
     rewriter.rewrite(body, env);
     buffer.emit(CONST)
       .emit(encodeDictObject(UNDEFINED, dict));
     buffer.emit(RET);
 
     var instrs = buffer.toInstrs();
-    Instructions.dump(instrs, dict);
+    if (config.superinstructions()) {
+      instrs = Peephole.optimize(instrs, inlineCaches, dict);
+    }
+    if (Tracer.enabled(Tracer.CODEGEN, Tracer.DEBUG)) {
+      Tracer.trace(Tracer.CODEGEN, Tracer.DEBUG, "function " + name.orElse("lambda") + "\n" + Instructions.dump(instrs, dict));
+    }
 
-    var code = new Code(instrs, parameters.size() + 1 /* this */, env.length());
-    var function = JSObject.newFunction(name.orElse("lambda"), (self, receiver, args) -> {
-      if (receiver != UNDEFINED || args.length != 0) {
-        throw new Failure("can not interpret a function with a receiver and/or arguments");
-      }
-      return StackInterpreter.execute(self, dict, globalEnv);
-    });
+    var maxStack = StackAnalyzer.maxStack(instrs, env.length(), inlineCaches, dict);
+    var code = new Code(instrs, parameters.size() + 1 /* this */, env.length(), maxStack, inlineCaches);
+    var function = JSObject.newFunction(name.orElse("lambda"),
+        (self, receiver, args) -> StackInterpreter.call(self, receiver, args, dict, globalEnv, config));
     function.register("__code__", code);
     return function;
   }
 
-  private static void visitVariable(Expr expr, JSObject env) {
+  // only the builtin operators of the global environment when the code is generated are computed,
+  // a constant condition is true if it is not 0 like for a JUMP_IF_FALSE
+  private static ConstantFolder.Builtins builtins(JSObject globalEnv) {
+    return new ConstantFolder.Builtins() {
+      @Override
+      public Object apply(String name, Object left, Object right) {
+        var operator = globalEnv.lookup(name);
+        if (!StackInterpreter.isBuiltinOperator(name, operator)) {
+          return null;
+        }
+        try {
+          return ((JSObject) operator).invoke(UNDEFINED, new Object[] { left, right });
+        } catch (RuntimeException e) {
+          // computed at runtime, where the error is reported
+          return null;
+        }
+      }
+
+      @Override
+      public boolean isTrue(Object constant) {
+        return InstrRewriter.isTrue(constant);
+      }
+    };
+  }
+
+  private static boolean isTrue(Object constant) {
+    return !Integer.valueOf(0).equals(constant);
+  }
+
+  // the folded site records the operators used to compute the value
+  private static int newFoldedSite(Folded folded, JSObject globalEnv, Dictionary dict, InlineCaches inlineCaches) {
+    var operators = new LinkedHashMap<String, Object>();
+    for (var name : ConstantFolder.operators(folded)) {
+      operators.put(name, globalEnv.lookup(name));
+    }
+    return inlineCaches.newFoldedSite(encodeConstant(folded.value(), dict), operators);
+  }
+
+  static void visitVariable(Expr expr, JSObject env) {
     VARIABLE_VISITOR.visit(expr, env);
   }
 
@@ -99,8 +160,12 @@ public class InstrRewriter {
     .when(FunCall.class, (funCall, env) -> {
       // do nothing
     })
+    .when(Folded.class, (folded, env) -> {
+      // do nothing
+    })
     .when(LocalVarAssignment.class, (localVarAssignment, env) -> {
-      if (localVarAssignment.declaration()) {
+      // a variable declared twice has only one slot
+      if (localVarAssignment.declaration() && env.lookup(localVarAssignment.name()) == UNDEFINED) {
         env.register(localVarAssignment.name(), env.length());
       }
     })
@@ -135,6 +200,11 @@ public class InstrRewriter {
   }
 
   public static VoidVisitor<JSObject> createVisitor(InstrBuffer buffer, Dictionary dict, JSObject globalEnv) {
+    return createVisitor(buffer, dict, globalEnv, VMConfig.DEFAULT, new InlineCaches());
+  }
+
+  public static VoidVisitor<JSObject> createVisitor(InstrBuffer buffer, Dictionary dict, JSObject globalEnv, VMConfig config,
+                                                    InlineCaches inlineCaches) {
     var visitor = new VoidVisitor<JSObject>();
     visitor.when(Block.class, (block, env) -> {
       // for each expression of the block
@@ -152,21 +222,43 @@ public class InstrRewriter {
         // throw new UnsupportedOperationException("TODO Literal");
         //  get the literal value
         var value = literal.value();
-        // test if it's a positive integers
-        if (value instanceof Integer && ((Integer) value) >= 0) {
-          // emit a small int
-          buffer//
-            .emit(CONST)
-            .emit(encodeSmallInt((int) value));
-        } else {
-          // emit a dictionary object
-          buffer//
-            .emit(CONST)
-            .emit(encodeDictObject(value, dict));
-        }
+        // emit a small int if the value is an integer that fits, a dictionary object otherwise
+        buffer//
+          .emit(CONST)
+          .emit(encodeConstant(value, dict));
+      })
+      .when(Folded.class, (folded, env) -> {
+        // the value is pushed while the operators are the ones used by the ConstantFolder,
+        // otherwise the code of the call that follows is executed
+        var index = newFoldedSite(folded, globalEnv, dict, inlineCaches);
+        var endPlaceHolder = buffer.emit(FOLDED)
+          .placeholder();
+        buffer.emit(index);
+        visitor.visit(ConstantFolder.unfold(folded), env);
+        buffer.patch(endPlaceHolder, buffer.label());
       })
       .when(FunCall.class, (funCall, env) -> {
         // throw new UnsupportedOperationException("TODO FunCall");
+        // an operator of the global environment is called with an intrinsic instruction
+        // followed by the FUNCALL used if the intrinsic can not be applied
+        if (config.intrinsics()
+            && funCall.args().size() == 2
+            && funCall.qualifier() instanceof LocalVarAccess
+            && env.lookup(((LocalVarAccess) funCall.qualifier()).name()) == UNDEFINED) {
+          var name = ((LocalVarAccess) funCall.qualifier()).name();
+          var intrinsic = INTRINSICS.get(name);
+          // only if the operator is the builtin one, otherwise the call reports a missing or redefined operator
+          if (intrinsic != null && StackInterpreter.isBuiltinOperator(name, globalEnv.lookup(name))) {
+            for (var arg : funCall.args()) {
+              visitor.visit(arg, env);
+            }
+            var index = inlineCaches.newGlobalSite(encodeDictObject(name, dict));
+            inlineCaches.globalSite(index).intrinsic = encodeDictObject(globalEnv.lookup(name), dict);
+            buffer.emit(intrinsic).emit(index);
+            buffer.emit(FUNCALL).emit(2);
+            return;
+          }
+        }
         // visit the qualifier
         visitor.visit(funCall.qualifier(), env);
         // emit undefined
@@ -220,7 +312,7 @@ public class InstrRewriter {
       .when(Fun.class, (fun, env) -> {
         //throw new UnsupportedOperationException("TODO Fun");
         // create a JSObject function
-        var function = createFunction(fun.name(), fun.parameters(), fun.body(), dict, globalEnv);
+        var function = createFunction(fun.name(), fun.parameters(), fun.body(), dict, globalEnv, config);
         // emit a const on the function
         buffer//
           .emit(CONST)
@@ -238,16 +330,33 @@ public class InstrRewriter {
         //throw new UnsupportedOperationException("TODO Return");
         // emit a visit of the expression
         visitor.visit(_return.expr(), env);
+        // a call in tail position reuses the frame of the current function,
+        // the call is the last instruction, FUNCALL argument_count
+        if (_return.expr() instanceof FunCall || _return.expr() instanceof MethodCall) {
+          buffer.patch(buffer.label() - 2, TAILCALL);
+        }
         // emit a RET
         buffer.emit(RET);
       })
       .when(If.class, (_if, env) -> {
         //throw new UnsupportedOperationException("TODO If");
-        // visit the condition
-        visitor.visit(_if.condition(), env);
+        // a folded condition jumps to the live branch while the operators are unchanged
+        var foldedPlaceHolder = -1;
+        if (_if.condition() instanceof Folded) {
+          var folded = (Folded) _if.condition();
+          var index = newFoldedSite(folded, globalEnv, dict, inlineCaches);
+          foldedPlaceHolder = buffer.emit(JUMP_FOLDED)
+            .placeholder();
+          buffer.emit(index);
+          visitor.visit(ConstantFolder.unfold(folded), env);
+        } else {
+          // visit the condition
+          visitor.visit(_if.condition(), env);
+        }
         // emit a JUMP_IF_FALSE and a placeholder
         var falsePlaceHolder = buffer.emit(JUMP_IF_FALSE)
           .placeholder();
+        var trueLabel = buffer.label();
         // visit the true block
         visitor.visit(_if.trueBlock(), env);
         // emit a goto with another placeholder
@@ -255,6 +364,10 @@ public class InstrRewriter {
           .placeholder();
         // patch the first placeholder
         buffer.patch(falsePlaceHolder, buffer.label());
+        if (foldedPlaceHolder != -1) {
+          var isTrue = isTrue(((Folded) _if.condition()).value());
+          buffer.patch(foldedPlaceHolder, isTrue ? trueLabel : buffer.label());
+        }
         // visit the false block
         visitor.visit(_if.falseBlock(), env);
         // patch the second place holder
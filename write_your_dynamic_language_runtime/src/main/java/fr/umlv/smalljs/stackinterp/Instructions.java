@@ -16,14 +16,89 @@ public interface Instructions {
 	int NEW = 13; // NEW dictionary_index (JSObject object)
 	int GET = 14; // GET dictionary_index (String field_name)
 	int PUT = 15; // PUT dictionary_index (String field_name)
+	int TAILCALL = 16; // TAILCALL argument_count, always followed by a RET used if the function is native
+	// a call of operators on constants computed by the ConstantFolder, followed by the code of the call
+	// that is only executed if an operator has been redefined
+	int FOLDED = 17; // FOLDED instr_index folded_site_index, push the value and jump after the code of the call
+	int JUMP_FOLDED = 18; // JUMP_FOLDED instr_index folded_site_index, jump to the live branch of an if
 
 	int PRINT = 20;
 
-	static void dump(int[] instrs, Dictionary dict) {
+	// quickened instructions, never generated by the InstrRewriter
+	int GET_MONO = 32; // GET_MONO field_site_index
+	int GET_POLY = 33; // GET_POLY field_site_index
+	int GET_MEGA = 34; // GET_MEGA field_site_index
+	int PUT_MONO = 35; // PUT_MONO field_site_index
+	int PUT_POLY = 36; // PUT_POLY field_site_index
+	int PUT_MEGA = 37; // PUT_MEGA field_site_index
+	int LOOKUP_CACHED = 38; // LOOKUP_CACHED global_site_index
+	int FUNCALL_CACHED = 39; // FUNCALL_CACHED call_site_index
+	int TAILCALL_CACHED = 44; // TAILCALL_CACHED call_site_index, the superinstructions use 40 to 43
+	int UNFOLDED = 45; // UNFOLDED instr_index folded_site_index, a FOLDED or a JUMP_FOLDED with a redefined operator
+
+	// superinstructions, generated by the Peephole optimizer
+	int LOAD_GET = 40; // LOAD_GET slot_index field_site_index
+	int GLOBAL_CALLEE = 41; // GLOBAL_CALLEE global_site_index
+	int GET_METHOD = 42; // GET_METHOD field_site_index
+	int STORE_LOAD = 43; // STORE_LOAD slot_index slot_index
+
+	// intrinsics on small ints, always followed by a FUNCALL 2 used as fallback
+	int ADD = 50; // ADD global_site_index
+	int SUB = 51; // SUB global_site_index
+	int MUL = 52; // MUL global_site_index
+	int DIV = 53; // DIV global_site_index
+	int REM = 54; // REM global_site_index
+	int LT = 55; // LT global_site_index
+	int LE = 56; // LE global_site_index
+	int GT = 57; // GT global_site_index
+	int GE = 58; // GE global_site_index
+	int EQ = 59; // EQ global_site_index
+	int NE = 60; // NE global_site_index
+
+	/**
+	 * Returns the number of ints used by an instruction, the opcode and its operands.
+	 */
+	static int length(int opcode) {
+		switch (opcode) {
+		case DUP:
+		case POP:
+		case SWAP:
+		case RET:
+		case PRINT:
+			return 1;
+		case LOAD_GET:
+		case STORE_LOAD:
+		case FOLDED:
+		case JUMP_FOLDED:
+		case UNFOLDED:
+			return 3;
+		default:
+			return 2;
+		}
+	}
+
+	/**
+	 * Returns the name of an opcode.
+	 */
+	static String name(int opcode) {
 		var strings = new String[] { null, "CONST", "LOOKUP", "REGISTER", "LOAD", "STORE", "DUP", "POP", "SWAP",
-				"FUNCALL", "RET", "GOTO", "JUMP_IF_FALSE", "NEW", "GET", "PUT", null, null, null, null, "PRINT" };
+				"FUNCALL", "RET", "GOTO", "JUMP_IF_FALSE", "NEW", "GET", "PUT", "TAILCALL", "FOLDED", "JUMP_FOLDED", null, "PRINT",
+				null, null, null, null, null, null, null, null, null, null, null,
+				"GET_MONO", "GET_POLY", "GET_MEGA", "PUT_MONO", "PUT_POLY", "PUT_MEGA",
+				"LOOKUP_CACHED", "FUNCALL_CACHED",
+				"LOAD_GET", "GLOBAL_CALLEE", "GET_METHOD", "STORE_LOAD", "TAILCALL_CACHED", "UNFOLDED",
+				null, null, null, null,
+				"ADD", "SUB", "MUL", "DIV", "REM", "LT", "LE", "GT", "GE", "EQ", "NE" };
+		return opcode >= 0 && opcode < strings.length && strings[opcode] != null ? strings[opcode] : "UNKNOWN " + opcode;
+	}
+
+	/**
+	 * Returns a textual representation of the instructions.
+	 */
+	static String dump(int[] instrs, Dictionary dict) {
+		var builder = new StringBuilder();
 		for (var pc = 0; pc < instrs.length;) {
-			System.err.print(pc + " ");
+			builder.append(pc).append(' ');
 			var instr = instrs[pc++];
 			switch (instr) {
 			case DUP: // no-arg instr
@@ -31,16 +106,50 @@ public interface Instructions {
 			case SWAP:
 			case RET:
 			case PRINT:
-				System.err.println(strings[instr]);
+				builder.append(name(instr)).append('\n');
 				continue;
 
 			case LOAD: // int arg instr
 			case STORE:
 			case GOTO:
 			case JUMP_IF_FALSE:
-			case FUNCALL: {
+			case FUNCALL:
+			case TAILCALL:
+			case TAILCALL_CACHED:
+			case GET_MONO:
+			case GET_POLY:
+			case GET_MEGA:
+			case PUT_MONO:
+			case PUT_POLY:
+			case PUT_MEGA:
+			case LOOKUP_CACHED:
+			case FUNCALL_CACHED:
+			case GLOBAL_CALLEE:
+			case GET_METHOD:
+			case ADD:
+			case SUB:
+			case MUL:
+			case DIV:
+			case REM:
+			case LT:
+			case LE:
+			case GT:
+			case GE:
+			case EQ:
+			case NE: {
+				var operand = instrs[pc++];
+				builder.append(name(instr)).append(' ').append(operand).append('\n');
+				continue;
+			}
+
+			case LOAD_GET: // two int args instr
+			case STORE_LOAD:
+			case FOLDED:
+			case JUMP_FOLDED:
+			case UNFOLDED: {
 				var operand = instrs[pc++];
-				System.err.println(strings[instr] + " " + operand);
+				var operand2 = instrs[pc++];
+				builder.append(name(instr)).append(' ').append(operand).append(' ').append(operand2).append('\n');
 				continue;
 			}
 
@@ -50,16 +159,16 @@ public interface Instructions {
 			case GET:
 			case PUT: {
 				var operand = instrs[pc++];
-				System.err.println(strings[instr] + " " + TagValues.decodeDictObject(operand, dict));
+				builder.append(name(instr)).append(' ').append(TagValues.decodeDictObject(operand, dict)).append('\n');
 				continue;
 			}
 
 			case CONST: { // int or dictionary arg instr
 				var operand = instrs[pc++];
 				if (TagValues.isSmallInt(operand)) {
-					System.err.println(strings[instr] + " " + TagValues.decodeSmallInt(operand));
+					builder.append(name(instr)).append(' ').append(TagValues.decodeSmallInt(operand)).append('\n');
 				} else {
-					System.err.println(strings[instr] + " " + TagValues.decodeDictObject(operand, dict));
+					builder.append(name(instr)).append(' ').append(TagValues.decodeDictObject(operand, dict)).append('\n');
 				}
 				continue;
 			}
@@ -68,6 +177,6 @@ public interface Instructions {
 				throw new Error("unknown instr " + instr);
 			}
 		}
-		System.err.println();
+		return builder.toString();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,85 @@
+package fr.umlv.smalljs.stackinterp;
+
+import fr.umlv.smalljs.ast.Script;
+import fr.umlv.smalljs.rt.JSObject;
+
+import java.io.PrintStream;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An isolated execution context: a dictionary, a global environment and a {@link VM} (stack and heap)
+ * that are not shared with any other isolate, so several isolates can run scripts concurrently.
+ *
+ * Only the parsed {@link Script} can be shared between isolates, each isolate generates its own code
+ * because the instructions are quickened in place and the inline caches record the values of one global environment.
+ * The code of a script is generated once per isolate, the next executions of the script reuse it.
+ * An isolate runs one script at a time, the globals defined by a script are visible to the next scripts.
+ * A script can also be run by a {@link Fiber} that is suspended and resumed several times.
+ */
+public final class Isolate {
+  private final Dictionary dict = new Dictionary();
+  private final JSObject globalEnv;
+  private final VM vm;
+  // the main function of each script already executed
+  private final WeakHashMap<Script, JSObject> mainFunctions = new WeakHashMap<>();
+
+  public Isolate(PrintStream outStream, VMConfig config) {
+    this.globalEnv = StackInterpreter.createGlobalEnv(requireNonNull(outStream));
+    this.vm = new VM(requireNonNull(config));
+  }
+
+  public VM vm() {
+    return vm;
+  }
+
+  public JSObject globalEnv() {
+    return globalEnv;
+  }
+
+  /**
+   * Executes a script on the current thread.
+   * @param script a script, maybe shared with other isolates.
+   * @return the result of the script.
+   */
+  public synchronized Object execute(Script script) {
+    var function = mainFunction(script);
+    return StackInterpreter.execute(function, dict, globalEnv, vm);
+  }
+
+  /**
+   * Creates a fiber that executes a script, the fiber starts when it is resumed the first time.
+   * @param script a script, maybe shared with other isolates.
+   * @return a new fiber.
+   * @throws IllegalStateException if the engine of the isolate can not suspend an execution.
+   */
+  public synchronized Fiber spawn(Script script) {
+    if (vm.config().engine() != VMConfig.Engine.SWITCH) {
+      throw new IllegalStateException("the engine " + vm.config().engine() + " does not support fibers");
+    }
+    return new Fiber(this, mainFunction(script));
+  }
+
+  private JSObject mainFunction(Script script) {
+    return mainFunctions.computeIfAbsent(script,
+        __ -> StackInterpreter.createMainFunction(script, dict, globalEnv, vm.config()));
+  }
+
+  synchronized Object resume(Fiber fiber, Object value) {
+    return StackInterpreter.resume(fiber, value, dict, globalEnv, vm);
+  }
+
+  /**
+   * Executes a script asynchronously.
+   * @param script a script, maybe shared with other isolates.
+   * @param executor the executor that runs the script.
+   * @return a future of the result of the script.
+   */
+  public CompletableFuture<Object> submit(Script script, Executor executor) {
+    requireNonNull(script);
+    return CompletableFuture.supplyAsync(() -> execute(script), executor);
+  }
+}
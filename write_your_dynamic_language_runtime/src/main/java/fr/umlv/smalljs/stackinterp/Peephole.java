@@ -0,0 +1,86 @@
+package fr.umlv.smalljs.stackinterp;
+
+import java.util.Arrays;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.Instructions.*;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
+
+/**
+ * Fuses the common sequences of instructions generated by the {@link InstrRewriter} into superinstructions.
+ * <pre>
+ *   LOAD slot; GET field                -> LOAD_GET slot field_site
+ *   LOOKUP name; CONST undefined        -> GLOBAL_CALLEE global_site
+ *   DUP; GET name; SWAP                 -> GET_METHOD field_site
+ *   STORE slot; LOAD slot2              -> STORE_LOAD slot slot2
+ * </pre>
+ * A sequence is not fused if one of its instructions, apart from the first one, is the target of a jump.
+ */
+final class Peephole {
+  private Peephole() {
+    throw new AssertionError();
+  }
+
+  // the instructions with a jump target as first operand
+  private static boolean isJump(int opcode) {
+    return opcode == GOTO || opcode == JUMP_IF_FALSE || opcode == FOLDED || opcode == JUMP_FOLDED;
+  }
+
+  static int[] optimize(int[] instrs, InlineCaches inlineCaches, Dictionary dict) {
+    var undefined = encodeDictObject(UNDEFINED, dict);
+    var targets = new boolean[instrs.length + 1];
+    for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+      if (isJump(instrs[pc])) {
+        targets[instrs[pc + 1]] = true;
+      }
+    }
+
+    var buffer = new int[instrs.length];
+    var size = 0;
+    var newPCs = new int[instrs.length + 1];
+    for (var pc = 0; pc < instrs.length;) {
+      newPCs[pc] = size;
+      var opcode = instrs[pc];
+      var next = pc + Instructions.length(opcode);
+      var nextOpcode = next < instrs.length && !targets[next] ? instrs[next] : 0;
+      if (opcode == LOAD && nextOpcode == GET) {
+        buffer[size++] = LOAD_GET;
+        buffer[size++] = instrs[pc + 1];
+        buffer[size++] = inlineCaches.newFieldSite(instrs[next + 1]);
+        pc = next + 2;
+        continue;
+      }
+      if (opcode == LOOKUP && nextOpcode == CONST && instrs[next + 1] == undefined) {
+        buffer[size++] = GLOBAL_CALLEE;
+        buffer[size++] = inlineCaches.newGlobalSite(instrs[pc + 1]);
+        pc = next + 2;
+        continue;
+      }
+      if (opcode == DUP && nextOpcode == GET && next + 2 < instrs.length && !targets[next + 2] && instrs[next + 2] == SWAP) {
+        buffer[size++] = GET_METHOD;
+        buffer[size++] = inlineCaches.newFieldSite(instrs[next + 1]);
+        pc = next + 3;
+        continue;
+      }
+      if (opcode == STORE && nextOpcode == LOAD) {
+        buffer[size++] = STORE_LOAD;
+        buffer[size++] = instrs[pc + 1];
+        buffer[size++] = instrs[next + 1];
+        pc = next + 2;
+        continue;
+      }
+      System.arraycopy(instrs, pc, buffer, size, next - pc);
+      size += next - pc;
+      pc = next;
+    }
+    newPCs[instrs.length] = size;
+
+    // relocate the jumps, a target is never inside a superinstruction
+    for (var pc = 0; pc < size; pc += Instructions.length(buffer[pc])) {
+      if (isJump(buffer[pc])) {
+        buffer[pc + 1] = newPCs[buffer[pc + 1]];
+      }
+    }
+    return Arrays.copyOf(buffer, size);
+  }
+}
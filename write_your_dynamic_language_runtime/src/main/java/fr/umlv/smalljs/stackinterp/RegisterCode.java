@@ -0,0 +1,26 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Code of a function for the {@link RegisterInterpreter}.
+ * A frame has the same layout as a frame of the {@link StackInterpreter}
+ * <pre>
+ *   [0, slotCount[                                  parameters and local variables
+ *   [slotCount, slotCount + ACTIVATION_SIZE[        activation zone
+ *   [slotCount + ACTIVATION_SIZE, frameSize[        temporaries
+ * </pre>
+ * and a register is an offset in the frame.
+ */
+public record RegisterCode(int[] instrs, int parameterCount, int slotCount, int frameSize, InlineCaches inlineCaches) {
+	public RegisterCode {
+		if (parameterCount < 1 || slotCount < 1 || parameterCount > slotCount) {
+			throw new IllegalArgumentException("invalid parameter or slot count");
+		}
+		if (frameSize < slotCount + StackInterpreter.ACTIVATION_SIZE) {
+			throw new IllegalArgumentException("invalid frame size");
+		}
+		requireNonNull(instrs);
+		requireNonNull(inlineCaches);
+	}
+}
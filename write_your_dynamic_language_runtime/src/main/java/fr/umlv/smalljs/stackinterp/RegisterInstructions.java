@@ -0,0 +1,143 @@
+package fr.umlv.smalljs.stackinterp;
+
+/**
+ * Instructions of the register machine, the operands named dst, src, base, left and right are registers,
+ * a register is an offset from the base pointer of the frame (see {@link RegisterCode}).
+ */
+public interface RegisterInstructions {
+	int CONST = 1; // CONST dst tag_value (smallint or dictionary_index)
+	int MOVE = 2; // MOVE dst src
+	int LOOKUP = 3; // LOOKUP dst dictionary_index (String global_name)
+	int REGISTER = 4; // REGISTER src dictionary_index (String global_name)
+	int CALL = 5; // CALL dst base argument_count, qualifier in base, receiver in base + 1, arguments from base + 2
+	int RET = 6; // RET src
+	int GOTO = 7; // GOTO instr_index
+	int JUMP_IF_FALSE = 8; // JUMP_IF_FALSE src instr_index
+	int NEW = 9; // NEW dst base dictionary_index (JSObject class), field values from base
+	int GET = 10; // GET dst src dictionary_index (String field_name)
+	int PUT = 11; // PUT dst src dictionary_index (String field_name)
+
+	// quickened instructions, never generated by the RegisterRewriter
+	int LOOKUP_CACHED = 32; // LOOKUP_CACHED dst global_site_index
+	int GET_CACHED = 33; // GET_CACHED dst src field_site_index
+	int PUT_CACHED = 34; // PUT_CACHED dst src field_site_index
+
+	// intrinsics on small ints, always followed by a CALL dst base 2 used as fallback
+	int ADD = 50; // ADD dst left right base global_site_index
+	int SUB = 51; // SUB dst left right base global_site_index
+	int MUL = 52; // MUL dst left right base global_site_index
+	int DIV = 53; // DIV dst left right base global_site_index
+	int REM = 54; // REM dst left right base global_site_index
+	int LT = 55; // LT dst left right base global_site_index
+	int LE = 56; // LE dst left right base global_site_index
+	int GT = 57; // GT dst left right base global_site_index
+	int GE = 58; // GE dst left right base global_site_index
+	int EQ = 59; // EQ dst left right base global_site_index
+	int NE = 60; // NE dst left right base global_site_index
+
+	/**
+	 * Returns the number of ints used by an instruction, the opcode and its operands.
+	 */
+	static int length(int opcode) {
+		switch (opcode) {
+		case RET:
+		case GOTO:
+			return 2;
+		case CONST:
+		case MOVE:
+		case LOOKUP:
+		case REGISTER:
+		case JUMP_IF_FALSE:
+		case LOOKUP_CACHED:
+			return 3;
+		case CALL:
+		case NEW:
+		case GET:
+		case PUT:
+		case GET_CACHED:
+		case PUT_CACHED:
+			return 4;
+		default:
+			return 6;
+		}
+	}
+
+	/**
+	 * Returns the name of an opcode.
+	 */
+	static String name(int opcode) {
+		var strings = new String[] { null, "CONST", "MOVE", "LOOKUP", "REGISTER", "CALL", "RET", "GOTO", "JUMP_IF_FALSE",
+				"NEW", "GET", "PUT" };
+		if (opcode >= 0 && opcode < strings.length && strings[opcode] != null) {
+			return strings[opcode];
+		}
+		switch (opcode) {
+		case LOOKUP_CACHED:
+			return "LOOKUP_CACHED";
+		case GET_CACHED:
+			return "GET_CACHED";
+		case PUT_CACHED:
+			return "PUT_CACHED";
+		default:
+			// the intrinsics have the same opcodes as the stack instructions
+			return Instructions.name(opcode);
+		}
+	}
+
+	/**
+	 * Returns a textual representation of the instructions, registers are prefixed by 'r'.
+	 */
+	static String dump(int[] instrs, Dictionary dict) {
+		var builder = new StringBuilder();
+		for (var pc = 0; pc < instrs.length;) {
+			var instr = instrs[pc];
+			builder.append(pc).append(' ').append(name(instr));
+			switch (instr) {
+			case CONST: {
+				var operand = instrs[pc + 2];
+				builder.append(" r").append(instrs[pc + 1]).append(' ').append(TagValues.isSmallInt(operand)
+						? TagValues.decodeSmallInt(operand)
+						: TagValues.decodeDictObject(operand, dict));
+				break;
+			}
+			case LOOKUP: // register and dictionary constant
+			case REGISTER:
+				builder.append(" r").append(instrs[pc + 1]).append(' ').append(TagValues.decodeDictObject(instrs[pc + 2], dict));
+				break;
+			case NEW: // two registers and a dictionary constant
+			case GET:
+			case PUT:
+				builder.append(" r").append(instrs[pc + 1]).append(" r").append(instrs[pc + 2]).append(' ')
+						.append(TagValues.decodeDictObject(instrs[pc + 3], dict));
+				break;
+			case CALL:
+				builder.append(" r").append(instrs[pc + 1]).append(" r").append(instrs[pc + 2]).append(' ').append(instrs[pc + 3]);
+				break;
+			case MOVE:
+				builder.append(" r").append(instrs[pc + 1]).append(" r").append(instrs[pc + 2]);
+				break;
+			case RET:
+				builder.append(" r").append(instrs[pc + 1]);
+				break;
+			case GOTO:
+				builder.append(' ').append(instrs[pc + 1]);
+				break;
+			case JUMP_IF_FALSE:
+			case LOOKUP_CACHED:
+				builder.append(" r").append(instrs[pc + 1]).append(' ').append(instrs[pc + 2]);
+				break;
+			case GET_CACHED:
+			case PUT_CACHED:
+				builder.append(" r").append(instrs[pc + 1]).append(" r").append(instrs[pc + 2]).append(' ').append(instrs[pc + 3]);
+				break;
+			default: // intrinsics
+				builder.append(" r").append(instrs[pc + 1]).append(" r").append(instrs[pc + 2]).append(" r").append(instrs[pc + 3])
+						.append(" r").append(instrs[pc + 4]).append(' ').append(instrs[pc + 5]);
+				break;
+			}
+			builder.append('\n');
+			pc += length(instr);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,331 @@
+package fr.umlv.smalljs.stackinterp;
+
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+import fr.umlv.smalljs.rt.Tracer;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.ACTIVATION_SIZE;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.BP_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.FUN_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.NO_RESULT;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.PC_OFFSET;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.fieldSlot;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.functionId;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.initBottomFrame;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.intrinsic;
+import static fr.umlv.smalljs.stackinterp.StackInterpreter.resolveGlobal;
+import static fr.umlv.smalljs.stackinterp.TagValues.*;
+
+/**
+ * Interpreter of the {@link RegisterInstructions}, it uses the same stack, heap and value encoding as the
+ * {@link StackInterpreter} but the operands of an instruction are registers of the frame so there is no
+ * operand stack.
+ *
+ * The frame of a callee starts at the register that contains the receiver of the CALL, the receiver
+ * and the arguments are the first slots of the callee.
+ */
+public class RegisterInterpreter {
+  // scan all frames of the stack from the top to the bottom and call the visitor on the values,
+  // the frames overlap so the whole stack from the bottom frame up to the end of the biggest frame
+  // is scanned except the activation zones
+  static void scanRoots(int[] stack, int bp, RegisterCode code, Dictionary dict, IntUnaryOperator visitor) {
+    var end = 0;
+    var activations = new int[8];
+    var activationCount = 0;
+    for (; ; ) {
+      end = Math.max(end, bp + code.frameSize());
+      var activation = bp + code.slotCount();
+      if (activationCount == activations.length) {
+        activations = Arrays.copyOf(activations, activationCount << 1);
+      }
+      activations[activationCount++] = activation;
+      if (stack[activation + PC_OFFSET] == 0) {
+        // bottom of the stack
+        break;
+      }
+      code = (RegisterCode) dict.functionCode(stack[activation + FUN_OFFSET]);
+      bp = stack[activation + BP_OFFSET];
+    }
+    // the activation zones are in decreasing order
+    var start = bp;
+    for (var i = activationCount - 1; i >= 0; i--) {
+      for (var j = start; j < activations[i]; j++) {
+        stack[j] = visitor.applyAsInt(stack[j]);
+      }
+      start = activations[i] + ACTIVATION_SIZE;
+    }
+    for (var j = start; j < end; j++) {
+      stack[j] = visitor.applyAsInt(stack[j]);
+    }
+  }
+
+  // end of the biggest frame of the stack, a function called back by a native function
+  // pushes its frames after it
+  private static int stackEnd(int[] stack, int bp, RegisterCode code, Dictionary dict) {
+    var end = 0;
+    for (; ; ) {
+      end = Math.max(end, bp + code.frameSize());
+      var activation = bp + code.slotCount();
+      if (stack[activation + PC_OFFSET] == 0) {
+        return end;
+      }
+      code = (RegisterCode) dict.functionCode(stack[activation + FUN_OFFSET]);
+      bp = stack[activation + BP_OFFSET];
+    }
+  }
+
+  // the roots of the frames of the current execution followed by the roots of the suspended executions
+  private static Heap.Roots roots(VM vm, int bp, RegisterCode code, Dictionary dict) {
+    var suspendedRoots = vm.suspendedRoots();
+    return visitor -> {
+      scanRoots(vm.stack(), bp, code, dict, visitor);
+      if (suspendedRoots != null) {
+        suspendedRoots.scan(visitor);
+      }
+    };
+  }
+
+  // initialize the registers of a frame from the first local variable that is not a parameter,
+  // skipping the activation zone
+  private static void initFrame(int[] stack, int bp, RegisterCode code, int undefined) {
+    var activation = bp + code.slotCount();
+    Arrays.fill(stack, bp + code.parameterCount(), activation, undefined);
+    Arrays.fill(stack, activation + ACTIVATION_SIZE, bp + code.frameSize(), undefined);
+  }
+
+  private static RegisterCode registerCode(JSObject function) {
+    var code = function.lookup("__code__");
+    if (!(code instanceof RegisterCode)) {
+      throw new Failure(function.getName() + " has no register code");
+    }
+    return (RegisterCode) code;
+  }
+
+  // return the slot of a field and update the inline cache, a full inline cache is not updated
+  private static int cachedFieldSlot(int[] site, int vClass, Dictionary dict) {
+    var slot = InlineCaches.polymorphicSlot(site, vClass);
+    if (slot == InlineCaches.MISS) {
+      slot = fieldSlot(vClass, site[InlineCaches.FIELD_NAME], dict);
+      InlineCaches.addEntry(site, vClass, slot);
+    }
+    return slot;
+  }
+
+  public static Object execute(JSObject function, Dictionary dict, JSObject globalEnv) {
+    return StackInterpreter.execute(function, dict, globalEnv, new VM(VMConfig.DEFAULT.withEngine(VMConfig.Engine.REGISTER)));
+  }
+
+  static Object execute(JSObject function, Object bottomReceiver, Object[] bottomArgs, int bp, Dictionary dict,
+                        JSObject globalEnv, VM vm) {
+    var heap = vm.heap();
+    var code = registerCode(function);
+    var functionId = dict.functionId(function, code);
+    var instrs = code.instrs();
+    var stack = vm.ensureStackCapacity(bp + code.frameSize());
+
+    var undefined = encodeDictObject(UNDEFINED, dict);
+
+    var pc = 0; // instruction pointer
+
+    // the stack may have been used by a previous execution, mark the bottom of the stack
+    // and initialize all local variables and temporaries
+    initBottomFrame(function, bottomReceiver, bottomArgs, code.parameterCount(), code.slotCount(), stack, bp, dict, heap);
+    initFrame(stack, bp, code, undefined);
+
+    var dispatchCount = 0L;
+    for (; ; ) {
+      dispatchCount++;
+      if (Tracer.enabled(Tracer.DISPATCH, Tracer.TRACE)) {
+        Tracer.trace(Tracer.DISPATCH, Tracer.TRACE, pc + " " + RegisterInstructions.name(instrs[pc]));
+      }
+      switch (instrs[pc]) {
+        case RegisterInstructions.CONST -> {
+          stack[bp + instrs[pc + 1]] = instrs[pc + 2];
+          pc += 3;
+        }
+        case RegisterInstructions.MOVE -> {
+          stack[bp + instrs[pc + 1]] = stack[bp + instrs[pc + 2]];
+          pc += 3;
+        }
+        case RegisterInstructions.LOOKUP -> {
+          // first execution, quicken the instruction with a global site
+          var index = code.inlineCaches().newGlobalSite(instrs[pc + 2]);
+          resolveGlobal(code.inlineCaches().globalSite(index), globalEnv, dict);
+          instrs[pc + 2] = index;
+          instrs[pc] = RegisterInstructions.LOOKUP_CACHED;
+        }
+        case RegisterInstructions.LOOKUP_CACHED -> {
+          var site = code.inlineCaches().globalSite(instrs[pc + 2]);
+          if (!site.isValid(globalEnv)) {
+            // the global environment has changed, resolve again
+            resolveGlobal(site, globalEnv, dict);
+          }
+          stack[bp + instrs[pc + 1]] = site.value;
+          pc += 3;
+        }
+        case RegisterInstructions.REGISTER -> {
+          var name = decodeDictObject(instrs[pc + 2], dict).toString();
+          var value = decodeAnyValue(stack[bp + instrs[pc + 1]], dict, heap);
+          globalEnv.register(name, value);
+          pc += 3;
+        }
+        case RegisterInstructions.CALL -> {
+          var dst = instrs[pc + 1];
+          var base = bp + instrs[pc + 2];
+          var argumentCount = instrs[pc + 3];
+          pc += 4;
+
+          var newFunctionId = functionId(stack[base], dict);
+          if (newFunctionId == -1) { // native call !
+            var newFunction = (JSObject) decodeDictObject(stack[base], dict);
+            var receiver = decodeAnyValue(stack[base + 1], dict, heap);
+            var args = new Object[argumentCount];
+            for (var i = 0; i < argumentCount; i++) {
+              args[i] = decodeAnyValue(stack[base + 2 + i], dict, heap);
+            }
+            if (Tracer.enabled(Tracer.CALLS, Tracer.DEBUG)) {
+              Tracer.trace(Tracer.CALLS, Tracer.DEBUG, "call native " + newFunction.getName() + " with " + receiver + " " + Arrays.toString(args));
+            }
+            var roots = roots(vm, bp, code, dict);
+            var result = vm.invokeNative(newFunction, receiver, args, stackEnd(stack, bp, code, dict), roots);
+            // a string result is allocated in the heap
+            stack = vm.stack();
+            stack[bp + dst] = encodeAnyValue(result, dict, heap, roots);
+
+            // the result may be a new handle, free the unused ones
+            if (dict.shouldCollectHandles()) {
+              heap.collect(dict, roots);
+            }
+            continue;
+          }
+
+          code = (RegisterCode) dict.functionCode(newFunctionId);
+          if (code.parameterCount() != argumentCount + 1/* this */) {
+            throw new Failure("wrong number of arguments for " + dict.function(newFunctionId).getName() + " expected "
+              + (code.parameterCount() - 1) + " but was " + argumentCount);
+          }
+
+          // the receiver is the first slot of the new frame
+          var newBp = base + 1;
+          stack = vm.ensureStackCapacity(newBp + code.frameSize());
+
+          // save bp/pc/function in activation zone, the pc is after the CALL
+          var activation = newBp + code.slotCount();
+          stack[activation + BP_OFFSET] = bp;
+          stack[activation + PC_OFFSET] = pc;
+          stack[activation + FUN_OFFSET] = functionId;
+
+          pc = 0;
+          bp = newBp;
+          initFrame(stack, bp, code, undefined);
+          functionId = newFunctionId;
+          instrs = code.instrs();
+        }
+        case RegisterInstructions.RET -> {
+          var result = stack[bp + instrs[pc + 1]];
+
+          var activation = bp + code.slotCount();
+          pc = stack[activation + PC_OFFSET];
+          if (pc == 0) {
+            // end of the interpreter
+            vm.addDispatchCount(dispatchCount);
+            return decodeAnyValue(result, dict, heap);
+          }
+
+          functionId = stack[activation + FUN_OFFSET];
+          bp = stack[activation + BP_OFFSET];
+          // the activation zone is now in the temporaries of the caller, they must contain valid values
+          stack[activation + BP_OFFSET] = undefined;
+          stack[activation + PC_OFFSET] = undefined;
+          stack[activation + FUN_OFFSET] = undefined;
+
+          code = (RegisterCode) dict.functionCode(functionId);
+          instrs = code.instrs();
+
+          // store the result in the destination register of the CALL
+          stack[bp + instrs[pc - 3]] = result;
+        }
+        case RegisterInstructions.GOTO -> pc = instrs[pc + 1];
+        case RegisterInstructions.JUMP_IF_FALSE -> {
+          if (stack[bp + instrs[pc + 1]] == FALSE) {
+            pc = instrs[pc + 2];
+          } else {
+            pc += 3;
+          }
+        }
+        case RegisterInstructions.NEW -> {
+          var vClass = instrs[pc + 3];
+          var clazz = (JSObject) decodeDictObject(vClass, dict);
+
+          // allocate the object, may trigger a GC
+          var size = OBJECT_HEADER_SIZE + clazz.length();
+          var ref = heap.allocate(size, vClass, dict, roots(vm, bp, code, dict));
+
+          // copy the field values from the registers
+          var base = bp + instrs[pc + 2];
+          for (var i = 0; i < clazz.length(); i++) {
+            heap.set(ref + OBJECT_HEADER_SIZE + i, stack[base + i]);
+          }
+          stack[bp + instrs[pc + 1]] = encodeReference(ref);
+          pc += 4;
+        }
+        case RegisterInstructions.GET, RegisterInstructions.PUT -> {
+          // first execution, quicken the instruction with an empty inline cache
+          instrs[pc + 3] = code.inlineCaches().newFieldSite(instrs[pc + 3]);
+          instrs[pc] = instrs[pc] == RegisterInstructions.GET ? RegisterInstructions.GET_CACHED : RegisterInstructions.PUT_CACHED;
+        }
+        case RegisterInstructions.GET_CACHED -> {
+          var site = code.inlineCaches().fieldSite(instrs[pc + 3]);
+          var ref = decodeReference(stack[bp + instrs[pc + 2]]);
+          var slot = cachedFieldSlot(site, heap.get(ref), dict);
+          stack[bp + instrs[pc + 1]] = slot == InlineCaches.NO_FIELD ? undefined : heap.get(ref + OBJECT_HEADER_SIZE + slot);
+          pc += 4;
+        }
+        case RegisterInstructions.PUT_CACHED -> {
+          var site = code.inlineCaches().fieldSite(instrs[pc + 3]);
+          var ref = decodeReference(stack[bp + instrs[pc + 1]]);
+          var value = stack[bp + instrs[pc + 2]];
+          var slot = cachedFieldSlot(site, heap.get(ref), dict);
+          if (slot == InlineCaches.NO_FIELD) {
+            throw new Failure("invalid field " + decodeDictObject(site[InlineCaches.FIELD_NAME], dict));
+          }
+          heap.set(ref + OBJECT_HEADER_SIZE + slot, value);
+          heap.writeBarrier(ref, value);
+          pc += 4;
+        }
+        case RegisterInstructions.ADD, RegisterInstructions.SUB, RegisterInstructions.MUL, RegisterInstructions.DIV,
+            RegisterInstructions.REM, RegisterInstructions.LT, RegisterInstructions.LE, RegisterInstructions.GT,
+            RegisterInstructions.GE, RegisterInstructions.EQ, RegisterInstructions.NE -> {
+          var site = code.inlineCaches().globalSite(instrs[pc + 5]);
+          if (!site.isValid(globalEnv)) {
+            resolveGlobal(site, globalEnv, dict);
+          }
+          var left = stack[bp + instrs[pc + 2]];
+          var right = stack[bp + instrs[pc + 3]];
+          if (site.value == site.intrinsic && isSmallInt(left) && isSmallInt(right)) {
+            var result = intrinsic(instrs[pc], decodeSmallInt(left), decodeSmallInt(right));
+            if (result != NO_RESULT) {
+              // skip the fallback CALL
+              stack[bp + instrs[pc + 1]] = result;
+              pc += 6 + 4;
+              continue;
+            }
+          }
+          // fallback, store the function, the receiver and the arguments from base
+          // and let the following CALL call the function
+          var base = bp + instrs[pc + 4];
+          stack[base] = site.value;
+          stack[base + 1] = undefined;
+          stack[base + 2] = left;
+          stack[base + 3] = right;
+          pc += 6;
+        }
+        default -> throw new AssertionError("unknown instruction " + instrs[pc]);
+      }
+    }
+  }
+}
@@ -0,0 +1,252 @@
+package fr.umlv.smalljs.stackinterp;
+
+import fr.umlv.smalljs.ast.Expr;
+import fr.umlv.smalljs.ast.Expr.*;
+import fr.umlv.smalljs.ast.Visitor;
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+import fr.umlv.smalljs.rt.Tracer;
+import fr.umlv.smalljs.stackinterp.InstrRewriter.InstrBuffer;
+
+import java.util.List;
+import java.util.Optional;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.RegisterInstructions.*;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeConstant;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
+
+/**
+ * Translates the body of a function into instructions of the register machine (see {@link RegisterInstructions}).
+ *
+ * An expression is evaluated into a destination register or, if the destination is {@link #ANY}, into a register
+ * chosen by the rewriter, so a local variable is used directly instead of being copied.
+ * The temporaries are allocated like a stack, the temporaries of an expression are released once the
+ * expression is evaluated.
+ */
+public class RegisterRewriter {
+  // the value can be in any register
+  private static final int ANY = -1;
+
+  private final InstrBuffer buffer;
+  private final Dictionary dict;
+  private final JSObject globalEnv;
+  private final VMConfig config;
+  private final InlineCaches inlineCaches;
+  private final JSObject env;
+  private final Visitor<Integer, Integer> visitor;
+  private int top;  // first free temporary
+  private int frameSize;
+
+  private RegisterRewriter(InstrBuffer buffer, Dictionary dict, JSObject globalEnv, VMConfig config, InlineCaches inlineCaches,
+                           JSObject env) {
+    this.buffer = buffer;
+    this.dict = dict;
+    this.globalEnv = globalEnv;
+    this.config = config;
+    this.inlineCaches = inlineCaches;
+    this.env = env;
+    this.top = env.length() + StackInterpreter.ACTIVATION_SIZE;
+    this.frameSize = top;
+    this.visitor = createVisitor();
+  }
+
+  public static JSObject createFunction(Optional<String> name, List<String> parameters, Block body, Dictionary dict, JSObject globalEnv,
+                                        VMConfig config) {
+    var env = JSObject.newEnv(null);
+
+    env.register("this", 0);
+    for (var parameter : parameters) {
+      env.register(parameter, env.length());
+    }
+    InstrRewriter.visitVariable(body, env);
+
+    var buffer = new InstrBuffer();
+    var inlineCaches = new InlineCaches();
+    var rewriter = new RegisterRewriter(buffer, dict, globalEnv, config, inlineCaches, env);
+    rewriter.visitor.visit(body, ANY);
+    var result = rewriter.release(rewriter.top, ANY);
+    buffer.emit(CONST).emit(result).emit(encodeDictObject(UNDEFINED, dict));
+    buffer.emit(RET).emit(result);
+
+    var instrs = buffer.toInstrs();
+    if (Tracer.enabled(Tracer.CODEGEN, Tracer.DEBUG)) {
+      Tracer.trace(Tracer.CODEGEN, Tracer.DEBUG, "function " + name.orElse("lambda") + "\n" + RegisterInstructions.dump(instrs, dict));
+    }
+
+    var code = new RegisterCode(instrs, parameters.size() + 1 /* this */, env.length(), rewriter.frameSize, inlineCaches);
+    // called back by a native function, a register code needs the register engine
+    var registerConfig = config.withEngine(VMConfig.Engine.REGISTER);
+    var function = JSObject.newFunction(name.orElse("lambda"),
+        (self, receiver, args) -> StackInterpreter.call(self, receiver, args, dict, globalEnv, registerConfig));
+    function.register("__code__", code);
+    return function;
+  }
+
+  private int temporary() {
+    var register = top++;
+    frameSize = Math.max(frameSize, top);
+    return register;
+  }
+
+  // release the temporaries allocated since mark and return the register of the result,
+  // if the destination is ANY, the result is stored in the first released temporary that stays allocated
+  private int release(int mark, int dst) {
+    if (dst == ANY) {
+      top = mark;
+      return temporary();
+    }
+    top = mark;
+    return dst;
+  }
+
+  // evaluate the arguments of a call in consecutive temporaries
+  private void arguments(List<Expr> args) {
+    for (var arg : args) {
+      visitor.visit(arg, temporary());
+    }
+  }
+
+  private Visitor<Integer, Integer> createVisitor() {
+    var visitor = new Visitor<Integer, Integer>();
+    return visitor
+      .when(Block.class, (block, dst) -> {
+        for (var expr : block.instrs()) {
+          // the value of an expression used as an instruction is ignored
+          var mark = top;
+          visitor.visit(expr, ANY);
+          top = mark;
+        }
+        return ANY;
+      })
+      .when(Literal.class, (literal, dst) -> {
+        var register = release(top, dst);
+        buffer.emit(CONST).emit(register).emit(encodeConstant(literal.value(), dict));
+        return register;
+      })
+      .when(FunCall.class, (funCall, dst) -> {
+        var mark = top;
+        // an operator of the global environment is called with an intrinsic instruction
+        // followed by the CALL used if the intrinsic can not be applied
+        if (config.intrinsics()
+            && funCall.args().size() == 2
+            && funCall.qualifier() instanceof LocalVarAccess
+            && env.lookup(((LocalVarAccess) funCall.qualifier()).name()) == UNDEFINED) {
+          var name = ((LocalVarAccess) funCall.qualifier()).name();
+          var intrinsic = InstrRewriter.INTRINSICS.get(name);
+          // only if the operator is the builtin one, otherwise the call reports a missing or redefined operator
+          if (intrinsic != null && StackInterpreter.isBuiltinOperator(name, globalEnv.lookup(name))) {
+            var left = visitor.visit(funCall.args().get(0), ANY);
+            var right = visitor.visit(funCall.args().get(1), ANY);
+            // the fallback stores the function, the receiver and the arguments from base
+            var base = top;
+            frameSize = Math.max(frameSize, base + StackInterpreter.FUNCALL_PREFIX + 2);
+            var index = inlineCaches.newGlobalSite(encodeDictObject(name, dict));
+            inlineCaches.globalSite(index).intrinsic = encodeDictObject(globalEnv.lookup(name), dict);
+            var register = release(mark, dst);
+            buffer.emit(intrinsic).emit(register).emit(left).emit(right).emit(base).emit(index);
+            buffer.emit(CALL).emit(register).emit(base).emit(2);
+            return register;
+          }
+        }
+        var base = temporary();
+        visitor.visit(funCall.qualifier(), base);
+        var receiver = temporary();
+        buffer.emit(CONST).emit(receiver).emit(encodeDictObject(UNDEFINED, dict));
+        arguments(funCall.args());
+        var register = release(mark, dst);
+        buffer.emit(CALL).emit(register).emit(base).emit(funCall.args().size());
+        return register;
+      })
+      .when(LocalVarAccess.class, (localVarAccess, dst) -> {
+        var name = localVarAccess.name();
+        var slotOrUndefined = env.lookup(name);
+        if (slotOrUndefined == UNDEFINED) {
+          var register = release(top, dst);
+          buffer.emit(LOOKUP).emit(register).emit(encodeDictObject(name, dict));
+          return register;
+        }
+        // a local variable is its own register
+        var slot = (int) slotOrUndefined;
+        if (dst == ANY || dst == slot) {
+          return slot;
+        }
+        buffer.emit(MOVE).emit(dst).emit(slot);
+        return dst;
+      })
+      .when(LocalVarAssignment.class, (localVarAssignment, dst) -> {
+        var name = localVarAssignment.name();
+        var slotOrUndefined = env.lookup(name);
+        if (slotOrUndefined == UNDEFINED) {
+          throw new Failure("unknown local variable " + name);
+        }
+        // evaluate the expression directly into the variable
+        visitor.visit(localVarAssignment.expr(), (int) slotOrUndefined);
+        return ANY;
+      })
+      .when(Fun.class, (fun, dst) -> {
+        var function = createFunction(fun.name(), fun.parameters(), fun.body(), dict, globalEnv, config);
+        var register = release(top, dst);
+        buffer.emit(CONST).emit(register).emit(encodeDictObject(function, dict));
+        fun.name().ifPresent(name -> buffer.emit(REGISTER).emit(register).emit(encodeDictObject(name, dict)));
+        return register;
+      })
+      .when(Return.class, (_return, dst) -> {
+        var mark = top;
+        var register = visitor.visit(_return.expr(), ANY);
+        buffer.emit(RET).emit(register);
+        top = mark;
+        return ANY;
+      })
+      .when(If.class, (_if, dst) -> {
+        var mark = top;
+        var condition = visitor.visit(_if.condition(), ANY);
+        top = mark;
+        var falsePlaceHolder = buffer.emit(JUMP_IF_FALSE).emit(condition).placeholder();
+        visitor.visit(_if.trueBlock(), ANY);
+        var endPlaceHolder = buffer.emit(GOTO).placeholder();
+        buffer.patch(falsePlaceHolder, buffer.label());
+        visitor.visit(_if.falseBlock(), ANY);
+        buffer.patch(endPlaceHolder, buffer.label());
+        return ANY;
+      })
+      .when(New.class, (_new, dst) -> {
+        var clazz = JSObject.newObject(null);
+        var mark = top;
+        // evaluate the field values in consecutive temporaries
+        _new.initMap().forEach((fieldName, expr) -> {
+          clazz.register(fieldName, clazz.length());
+          visitor.visit(expr, temporary());
+        });
+        var register = release(mark, dst);
+        buffer.emit(NEW).emit(register).emit(mark).emit(encodeDictObject(clazz, dict));
+        return register;
+      })
+      .when(FieldAccess.class, (fieldAccess, dst) -> {
+        var mark = top;
+        var receiver = visitor.visit(fieldAccess.receiver(), ANY);
+        var register = release(mark, dst);
+        buffer.emit(GET).emit(register).emit(receiver).emit(encodeDictObject(fieldAccess.name(), dict));
+        return register;
+      })
+      .when(FieldAssignment.class, (fieldAssignment, dst) -> {
+        var mark = top;
+        var receiver = visitor.visit(fieldAssignment.receiver(), ANY);
+        var value = visitor.visit(fieldAssignment.expr(), ANY);
+        buffer.emit(PUT).emit(receiver).emit(value).emit(encodeDictObject(fieldAssignment.name(), dict));
+        top = mark;
+        return ANY;
+      })
+      .when(MethodCall.class, (methodCall, dst) -> {
+        var mark = top;
+        var base = temporary();
+        var receiver = temporary();
+        visitor.visit(methodCall.receiver(), receiver);
+        buffer.emit(GET).emit(base).emit(receiver).emit(encodeDictObject(methodCall.name(), dict));
+        arguments(methodCall.args());
+        var register = release(mark, dst);
+        buffer.emit(CALL).emit(register).emit(base).emit(methodCall.args().size());
+        return register;
+      });
+  }
+}
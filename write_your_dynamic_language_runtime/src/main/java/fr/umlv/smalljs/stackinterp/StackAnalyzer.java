@@ -0,0 +1,152 @@
+package fr.umlv.smalljs.stackinterp;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+import java.util.Arrays;
+
+import static fr.umlv.smalljs.stackinterp.Instructions.*;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+
+/**
+ * Computes the maximum depth of the operand stack of a {@link Code} by abstract interpretation,
+ * the depth of the stack is propagated along all the reachable paths of the instructions.
+ * The analysis also checks that the jump targets and the slots are valid, that no instruction
+ * pops more values than the stack contains and that the paths that merge on an instruction
+ * have the same stack depth.
+ *
+ * An intrinsic (ADD, LT, etc) is seen as inserting the function and the receiver below its two
+ * arguments for the following FUNCALL 2, the result of the intrinsic has the same depth
+ * as the result of the FUNCALL.
+ */
+final class StackAnalyzer {
+  private StackAnalyzer() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Returns the maximum number of values on the operand stack of a frame.
+   * @param instrs the instructions.
+   * @param slotCount the number of slots (parameters and local variables) of a frame.
+   * @param inlineCaches the inline caches referenced by the instructions.
+   * @param dict the dictionary of the constants of the instructions.
+   * @throws IllegalArgumentException if the instructions are not valid.
+   */
+  static int maxStack(int[] instrs, int slotCount, InlineCaches inlineCaches, Dictionary dict) {
+    if (instrs.length == 0) {
+      throw invalid(0, "no instruction");
+    }
+    var depths = new int[instrs.length];  // stack depth before an instruction or -1 if not yet reached
+    Arrays.fill(depths, -1);
+    var pending = new int[instrs.length];
+    var pendingCount = 0;
+    var maxStack = 0;
+
+    depths[0] = 0;
+    pending[pendingCount++] = 0;
+    while (pendingCount != 0) {
+      var pc = pending[--pendingCount];
+      for (; ; ) {
+        if (pc >= instrs.length) {
+          throw invalid(pc, "no instruction");
+        }
+        var opcode = instrs[pc];
+        var next = pc + Instructions.length(opcode);
+        if (next > instrs.length) {
+          throw invalid(pc, "truncated instruction " + Instructions.name(opcode));
+        }
+        var depth = depths[pc];
+        var pops = pops(instrs, pc, inlineCaches, dict);
+        if (depth < pops) {
+          throw invalid(pc, "stack underflow, " + Instructions.name(opcode) + " pops " + pops + " values but the stack contains " + depth);
+        }
+        checkSlots(instrs, pc, slotCount);
+        var newDepth = depth - pops + pushes(opcode);
+        maxStack = Math.max(maxStack, newDepth);
+
+        if (opcode == RET) {
+          break;
+        }
+        if (opcode == GOTO || opcode == JUMP_IF_FALSE || opcode == FOLDED || opcode == JUMP_FOLDED) {
+          var target = instrs[pc + 1];
+          if (target < 0 || target >= instrs.length) {
+            throw invalid(pc, "invalid jump target " + target);
+          }
+          // a FOLDED only pushes its value when it jumps after the code of the call
+          var targetDepth = opcode == FOLDED ? newDepth + 1 : newDepth;
+          maxStack = Math.max(maxStack, targetDepth);
+          if (merge(depths, pc, target, targetDepth)) {
+            pending[pendingCount++] = target;
+          }
+          if (opcode == GOTO) {
+            break;
+          }
+        }
+        if (next >= instrs.length) {
+          throw invalid(pc, "the last instruction is not a RET or a GOTO");
+        }
+        if (!merge(depths, pc, next, newDepth)) {
+          break;
+        }
+        pc = next;
+      }
+    }
+    return maxStack;
+  }
+
+  // record the depth of an instruction, returns true if the instruction was not reached before
+  private static boolean merge(int[] depths, int pc, int target, int depth) {
+    var existing = depths[target];
+    if (existing == -1) {
+      depths[target] = depth;
+      return true;
+    }
+    if (existing != depth) {
+      throw invalid(pc, "stack depth mismatch at " + target + ", " + existing + " != " + depth);
+    }
+    return false;
+  }
+
+  private static void checkSlots(int[] instrs, int pc, int slotCount) {
+    switch (instrs[pc]) {
+      case LOAD, STORE, LOAD_GET -> checkSlot(pc, instrs[pc + 1], slotCount);
+      case STORE_LOAD -> {
+        checkSlot(pc, instrs[pc + 1], slotCount);
+        checkSlot(pc, instrs[pc + 2], slotCount);
+      }
+      default -> {}
+    }
+  }
+
+  private static void checkSlot(int pc, int slot, int slotCount) {
+    if (slot < 0 || slot >= slotCount) {
+      throw invalid(pc, "invalid slot " + slot);
+    }
+  }
+
+  private static int pops(int[] instrs, int pc, InlineCaches inlineCaches, Dictionary dict) {
+    var opcode = instrs[pc];
+    return switch (opcode) {
+      case CONST, FOLDED, JUMP_FOLDED, UNFOLDED, LOOKUP, LOOKUP_CACHED, LOAD, LOAD_GET, GLOBAL_CALLEE, GOTO -> 0;
+      case REGISTER, STORE, STORE_LOAD, DUP, POP, RET, JUMP_IF_FALSE, PRINT, GET, GET_MONO, GET_POLY, GET_MEGA, GET_METHOD -> 1;
+      case SWAP, PUT, PUT_MONO, PUT_POLY, PUT_MEGA, ADD, SUB, MUL, DIV, REM, LT, LE, GT, GE, EQ, NE -> 2;
+      case FUNCALL, TAILCALL -> instrs[pc + 1] + StackInterpreter.FUNCALL_PREFIX;
+      case FUNCALL_CACHED, TAILCALL_CACHED -> inlineCaches.callSite(instrs[pc + 1]).argumentCount + StackInterpreter.FUNCALL_PREFIX;
+      case NEW -> ((JSObject) decodeDictObject(instrs[pc + 1], dict)).length();
+      default -> throw invalid(pc, "unknown instruction " + opcode);
+    };
+  }
+
+  private static int pushes(int opcode) {
+    return switch (opcode) {
+      case REGISTER, STORE, POP, RET, GOTO, JUMP_IF_FALSE, PUT, PUT_MONO, PUT_POLY, PUT_MEGA, FOLDED, JUMP_FOLDED, UNFOLDED -> 0;
+      case DUP, SWAP, GLOBAL_CALLEE, GET_METHOD -> 2;
+      // the function and the receiver are inserted below the arguments of the fallback FUNCALL
+      case ADD, SUB, MUL, DIV, REM, LT, LE, GT, GE, EQ, NE -> 4;
+      default -> 1;
+    };
+  }
+
+  private static IllegalArgumentException invalid(int pc, String message) {
+    return new IllegalArgumentException("invalid code at " + pc + ", " + message);
+  }
+}
@@ -3,11 +3,15 @@ package fr.umlv.smalljs.stackinterp;
 import fr.umlv.smalljs.ast.Script;
 import fr.umlv.smalljs.rt.Failure;
 import fr.umlv.smalljs.rt.JSObject;
+import fr.umlv.smalljs.rt.Tracer;
 
 import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.Collectors;
 
 import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
@@ -34,66 +38,377 @@ public class StackInterpreter {
     return stack[bp + offset];
   }
 
-  private static void dumpStack(String message, int[] stack, int sp, int bp, Dictionary dict, int[] heap) {
-    System.err.println(message);
+  private static void traceStack(String message, int[] stack, int sp, int bp, Dictionary dict, Heap heap) {
+    if (!Tracer.enabled(Tracer.CALLS, Tracer.TRACE)) {
+      return;
+    }
+    var builder = new StringBuilder(message).append('\n');
     for (var i = sp - 1; i >= 0; i = i - 1) {
       var value = stack[i];
+      builder.append((i == bp) ? "->" : "  ").append(value);
       try {
-        System.err.println(((i == bp) ? "->" : "  ") + value + " " + decodeAnyValue(value, dict, heap));
-      } catch (IndexOutOfBoundsException | ClassCastException e) {
-        System.err.println(((i == bp) ? "->" : "  ") + value + " (can't decode)");
+        // activation zones contain raw ints, so do not follow references
+        var decoded = isReference(value) ? "@" + decodeReference(value) : decodeAnyValue(value, dict, heap);
+        builder.append(' ').append(decoded).append('\n');
+      } catch (IndexOutOfBoundsException | ClassCastException | IllegalStateException e) {
+        builder.append(" (can't decode)\n");
       }
     }
-    System.err.println();
+    Tracer.trace(Tracer.CALLS, Tracer.TRACE, builder.toString());
   }
 
-  private static void dumpHeap(String message, int[] heap, int hp, Dictionary dict) {
-    System.err.println(message);
-    for (var i = 0; i < hp; i++) {
-      var value = heap[i];
-      try {
-        System.err.println(i + ": " + value + " " + decodeAnyValue(value, dict, heap));
-      } catch (IndexOutOfBoundsException | ClassCastException e) {
-        System.err.println(i + ": " + value + " (can't decode)");
+  static final int BP_OFFSET = 0;
+  static final int PC_OFFSET = 1;
+  static final int FUN_OFFSET = 2;
+  static final int ACTIVATION_SIZE = 3;
+
+  static final int RECEIVER_BASE_ARG_OFFSET = -1;
+  static final int QUALIFIER_BASE_ARG_OFFSET = -2;
+
+  static final int FUNCALL_PREFIX = 2;
+
+  // scan all frames of the stack from the top to the bottom and call the visitor on the values
+  // of the local variables and of the operand stacks, the activation zones are skipped
+  static void scanRoots(int[] stack, int sp, int bp, int pc, Code code, Dictionary dict, IntUnaryOperator visitor) {
+    var undefined = encodeDictObject(UNDEFINED, dict);
+    for (; ; ) {
+      // only the live slots are roots, the dead ones are cleared
+      var stackMap = code.stackMap();
+      var slotCount = code.slotCount();
+      for (var i = 0; i < slotCount; i++) {
+        stack[bp + i] = stackMap.isLive(pc, i) ? visitor.applyAsInt(stack[bp + i]) : undefined;
+      }
+      var activation = bp + slotCount;
+      for (var i = activation + ACTIVATION_SIZE; i < sp; i++) {
+        stack[i] = visitor.applyAsInt(stack[i]);
+      }
+      pc = stack[activation + PC_OFFSET];
+      if (pc == 0) {
+        // bottom of the stack
+        return;
       }
+
+      // the operand stack of the caller ends with the qualifier just before the callee's slots
+      sp = bp;
+      code = (Code) dict.functionCode(stack[activation + FUN_OFFSET]);
+      bp = stack[activation + BP_OFFSET];
     }
-    System.err.println();
   }
 
+  // not a valid tagged value for an intrinsic, 0 is the reference 0
+  static final int NO_RESULT = 0;
+
+  // compute an intrinsic on two small ints, returns NO_RESULT if the result is not a small int,
+  // the fallback function then computes a result that is stored in the dictionary
+  static int intrinsic(int opcode, int left, int right) {
+    return switch (opcode) {
+      case Instructions.ADD -> smallIntOrNoResult((long) left + right);
+      case Instructions.SUB -> smallIntOrNoResult((long) left - right);
+      case Instructions.MUL -> smallIntOrNoResult((long) left * right);
+      case Instructions.DIV -> right == 0 ? NO_RESULT : smallIntOrNoResult(left / right);
+      case Instructions.REM -> right == 0 ? NO_RESULT : encodeSmallInt(left % right);
+      case Instructions.LT -> left < right ? TRUE : FALSE;
+      case Instructions.LE -> left <= right ? TRUE : FALSE;
+      case Instructions.GT -> left > right ? TRUE : FALSE;
+      case Instructions.GE -> left >= right ? TRUE : FALSE;
+      case Instructions.EQ -> left == right ? TRUE : FALSE;
+      case Instructions.NE -> left != right ? TRUE : FALSE;
+      default -> throw new AssertionError("unknown intrinsic " + opcode);
+    };
+  }
 
-  private static final int GC_OFFSET = 1;
-  private static final int GC_MARK = -1;
-  private static final int GC_EMPTY = -2;
+  private static int smallIntOrNoResult(long value) {
+    return fitsInSmallInt(value) ? encodeSmallInt((int) value) : NO_RESULT;
+  }
 
-  private static final int BP_OFFSET = 0;
-  private static final int PC_OFFSET = 1;
-  private static final int FUN_OFFSET = 2;
-  private static final int ACTIVATION_SIZE = 3;
+  // lookup a global and cache its encoded value and its environment, the switch point is read
+  // before the lookup so a concurrent register can not be missed
+  static void resolveGlobal(InlineCaches.GlobalSite site, JSObject globalEnv, Dictionary dict) {
+    site.globalEnv = globalEnv;
+    site.switchPoint = globalEnv.getSwitchPoint();
+    var name = (String) decodeDictObject(site.name, dict);
+    site.value = encodeConstant(globalEnv.lookup(name), dict);
+  }
+
+  // slow path of a FOLDED or a JUMP_FOLDED, the value is still valid if the operators are the ones
+  // used to compute it, the switch point is read first so a concurrent register can not be missed,
+  // return false if an operator has been redefined
+  static boolean refold(InlineCaches.FoldedSite site, JSObject globalEnv) {
+    var switchPoint = globalEnv.getSwitchPoint();
+    for (var entry : site.operators.entrySet()) {
+      if (globalEnv.lookup(entry.getKey()) != entry.getValue()) {
+        return false;
+      }
+    }
+    site.globalEnv = globalEnv;
+    site.switchPoint = switchPoint;
+    return true;
+  }
+
+  // return the slot of a field or NO_FIELD
+  static int fieldSlot(int vClass, int fieldName, Dictionary dict) {
+    var clazz = (JSObject) decodeDictObject(vClass, dict);
+    var slot = clazz.lookup((String) decodeDictObject(fieldName, dict));
+    return slot == UNDEFINED ? InlineCaches.NO_FIELD : (int) slot;
+  }
+
+  // slow path of a GET, a PUT or a superinstruction that gets a field, lookup the field slot
+  // and update the inline cache, a GET or a PUT at opcodeIndex transitions from monomorphic
+  // to polymorphic to megamorphic
+  private static int fieldSlotMiss(int[] instrs, int opcodeIndex, int[] site, int vClass, Dictionary dict) {
+    var slot = fieldSlot(vClass, site[InlineCaches.FIELD_NAME], dict);
+    var opcode = instrs[opcodeIndex];
+    if (slot == InlineCaches.NO_FIELD && (opcode == Instructions.PUT_MONO || opcode == Instructions.PUT_POLY)) {
+      throw new Failure("invalid field " + decodeDictObject(site[InlineCaches.FIELD_NAME], dict));
+    }
+    if (!InlineCaches.addEntry(site, vClass, slot)) {
+      switch (opcode) {
+        case Instructions.GET_MONO, Instructions.GET_POLY -> instrs[opcodeIndex] = Instructions.GET_MEGA;
+        case Instructions.PUT_MONO, Instructions.PUT_POLY -> instrs[opcodeIndex] = Instructions.PUT_MEGA;
+        default -> {}  // superinstructions stay polymorphic
+      }
+    } else if (site[InlineCaches.ENTRY_COUNT] == 2) {
+      switch (opcode) {
+        case Instructions.GET_MONO -> instrs[opcodeIndex] = Instructions.GET_POLY;
+        case Instructions.PUT_MONO -> instrs[opcodeIndex] = Instructions.PUT_POLY;
+        default -> {}
+      }
+    }
+    return slot;
+  }
+
+  // id of the interpreted function called by a FUNCALL in the function table or -1 if the function is native,
+  // fails if the qualifier is not a function, by example an undefined global
+  static int functionId(int qualifier, Dictionary dict) {
+    if (isConstant(qualifier)) {
+      var id = dict.constantFunctionId(decodeConstant(qualifier));
+      if (id != -1) {
+        return id;
+      }
+    }
+    var value = isSmallInt(qualifier) || isReference(qualifier) ? null : decodeDictObject(qualifier, dict);
+    if (!(value instanceof JSObject)) {
+      throw new Failure("can not call " + (value == null ? "an object or a number" : value) + ", not a function");
+    }
+    var function = (JSObject) value;
+    var code = function.lookup("__code__");
+    return code == UNDEFINED ? -1 : dict.functionId(function, code);
+  }
+
+  // slow path of a FUNCALL_CACHED or a TAILCALL_CACHED, find the function and check its arity,
+  // only a function encoded as a constant is cached, a handle may be reused for another value
+  static void callSiteMiss(InlineCaches.CallSite site, int qualifier, Dictionary dict) {
+    site.missCount++;
+    var id = functionId(qualifier, dict);
+    if (id == -1) {
+      site.function = (JSObject) decodeDictObject(qualifier, dict);
+      site.code = null;
+    } else {
+      var code = (Code) dict.functionCode(id);
+      if (code.parameterCount() != site.argumentCount + 1/* this */) {
+        throw new Failure("wrong number of arguments for " + dict.function(id).getName() + " expected "
+          + (code.parameterCount() - 1) + " but was " + site.argumentCount);
+      }
+      site.function = dict.function(id);
+      site.code = code;
+    }
+    site.functionId = id;
+    site.qualifier = isConstant(qualifier) ? qualifier : 0;
+  }
+
+  // the roots of the frames of the current execution followed by the roots of the suspended executions,
+  // the stack is read when the roots are scanned because a callback may have grown it,
+  // the stack segments of the parked fibers are scanned once, by the roots of the bottom execution
+  static Heap.Roots roots(VM vm, int sp, int bp, int pc, Code code, Dictionary dict) {
+    var suspendedRoots = vm.suspendedRoots();
+    return visitor -> {
+      scanRoots(vm.stack(), sp, bp, pc, code, dict, visitor);
+      if (suspendedRoots != null) {
+        suspendedRoots.scan(visitor);
+        return;
+      }
+      for (var fiber : vm.parkedFibers()) {
+        scanRoots(fiber.stack, fiber.sp, fiber.bp, fiber.pc, (Code) dict.functionCode(fiber.functionId), dict, visitor);
+      }
+    };
+  }
+
+  // call a native function with the receiver and the arguments of the stack,
+  // the roots are used if the result is allocated in the heap,
+  // the native function may call back an interpreted function that grows the stack
+  static int callNative(JSObject function, int[] stack, int baseArg, int argumentCount, Dictionary dict, VM vm, Heap.Roots roots) {
+    var heap = vm.heap();
+    var receiver = decodeAnyValue(stack[baseArg + RECEIVER_BASE_ARG_OFFSET], dict, heap);
+    var args = new Object[argumentCount];
+    for (var i = 0; i < argumentCount; i++) {
+      args[i] = decodeAnyValue(stack[baseArg + i], dict, heap);
+    }
+    if (Tracer.enabled(Tracer.CALLS, Tracer.DEBUG)) {
+      Tracer.trace(Tracer.CALLS, Tracer.DEBUG, "call native " + function.getName() + " with " + receiver + " " + Arrays.toString(args));
+    }
+    var result = vm.invokeNative(function, receiver, args, baseArg + argumentCount, roots);
+    return encodeAnyValue(result, dict, heap, roots);
+  }
+
+  // initialize the bottom frame of an execution at bp, the receiver and the arguments are the first slots,
+  // the saved pc of the activation zone is 0
+  static void initBottomFrame(JSObject function, Object receiver, Object[] args, int parameterCount, int slotCount,
+                              int[] stack, int bp, Dictionary dict, Heap heap) {
+    if (parameterCount != args.length + 1/* this */) {
+      throw new Failure("wrong number of arguments for " + function.getName() + " expected "
+        + (parameterCount - 1) + " but was " + args.length);
+    }
+    stack[bp] = encodeAnyValue(receiver, dict, heap);
+    for (var i = 0; i < args.length; i++) {
+      stack[bp + 1 + i] = encodeAnyValue(args[i], dict, heap);
+    }
+    Arrays.fill(stack, bp + parameterCount, bp + slotCount, encodeDictObject(UNDEFINED, dict));
+    var activation = bp + slotCount;
+    stack[activation + BP_OFFSET] = 0;
+    stack[activation + PC_OFFSET] = 0;
+    stack[activation + FUN_OFFSET] = 0;
+  }
 
-  private static final int RECEIVER_BASE_ARG_OFFSET = -1;
-  private static final int QUALIFIER_BASE_ARG_OFFSET = -2;
+  // run a full collection to free the handles that are not referenced by the stack or the heap
+  static void collectHandles(VM vm, int sp, int bp, int pc, Code code, Dictionary dict) {
+    vm.heap().collect(dict, roots(vm, sp, bp, pc, code, dict));
+    if (Tracer.enabled(Tracer.HEAP, Tracer.DEBUG)) {
+      Tracer.trace(Tracer.HEAP, Tracer.DEBUG, dict.handleCount() + " handles live after collection");
+    }
+  }
 
-  private static final int FUNCALL_PREFIX = 2;
+  // size of a frame, checked once per call
+  static int frameSize(Code code) {
+    return code.slotCount() + ACTIVATION_SIZE + code.maxStack();
+  }
 
   public static Object execute(JSObject function, Dictionary dict, JSObject globalEnv) {
-    var stack = new int[96 /* 4096 */];
-    var heap = new int[96 /* 4096 */];
-    var code = (Code) function.lookup("__code__");
-    var instrs = code.instrs();
+    return execute(function, dict, globalEnv, new VM(VMConfig.DEFAULT));
+  }
 
-    var undefined = encodeDictObject(UNDEFINED, dict);
+  public static Object execute(JSObject function, Dictionary dict, JSObject globalEnv, VM vm) {
+    return execute(function, UNDEFINED, new Object[0], dict, globalEnv, vm);
+  }
 
-    var hp = 0; // heap pointer
-    var pc = 0; // instruction pointer
-    var bp = 0; // base pointer
-    var sp = bp + code.slotCount() + ACTIVATION_SIZE; // stack pointer
+  /**
+   * Calls an interpreted function from a native function.
+   * If an execution that uses the same dictionary runs on the current thread, the frames of the function
+   * are pushed on the stack of this execution and the objects are allocated in its heap,
+   * otherwise the function is executed on a new VM.
+   * @param config the configuration of the new VM.
+   */
+  public static Object call(JSObject function, Object receiver, Object[] args, Dictionary dict, JSObject globalEnv,
+                            VMConfig config) {
+    var vm = VM.current();
+    if (vm == null || !vm.isRunning(dict)) {
+      vm = new VM(config);
+    }
+    return execute(function, receiver, args, dict, globalEnv, vm);
+  }
 
-    // initialize all local variables
-    for (var i = 0; i < code.slotCount(); i++) {
-      stack[i] = undefined;
+  static Object execute(JSObject function, Object receiver, Object[] args, Dictionary dict, JSObject globalEnv, VM vm) {
+    if (vm.isRunning(dict)) {
+      // called back by a native function, the frames start after the frames of the suspended execution
+      return execute(function, receiver, args, vm.suspendedTop(), dict, globalEnv, vm);
+    }
+    var previous = vm.start(dict);
+    // the handles of the dictionary are only freed if no other execution uses it
+    dict.enterExecution();
+    try {
+      return execute(function, receiver, args, 0, dict, globalEnv, vm);
+    } finally {
+      dict.exitExecution();
+      vm.stop(previous);
     }
+  }
+
+  /**
+   * Runs a fiber until it yields or its function returns.
+   * The stack segment of a parked fiber is copied at the bottom of the stack and the value is pushed
+   * as the return value of the call to yield that has suspended it.
+   * @return the value yielded by the fiber or the return value of its function.
+   * @throws IllegalStateException if the fiber is done or if the VM is running another execution.
+   */
+  static Object resume(Fiber fiber, Object value, Dictionary dict, JSObject globalEnv, VM vm) {
+    if (fiber.done) {
+      throw new IllegalStateException("the fiber is done");
+    }
+    var previous = vm.start(dict);
+    dict.enterExecution();
+    vm.enterFiber(fiber);
+    try {
+      Object result;
+      if (fiber.stack == null) {
+        // first resume
+        result = run(fiber.function, UNDEFINED, new Object[0], 0, dict, globalEnv, vm);
+      } else {
+        int sp = fiber.sp, bp = fiber.bp, pc = fiber.pc;
+        var code = (Code) dict.functionCode(fiber.functionId);
+        var stack = vm.ensureStackCapacity(bp + frameSize(code));
+        System.arraycopy(fiber.stack, 0, stack, 0, sp);
+        fiber.unpark();
+        stack[sp] = encodeAnyValue(value, dict, vm.heap(), roots(vm, sp, bp, pc, code, dict));
+        result = run(fiber.functionId, pc, sp + 1, bp, dict, globalEnv, vm);
+      }
+      if (fiber.yielding) {
+        return fiber.yieldedValue;
+      }
+      fiber.done = true;
+      return result;
+    } catch (RuntimeException | Error e) {
+      fiber.done = true;
+      throw e;
+    } finally {
+      vm.exitFiber();
+      dict.exitExecution();
+      vm.stop(previous);
+    }
+  }
+
+  // true if the native function that has just returned was a yield of the fiber running on the VM
+  private static boolean isYielding(VM vm) {
+    var fiber = vm.fiber();
+    return fiber != null && fiber.yielding;
+  }
+
+  private static Object execute(JSObject function, Object receiver, Object[] args, int bp, Dictionary dict,
+                                JSObject globalEnv, VM vm) {
+    return switch (vm.config().engine()) {
+      case SWITCH -> run(function, receiver, args, bp, dict, globalEnv, vm);
+      case CLOSURE -> vm.closureInterpreter().execute(function, receiver, args, bp, dict, globalEnv, vm);
+      case REGISTER -> RegisterInterpreter.execute(function, receiver, args, bp, dict, globalEnv, vm);
+    };
+  }
 
+  private static Object run(JSObject function, Object bottomReceiver, Object[] bottomArgs, int bp, Dictionary dict,
+                            JSObject globalEnv, VM vm) {
+    var code = (Code) function.lookup("__code__");
+    var functionId = dict.functionId(function, code);
+    var stack = vm.ensureStackCapacity(bp + frameSize(code));
+
+    // the stack may have been used by a previous execution, mark the bottom of the stack
+    // and initialize all local variables
+    initBottomFrame(function, bottomReceiver, bottomArgs, code.parameterCount(), code.slotCount(), stack, bp, dict, vm.heap());
+
+    return run(functionId, 0, bp + code.slotCount() + ACTIVATION_SIZE, bp, dict, globalEnv, vm);
+  }
+
+  // run the function functionId from the instruction pc with the frames already on the stack,
+  // until the bottom frame returns or the fiber running on the VM yields
+  private static Object run(int functionId, int pc, int sp, int bp, Dictionary dict, JSObject globalEnv, VM vm) {
+    var heap = vm.heap();
+    var code = (Code) dict.functionCode(functionId);
+    var instrs = code.instrs();
+    var stack = vm.stack();
+
+    var undefined = encodeDictObject(UNDEFINED, dict);
+
+    var dispatchCount = 0L;
     for (; ; ) {
+      dispatchCount++;
+      if (Tracer.enabled(Tracer.DISPATCH, Tracer.TRACE)) {
+        Tracer.trace(Tracer.DISPATCH, Tracer.TRACE, pc + " " + Instructions.name(instrs[pc]));
+      }
       switch (instrs[pc++]) {
         case Instructions.CONST -> {
           // throw new UnsupportedOperationException("TODO CONST");
@@ -103,16 +418,46 @@ public class StackInterpreter {
           sp++;
         }
         case Instructions.LOOKUP -> {
-          //throw new UnsupportedOperationException("TODO LOOKUP");
-          // decode the name from the instructions
-          var value = instrs[pc++];
-          String name = decodeDictObject(value, dict).toString();
-          var object = globalEnv.lookup(name);
-          // lookup the name and push as any value
-          var encodeValue = encodeAnyValue(object, dict);
-          push(stack, sp, encodeValue);
-          sp++;
+          // first execution, quicken the instruction with a global site
+          var index = code.inlineCaches().newGlobalSite(instrs[pc]);
+          var site = code.inlineCaches().globalSite(index);
+          resolveGlobal(site, globalEnv, dict);
+          instrs[pc - 1] = Instructions.LOOKUP_CACHED;
+          instrs[pc++] = index;
+          push(stack, sp++, site.value);
+        }
+        case Instructions.LOOKUP_CACHED -> {
+          var site = code.inlineCaches().globalSite(instrs[pc++]);
+          if (!site.isValid(globalEnv)) {
+            // the global environment has changed, resolve again
+            resolveGlobal(site, globalEnv, dict);
+          }
+          push(stack, sp++, site.value);
+        }
+        case Instructions.FOLDED -> {
+          var label = instrs[pc++];
+          var site = code.inlineCaches().foldedSite(instrs[pc++]);
+          if (site.isValid(globalEnv) || refold(site, globalEnv)) {
+            // skip the code of the call
+            push(stack, sp++, site.value);
+            pc = label;
+            continue;
+          }
+          // an operator has been redefined, execute the code of the call from now on
+          instrs[pc - 3] = Instructions.UNFOLDED;
+        }
+        case Instructions.JUMP_FOLDED -> {
+          var label = instrs[pc++];
+          var site = code.inlineCaches().foldedSite(instrs[pc++]);
+          if (site.isValid(globalEnv) || refold(site, globalEnv)) {
+            // jump to the live branch
+            pc = label;
+            continue;
+          }
+          // an operator has been redefined, evaluate the condition from now on
+          instrs[pc - 3] = Instructions.UNFOLDED;
         }
+        case Instructions.UNFOLDED -> pc += 2;
         case Instructions.REGISTER -> {
           //throw new UnsupportedOperationException("TODO REGISTER");
           // decode the name from the instructions
@@ -166,12 +511,19 @@ public class StackInterpreter {
           push(stack, sp++, value2);
         }
         case Instructions.FUNCALL -> {
-          //throw new UnsupportedOperationException("TODO FUNCALL");
+          // first execution, quicken the instruction with an empty call site
+          // and execute it again
+          instrs[pc] = code.inlineCaches().newCallSite(instrs[pc]);
+          instrs[pc - 1] = Instructions.FUNCALL_CACHED;
+          pc--;
+        }
+        case Instructions.FUNCALL_CACHED -> {
           // DEBUG
-          dumpStack(">start funcall dump", stack, sp, bp, dict, heap);
+          traceStack("start funcall", stack, sp, bp, dict, heap);
 
-          // find argument count
-          var argumentCount = instrs[pc++]; // arg apres FUNCALL
+          // find the call site and the argument count
+          var site = code.inlineCaches().callSite(instrs[pc++]);
+          var argumentCount = site.argumentCount;
           // find baseArg
           var baseArg = sp - argumentCount;
           // stack[baseArg] is the first argument
@@ -180,59 +532,49 @@ public class StackInterpreter {
           // function)
           var qualifier = stack[baseArg + QUALIFIER_BASE_ARG_OFFSET];
 
-          // decode qualifier
-          var newFunction = (JSObject) decodeDictObject(qualifier, dict);
-         /*{ // DEBUG
-            var receiver = decodeAnyValue(stack[baseArg + RECEIVER_BASE_ARG_OFFSET], dict, heap);
-            var args = new Object[argumentCount];
-            for (var i = 0; i < argumentCount; i++) {
-              args[i] = decodeAnyValue(stack[baseArg + i], dict, heap);
-            }
-            System.err.println("funcall " + newFunction.getName() + " with " + receiver + " " + Arrays.toString(args));
-          }*/
-
-          // check if the function contains a code attribute
-          var maybeCode = newFunction.lookup("__code__");
-          if (maybeCode == UNDEFINED) { // native call !
-            // decode receiver
-            var receiver = decodeAnyValue(stack[baseArg + RECEIVER_BASE_ARG_OFFSET], dict, heap);
-
-            // decode arguments
-            var args = new Object[argumentCount];
-            for (var i = 0; i < argumentCount; i++) {
-              var v = stack[baseArg + i];
-              args[i] = decodeAnyValue(v, dict, heap);
-            }
-
-            System.err.println("call native " + newFunction.getName() + " with " + receiver + " " + java.util.Arrays.toString(args));
-
-            // call native function
-            var result = encodeAnyValue(newFunction.invoke(receiver, args), dict);
+          // check the cached function, the arity of a cached function is already checked
+          if (site.isHit(qualifier)) {
+            site.hitCount++;
+          } else {
+            callSiteMiss(site, qualifier, dict);
+          }
+          if (site.code == null) { // native call !
+            var result = callNative(site.function, stack, baseArg, argumentCount, dict, vm, roots(vm, sp, bp, pc, code, dict));
+            stack = vm.stack();
 
             // fixup sp
             sp = baseArg - FUNCALL_PREFIX;
 
+            if (isYielding(vm)) {
+              // the fiber is parked, the value of the next resume is pushed as the return value
+              vm.addDispatchCount(dispatchCount);
+              vm.fiber().park(stack, sp, bp, pc, functionId);
+              return UNDEFINED;
+            }
+
             // push return value
             push(stack, sp, result);
             sp++;
+
+            // the result may be a new handle, free the unused ones
+            if (dict.shouldCollectHandles()) {
+              collectHandles(vm, sp, bp, pc, code, dict);
+            }
             continue;
           }
 
           // initialize new code
-          code = (Code) maybeCode;
+          code = site.code;
 
-          // check number of arguments
-          if (code.parameterCount() != argumentCount + 1/* this */) {
-            throw new Failure("wrong number of arguments for " + newFunction.getName() + " expected "
-              + (code.parameterCount() - 1) + " but was " + argumentCount);
-          }
+          // check that the stack is big enough for the new frame
+          stack = vm.ensureStackCapacity(baseArg - 1 + frameSize(code));
 
           // save bp/pc/code in activation zone
           // stack[activation + offset] = ??
           var activation = baseArg - 1 + code.slotCount();
           stack[activation + BP_OFFSET] = bp;
           stack[activation + PC_OFFSET] = pc;
-          stack[activation + FUN_OFFSET] = encodeDictObject(function, dict);
+          stack[activation + FUN_OFFSET] = functionId;
 
           // initialize pc, bp and sp
           pc = 0;
@@ -244,16 +586,78 @@ public class StackInterpreter {
           }
 
           // initialize function and instrs of the new function
-          function = newFunction;
+          functionId = site.functionId;
           instrs = code.instrs();
 
           // DEBUG
-          dumpStack(">end funcall dump", stack, sp, bp, dict, heap);
+          traceStack("end funcall", stack, sp, bp, dict, heap);
+        }
+        case Instructions.TAILCALL -> {
+          // first execution, quicken the instruction with an empty call site
+          instrs[pc] = code.inlineCaches().newCallSite(instrs[pc]);
+          instrs[pc - 1] = Instructions.TAILCALL_CACHED;
+          pc--;
+        }
+        case Instructions.TAILCALL_CACHED -> {
+          var site = code.inlineCaches().callSite(instrs[pc++]);
+          var argumentCount = site.argumentCount;
+          var baseArg = sp - argumentCount;
+          var qualifier = stack[baseArg + QUALIFIER_BASE_ARG_OFFSET];
+          if (site.isHit(qualifier)) {
+            site.hitCount++;
+          } else {
+            callSiteMiss(site, qualifier, dict);
+          }
+          if (site.code == null) {
+            // push the result, the following RET returns it
+            var result = callNative(site.function, stack, baseArg, argumentCount, dict, vm, roots(vm, sp, bp, pc, code, dict));
+            stack = vm.stack();
+            sp = baseArg - FUNCALL_PREFIX;
+            if (isYielding(vm)) {
+              vm.addDispatchCount(dispatchCount);
+              vm.fiber().park(stack, sp, bp, pc, functionId);
+              return UNDEFINED;
+            }
+            push(stack, sp, result);
+            sp++;
+            if (dict.shouldCollectHandles()) {
+              collectHandles(vm, sp, bp, pc, code, dict);
+            }
+            continue;
+          }
+          var newCode = site.code;
+
+          // the new frame replaces the current one, keep the saved bp/pc/function of the current frame
+          var activation = bp + code.slotCount();
+          var savedBp = stack[activation + BP_OFFSET];
+          var savedPc = stack[activation + PC_OFFSET];
+          var savedFunction = stack[activation + FUN_OFFSET];
+
+          stack = vm.ensureStackCapacity(bp + frameSize(newCode));
+          // move the receiver and the arguments to the first slots
+          System.arraycopy(stack, baseArg + RECEIVER_BASE_ARG_OFFSET, stack, bp, argumentCount + 1);
+
+          code = newCode;
+          activation = bp + code.slotCount();
+          stack[activation + BP_OFFSET] = savedBp;
+          stack[activation + PC_OFFSET] = savedPc;
+          stack[activation + FUN_OFFSET] = savedFunction;
+
+          pc = 0;
+          sp = activation + ACTIVATION_SIZE;
+          for (var i = bp + code.parameterCount(); i < activation; i++) {
+            stack[i] = undefined;
+          }
+          functionId = site.functionId;
+          instrs = code.instrs();
+
+          // DEBUG
+          traceStack("end tailcall", stack, sp, bp, dict, heap);
         }
         case Instructions.RET -> {
           //throw new UnsupportedOperationException("TODO RET");
           // DEBUG
-          dumpStack("> start ret dump", stack, sp, bp, dict, heap);
+          traceStack("start ret", stack, sp, bp, dict, heap);
 
           // get the return value from the top of the stack
           sp--;
@@ -266,23 +670,24 @@ public class StackInterpreter {
           pc = stack[activation + PC_OFFSET];
           if (pc == 0) {
             // end of the interpreter
+            vm.addDispatchCount(dispatchCount);
             return decodeAnyValue(result, dict, heap);
           }
 
           // restore sp, function and bp
           sp = bp - 1;
-          function = (JSObject) decodeDictObject(stack[activation + FUN_OFFSET], dict);
+          functionId = stack[activation + FUN_OFFSET];
           bp = stack[activation + BP_OFFSET];
 
           // restore code and instrs
-          code = (Code) function.lookup("__code__");
+          code = (Code) dict.functionCode(functionId);
           instrs = code.instrs();
 
           // push return value
           push(stack, sp, result);
           sp++;
           // DEBUG
-          dumpStack("> end ret dump", stack, sp, bp, dict, heap);
+          traceStack("end ret", stack, sp, bp, dict, heap);
         }
         case Instructions.GOTO -> {
           //throw new UnsupportedOperationException("TODO GOTO");
@@ -294,7 +699,8 @@ public class StackInterpreter {
           // get the label
           var label = instrs[pc++];
           // get the value on top of the stack
-          var condition = peek(stack, sp);
+          sp--;
+          var condition = pop(stack, sp);
           // if condition is false change the program counter to the label
           if (condition == TagValues.FALSE) {
             pc = label;
@@ -306,76 +712,153 @@ public class StackInterpreter {
           var vClass = instrs[pc++];
           var clazz = (JSObject) decodeDictObject(vClass, dict);
 
-          // out of memory ?
-          if (hp + OBJECT_HEADER_SIZE + clazz.length() >= heap.length) {
-            dumpHeap("before GC ", heap, hp, dict);
-            //throw new UnsupportedOperationException("TODO !!! GC !!!")
-            dumpHeap("after GC ", heap, hp, dict);
-          }
-
-          var ref = hp;
+          // allocate the object, may trigger a GC
+          var size = OBJECT_HEADER_SIZE + clazz.length();
+          // the heap writes the class and the empty GC mark
+          var ref = heap.allocate(size, vClass, dict, roots(vm, sp, bp, pc, code, dict));
 
-          // write the class on heap
-          heap[ref] = encodeDictObject(clazz, dict);
-          // write the empty GC mark
-          heap[ref + GC_OFFSET] = GC_EMPTY;
           // get all fields values from the stack and write them on heap
           var baseArg = sp - clazz.length();
           for (var i = 0; i < clazz.length(); i++) {
-            heap[ref + OBJECT_HEADER_SIZE + i] = stack[baseArg + i];
+            heap.set(ref + OBJECT_HEADER_SIZE + i, stack[baseArg + i]);
           }
-          // adjust stack pointer and heap pointer
-          sp += baseArg;
-          // hp += 1;
-          hp += clazz.length() + OBJECT_HEADER_SIZE;
+          // adjust stack pointer
+          sp = baseArg;
 
           // push the reference on top of the stack
-          push(stack, sp, ref);
+          push(stack, sp, encodeReference(ref));
+          sp++;
         }
-        case Instructions.GET -> {
-          //throw new UnsupportedOperationException("TODO GET");
-          // get field name from the instructions
-          var fieldName = (String) decodeDictObject(instrs[pc++], dict);
-
-          // get reference from the top of the stack
+        case Instructions.GET, Instructions.PUT -> {
+          // first execution, quicken the instruction with an empty inline cache
+          // and execute it again
+          var site = code.inlineCaches().newFieldSite(instrs[pc]);
+          instrs[pc - 1] = instrs[pc - 1] == Instructions.GET ? Instructions.GET_MONO : Instructions.PUT_MONO;
+          instrs[pc] = site;
+          pc--;
+        }
+        case Instructions.GET_MONO -> {
+          var site = code.inlineCaches().fieldSite(instrs[pc++]);
           var ref = decodeReference(pop(stack, --sp));
-          // get class on heap from the reference
-          var vClass = heap[ref];
-          // get JSObject from class
-          var clazz = (JSObject) decodeDictObject(vClass, dict);
-          // get field slot from JSObject
-          var slot = clazz.lookup(fieldName);
-          if (slot == UNDEFINED) {
-            // no slot, push undefined
-            push(stack, sp++, undefined);
-            continue;
+          var vClass = heap.get(ref);
+          var slot = vClass == site[InlineCaches.FIRST_ENTRY]
+              ? site[InlineCaches.FIRST_ENTRY + 1]
+              : fieldSlotMiss(instrs, pc - 2, site, vClass, dict);
+          push(stack, sp++, slot == InlineCaches.NO_FIELD ? undefined : heap.get(ref + OBJECT_HEADER_SIZE + slot));
+        }
+        case Instructions.GET_POLY -> {
+          var site = code.inlineCaches().fieldSite(instrs[pc++]);
+          var ref = decodeReference(pop(stack, --sp));
+          var vClass = heap.get(ref);
+          var slot = InlineCaches.polymorphicSlot(site, vClass);
+          if (slot == InlineCaches.MISS) {
+            slot = fieldSlotMiss(instrs, pc - 2, site, vClass, dict);
           }
-
-          // push field value on top of the stack
-          var fieldAddr = ref + OBJECT_HEADER_SIZE + (int) slot;
-          push(stack, sp++, heap[fieldAddr]);
+          push(stack, sp++, slot == InlineCaches.NO_FIELD ? undefined : heap.get(ref + OBJECT_HEADER_SIZE + slot));
+        }
+        case Instructions.GET_MEGA -> {
+          var site = code.inlineCaches().fieldSite(instrs[pc++]);
+          var ref = decodeReference(pop(stack, --sp));
+          var slot = fieldSlot(heap.get(ref), site[InlineCaches.FIELD_NAME], dict);
+          push(stack, sp++, slot == InlineCaches.NO_FIELD ? undefined : heap.get(ref + OBJECT_HEADER_SIZE + slot));
         }
-        case Instructions.PUT -> {
-          //throw new UnsupportedOperationException("TODO PUT");
-          // get field name from the instructions
-          var fieldName = (String) decodeDictObject(instrs[pc++], dict);
-          // get new value from the top of the stack
+        case Instructions.PUT_MONO -> {
+          var site = code.inlineCaches().fieldSite(instrs[pc++]);
           var value = pop(stack, --sp);
-          // get reference from the top of the stack
           var ref = decodeReference(pop(stack, --sp));
-          // get class on heap from the reference
-          var vClass = heap[ref];
-          // get JSObject from class
-          var clazz = (JSObject) decodeDictObject(vClass, dict);
-          // get field slot from JSObject
-          var slot = clazz.lookup(fieldName);
-          if (slot == UNDEFINED) {
-            throw new Failure("invalid field " + fieldName);
+          var vClass = heap.get(ref);
+          var slot = vClass == site[InlineCaches.FIRST_ENTRY]
+              ? site[InlineCaches.FIRST_ENTRY + 1]
+              : fieldSlotMiss(instrs, pc - 2, site, vClass, dict);
+          heap.set(ref + OBJECT_HEADER_SIZE + slot, value);
+          heap.writeBarrier(ref, value);
+        }
+        case Instructions.PUT_POLY -> {
+          var site = code.inlineCaches().fieldSite(instrs[pc++]);
+          var value = pop(stack, --sp);
+          var ref = decodeReference(pop(stack, --sp));
+          var vClass = heap.get(ref);
+          var slot = InlineCaches.polymorphicSlot(site, vClass);
+          if (slot == InlineCaches.MISS) {
+            slot = fieldSlotMiss(instrs, pc - 2, site, vClass, dict);
           }
-
-          // store field value from the top of the stack on heap
-          var index = ref + OBJECT_HEADER_SIZE + (int) slot;
-          heap[index] = value;
+          heap.set(ref + OBJECT_HEADER_SIZE + slot, value);
+          heap.writeBarrier(ref, value);
+        }
+        case Instructions.PUT_MEGA -> {
+          var site = code.inlineCaches().fieldSite(instrs[pc++]);
+          var value = pop(stack, --sp);
+          var ref = decodeReference(pop(stack, --sp));
+          var slot = fieldSlot(heap.get(ref), site[InlineCaches.FIELD_NAME], dict);
+          if (slot == InlineCaches.NO_FIELD) {
+            throw new Failure("invalid field " + decodeDictObject(site[InlineCaches.FIELD_NAME], dict));
+          }
+          heap.set(ref + OBJECT_HEADER_SIZE + slot, value);
+          heap.writeBarrier(ref, value);
+        }
+        case Instructions.LOAD_GET -> {
+          var value = load(stack, bp, instrs[pc++]);
+          var site = code.inlineCaches().fieldSite(instrs[pc++]);
+          var ref = decodeReference(value);
+          var vClass = heap.get(ref);
+          var slot = InlineCaches.polymorphicSlot(site, vClass);
+          if (slot == InlineCaches.MISS) {
+            slot = fieldSlotMiss(instrs, pc - 3, site, vClass, dict);
+          }
+          push(stack, sp++, slot == InlineCaches.NO_FIELD ? undefined : heap.get(ref + OBJECT_HEADER_SIZE + slot));
+        }
+        case Instructions.GLOBAL_CALLEE -> {
+          var site = code.inlineCaches().globalSite(instrs[pc++]);
+          if (!site.isValid(globalEnv)) {
+            resolveGlobal(site, globalEnv, dict);
+          }
+          // push the function and undefined as receiver
+          push(stack, sp++, site.value);
+          push(stack, sp++, undefined);
+        }
+        case Instructions.GET_METHOD -> {
+          var site = code.inlineCaches().fieldSite(instrs[pc++]);
+          var receiver = pop(stack, --sp);
+          var ref = decodeReference(receiver);
+          var vClass = heap.get(ref);
+          var slot = InlineCaches.polymorphicSlot(site, vClass);
+          if (slot == InlineCaches.MISS) {
+            slot = fieldSlotMiss(instrs, pc - 2, site, vClass, dict);
+          }
+          // push the method then the receiver
+          push(stack, sp++, slot == InlineCaches.NO_FIELD ? undefined : heap.get(ref + OBJECT_HEADER_SIZE + slot));
+          push(stack, sp++, receiver);
+        }
+        case Instructions.STORE_LOAD -> {
+          store(stack, bp, instrs[pc++], pop(stack, --sp));
+          push(stack, sp++, load(stack, bp, instrs[pc++]));
+        }
+        case Instructions.ADD, Instructions.SUB, Instructions.MUL, Instructions.DIV, Instructions.REM,
+            Instructions.LT, Instructions.LE, Instructions.GT, Instructions.GE, Instructions.EQ, Instructions.NE -> {
+          var opcode = instrs[pc - 1];
+          var site = code.inlineCaches().globalSite(instrs[pc++]);
+          if (!site.isValid(globalEnv)) {
+            resolveGlobal(site, globalEnv, dict);
+          }
+          var left = stack[sp - 2];
+          var right = stack[sp - 1];
+          if (site.value == site.intrinsic && isSmallInt(left) && isSmallInt(right)) {
+            var result = intrinsic(opcode, decodeSmallInt(left), decodeSmallInt(right));
+            if (result != NO_RESULT) {
+              // skip the fallback FUNCALL
+              stack[sp - 2] = result;
+              sp--;
+              pc += 2;
+              continue;
+            }
+          }
+          // fallback, insert the function and the receiver below the arguments
+          // and let the following FUNCALL call the function
+          stack[sp + 1] = right;
+          stack[sp] = left;
+          stack[sp - 1] = undefined;
+          stack[sp - 2] = site.value;
+          sp += 2;
         }
         case Instructions.PRINT -> {
           //throw new UnsupportedOperationException("TODO PRINT");
@@ -388,7 +871,7 @@ public class StackInterpreter {
           var print = (JSObject) globalEnv.lookup("print");
           // invoke it
           var invokedResult = print.invoke(UNDEFINED, new Object[]{value});
-          var encodedUndefined = encodeDictObject(invokedResult, dict);
+          var encodedUndefined = encodeAnyValue(invokedResult, dict);
           // push undefined on the stack
           push(stack, sp, encodedUndefined);
           sp++;
@@ -399,42 +882,79 @@ public class StackInterpreter {
   }
 
 
+  // the operators of the global environments, shared because they have no state,
+  // an intrinsic instruction is only emitted for an operator bound to one of them
+  private static final Map<String, JSObject> BUILTIN_OPERATORS = builtinOperators();
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, JSObject> builtinOperators() {
+    var operators = new LinkedHashMap<String, JSObject>();
+    operators.put("+", JSObject.newFunction("+", (self, receiver, args) -> (Integer) args[0] + (Integer) args[1]));
+    operators.put("-", JSObject.newFunction("-", (self, receiver, args) -> (Integer) args[0] - (Integer) args[1]));
+    operators.put("/", JSObject.newFunction("/", (self, receiver, args) -> (Integer) args[0] / (Integer) args[1]));
+    operators.put("*", JSObject.newFunction("*", (self, receiver, args) -> (Integer) args[0] * (Integer) args[1]));
+    operators.put("%", JSObject.newFunction("%", (self, receiver, args) -> (Integer) args[0] % (Integer) args[1]));
+    operators.put("==", JSObject.newFunction("==", (self, receiver, args) -> args[0].equals(args[1]) ? 1 : 0));
+    operators.put("!=", JSObject.newFunction("!=", (self, receiver, args) -> !args[0].equals(args[1]) ? 1 : 0));
+    operators.put("<", JSObject.newFunction("<",
+      (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) < 0) ? 1 : 0));
+    operators.put("<=", JSObject.newFunction("<=",
+      (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) <= 0) ? 1 : 0));
+    operators.put(">", JSObject.newFunction(">",
+      (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) > 0) ? 1 : 0));
+    operators.put(">=", JSObject.newFunction(">=",
+      (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) >= 0) ? 1 : 0));
+    return Collections.unmodifiableMap(operators);
+  }
+
+  // true if the operator is the builtin operator of that name
+  static boolean isBuiltinOperator(String name, Object operator) {
+    var builtin = BUILTIN_OPERATORS.get(name);
+    return builtin != null && builtin == operator;
+  }
+
   public static JSObject createGlobalEnv(PrintStream outStream) {
     JSObject globalEnv = JSObject.newEnv(null);
     globalEnv.register("global", globalEnv);
     globalEnv.register("print", JSObject.newFunction("print", (self, receiver, args) -> {
-      System.err.println("print called with " + Arrays.toString(args));
+      if (Tracer.enabled(Tracer.CALLS, Tracer.DEBUG)) {
+        Tracer.trace(Tracer.CALLS, Tracer.DEBUG, "print called with " + Arrays.toString(args));
+      }
       outStream.println(Arrays.stream(args)
         .map(Object::toString)
         .collect(Collectors.joining(" ")));
       return UNDEFINED;
     }));
-    globalEnv.register("+", JSObject.newFunction("+", (self, receiver, args) -> (Integer) args[0] + (Integer) args[1]));
-    globalEnv.register("-", JSObject.newFunction("-", (self, receiver, args) -> (Integer) args[0] - (Integer) args[1]));
-    globalEnv.register("/", JSObject.newFunction("/", (self, receiver, args) -> (Integer) args[0] / (Integer) args[1]));
-    globalEnv.register("*", JSObject.newFunction("*", (self, receiver, args) -> (Integer) args[0] * (Integer) args[1]));
-    globalEnv.register("%", JSObject.newFunction("%", (self, receiver, args) -> (Integer) args[0] * (Integer) args[1]));
-
-    globalEnv.register("==", JSObject.newFunction("==", (self, receiver, args) -> args[0].equals(args[1]) ? 1 : 0));
-    globalEnv.register("!=", JSObject.newFunction("!=", (self, receiver, args) -> !args[0].equals(args[1]) ? 1 : 0));
-    globalEnv.register("<", JSObject.newFunction("<",
-      (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) < 0) ? 1 : 0));
-    globalEnv.register("<=", JSObject.newFunction("<=",
-      (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) <= 0) ? 1 : 0));
-    globalEnv.register(">", JSObject.newFunction(">",
-      (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) > 0) ? 1 : 0));
-    globalEnv.register(">=", JSObject.newFunction(">=",
-      (self, receiver, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) >= 0) ? 1 : 0));
+    globalEnv.register("yield", JSObject.newFunction("yield", (self, receiver, args) -> {
+      Fiber.yield(args.length == 0 ? UNDEFINED : args[0]);
+      return UNDEFINED;
+    }));
+    BUILTIN_OPERATORS.forEach(globalEnv::register);
 
     return globalEnv;
   }
 
   public static void interpret(Script script, PrintStream outStream) {
+    interpret(script, outStream, VMConfig.DEFAULT);
+  }
+
+  public static void interpret(Script script, PrintStream outStream, VMConfig config) {
+    interpret(script, outStream, new VM(config));
+  }
+
+  public static void interpret(Script script, PrintStream outStream, VM vm) {
     JSObject globalEnv = createGlobalEnv(outStream);
+    var dict = new Dictionary();
+    var function = createMainFunction(script, dict, globalEnv, vm.config());
+    execute(function, dict, globalEnv, vm);
+  }
+
+  // generate the code of the script for the engine of the configuration
+  static JSObject createMainFunction(Script script, Dictionary dict, JSObject globalEnv, VMConfig config) {
     var body = script.body();
-    var function = InstrRewriter.createFunction(Optional.of("main"), Collections.emptyList(), body, new Dictionary(),
-      globalEnv);
-    function.invoke(UNDEFINED, new Object[0]);
+    return config.engine() == VMConfig.Engine.REGISTER
+      ? RegisterRewriter.createFunction(Optional.of("main"), Collections.emptyList(), body, dict, globalEnv, config)
+      : InstrRewriter.createFunction(Optional.of("main"), Collections.emptyList(), body, dict, globalEnv, config);
   }
 
   public static void printStackTrace() {
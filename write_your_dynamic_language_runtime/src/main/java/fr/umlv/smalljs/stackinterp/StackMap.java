@@ -0,0 +1,123 @@
+package fr.umlv.smalljs.stackinterp;
+
+import java.util.Arrays;
+
+import static fr.umlv.smalljs.stackinterp.Instructions.*;
+
+/**
+ * The slots (parameters and local variables) of a {@link Code} that are live before each instruction,
+ * a slot is live if it may be loaded before being stored on a path that starts at the instruction.
+ *
+ * When the GC walks the frames of the stack, the activation zone of a frame is skipped,
+ * the values of the operand stack are all scanned and only the live slots are scanned,
+ * a dead slot is overwritten with undefined so a local variable that is not used anymore
+ * does not retain an object.
+ * The live slots of a frame are the ones of the instruction that is executed when the frame resumes,
+ * the instruction after the allocation for the top frame, the return address for the other frames.
+ */
+public final class StackMap {
+  private final int stride;  // number of longs per instruction
+  private final long[] liveSlots;
+
+  private StackMap(int stride, long[] liveSlots) {
+    this.stride = stride;
+    this.liveSlots = liveSlots;
+  }
+
+  /**
+   * Returns true if the slot may be loaded by the code starting at pc.
+   * @param pc the index of an instruction.
+   * @param slot the index of a slot.
+   */
+  public boolean isLive(int pc, int slot) {
+    return (liveSlots[pc * stride + (slot >>> 6)] & (1L << slot)) != 0;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof StackMap && stride == ((StackMap) o).stride && Arrays.equals(liveSlots, ((StackMap) o).liveSlots);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(liveSlots);
+  }
+
+  /**
+   * Computes the live slots by a backward data-flow analysis of the instructions.
+   * @param instrs the instructions.
+   * @param slotCount the number of slots.
+   */
+  static StackMap of(int[] instrs, int slotCount) {
+    var stride = (slotCount + 63) >>> 6;
+    var liveSlots = new long[instrs.length * stride];
+
+    var pcs = new int[instrs.length];
+    var instrCount = 0;
+    for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+      pcs[instrCount++] = pc;
+    }
+
+    // iterate until a fixpoint, the instructions are visited backward to propagate faster
+    var live = new long[stride];
+    boolean changed;
+    do {
+      changed = false;
+      for (var i = instrCount; --i >= 0; ) {
+        var pc = pcs[i];
+        var opcode = instrs[pc];
+        var next = pc + Instructions.length(opcode);
+
+        // live slots after the instruction
+        Arrays.fill(live, 0);
+        switch (opcode) {
+          case RET -> {}
+          case GOTO -> join(live, liveSlots, stride, instrs[pc + 1]);
+          case JUMP_IF_FALSE, FOLDED, JUMP_FOLDED -> {
+            join(live, liveSlots, stride, instrs[pc + 1]);
+            join(live, liveSlots, stride, next);
+          }
+          default -> join(live, liveSlots, stride, next);
+        }
+
+        // live slots before the instruction
+        switch (opcode) {
+          case LOAD, LOAD_GET -> set(live, instrs[pc + 1], slotCount, true);
+          case STORE -> set(live, instrs[pc + 1], slotCount, false);
+          case STORE_LOAD -> {
+            set(live, instrs[pc + 1], slotCount, false);
+            set(live, instrs[pc + 2], slotCount, true);
+          }
+          default -> {}
+        }
+
+        var offset = pc * stride;
+        if (!Arrays.equals(live, 0, stride, liveSlots, offset, offset + stride)) {
+          System.arraycopy(live, 0, liveSlots, offset, stride);
+          changed = true;
+        }
+      }
+    } while (changed);
+    return new StackMap(stride, liveSlots);
+  }
+
+  private static void join(long[] live, long[] liveSlots, int stride, int pc) {
+    if (pc < 0 || pc * stride >= liveSlots.length) {
+      return;
+    }
+    for (var i = 0; i < stride; i++) {
+      live[i] |= liveSlots[pc * stride + i];
+    }
+  }
+
+  private static void set(long[] live, int slot, int slotCount, boolean isLive) {
+    if (slot < 0 || slot >= slotCount) {
+      return;
+    }
+    if (isLive) {
+      live[slot >>> 6] |= 1L << slot;
+    } else {
+      live[slot >>> 6] &= ~(1L << slot);
+    }
+  }
+}
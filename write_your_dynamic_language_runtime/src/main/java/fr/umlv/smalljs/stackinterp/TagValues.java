@@ -1,30 +1,58 @@
 package fr.umlv.smalljs.stackinterp;
 
-import fr.umlv.smalljs.rt.JSObject;
-
 public interface TagValues {
 	// every values are stored as 32 bits integer, boolean, small ints, constant (dictionary object) and reference
 	// the suffix indicates the kind of value
-	//    1 -> small ints or boolean (TRUE/FALSE)
-	//   10 -> dictionary index
+	//    1 -> signed 31 bits small ints or boolean (TRUE/FALSE)
+	//  010 -> dictionary constant index
+	//  110 -> dictionary handle index
 	//   00 -> reference 
 	
+  // bounds of the small ints
+  int MIN_SMALL_INT = -(1 << 30);
+  int MAX_SMALL_INT = (1 << 30) - 1;
+
   static boolean isSmallInt(int value) {
     return (value & 0b1) == 0b1;
   }
 
+  static boolean fitsInSmallInt(long value) {
+    return value >= MIN_SMALL_INT && value <= MAX_SMALL_INT;
+  }
+
+  // the value must fit in a small int
   static int encodeSmallInt(int value) {
     return value << 1 | 0b1;
   }
   static int decodeSmallInt(int value) {
-    return value >>> 1;
+    return value >> 1;
   }
 
+  // a constant lives as long as the dictionary
   static int encodeDictObject(Object object, Dictionary dict) {
-    return dict.index(object) << 2 | 0b10;
+    return dict.index(object) << 3 | 0b010;
   }
   static Object decodeDictObject(int value, Dictionary dict) {
-    return dict.getConst(value >>> 2);
+    var index = value >>> 3;
+    return isHandle(value) ? dict.getHandle(index) : dict.getConst(index);
+  }
+
+  static boolean isConstant(int value) {
+    return (value & 0b111) == 0b010;
+  }
+  static int decodeConstant(int value) {
+    return value >>> 3;
+  }
+
+  // a handle is reclaimed by the GC if no slot references it
+  static boolean isHandle(int value) {
+    return (value & 0b111) == 0b110;
+  }
+  static int encodeHandle(Object object, Dictionary dict) {
+    return dict.newHandle(object) << 3 | 0b110;
+  }
+  static int decodeHandle(int value) {
+    return value >>> 3;
   }
   
   static boolean isReference(int value) {
@@ -38,20 +66,46 @@ public interface TagValues {
     return value >>> 2;
   }
 
-  static Object decodeAnyValue(int tagValue, Dictionary dict, int[] heap) {
+  static Object decodeAnyValue(int tagValue, Dictionary dict, Heap heap) {
     if (TagValues.isSmallInt(tagValue)) {
       return TagValues.decodeSmallInt(tagValue);
     }
     if (TagValues.isReference(tagValue)) {
       var ref = TagValues.decodeReference(tagValue);
-      var clazz = (JSObject) decodeDictObject(heap[ref], dict);
-      return clazz.mirror(offset -> decodeAnyValue(heap[ref + OBJECT_HEADER_SIZE + (int)offset], dict, heap));
+      return heap.isString(ref, dict) ? heap.getString(ref) : new HeapObjectView(heap, dict, ref);
     }
     return TagValues.decodeDictObject(tagValue, dict);
   }
   static int encodeAnyValue(Object object, Dictionary dict) {
   	int smallInt;
-    if (object instanceof Integer && (smallInt = (Integer)object) >= 0) {
+    if (object instanceof Integer && fitsInSmallInt(smallInt = (Integer)object)) {
+      return TagValues.encodeSmallInt(smallInt);
+    }
+    // reuse the constant if it exists, so values known at codegen keep the same encoding
+    var index = dict.indexOf(object);
+    if (index != -1) {
+      return index << 3 | 0b010;
+    }
+    return encodeHandle(object, dict);
+  }
+  // a view of an object of the heap is encoded as a reference to the object
+  static int encodeAnyValue(Object object, Dictionary dict, Heap heap) {
+    if (object instanceof HeapObjectView && ((HeapObjectView) object).heap() == heap) {
+      return encodeReference(((HeapObjectView) object).ref);
+    }
+    return encodeAnyValue(object, dict);
+  }
+  // a string that is not a constant is allocated in the heap, so may trigger a GC
+  static int encodeAnyValue(Object object, Dictionary dict, Heap heap, Heap.Roots roots) {
+    if (object instanceof String && dict.indexOf(object) == -1) {
+      return encodeReference(heap.allocateString((String) object, dict, roots));
+    }
+    return encodeAnyValue(object, dict, heap);
+  }
+  // encode a value that lives as long as the code (a literal or a global)
+  static int encodeConstant(Object object, Dictionary dict) {
+    int smallInt;
+    if (object instanceof Integer && fitsInSmallInt(smallInt = (Integer)object)) {
       return TagValues.encodeSmallInt(smallInt);
     }
     return TagValues.encodeDictObject(object, dict);
@@ -0,0 +1,209 @@
+package fr.umlv.smalljs.stackinterp;
+
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The memory of the stack interpreter, a stack and a heap, both sized by a {@link VMConfig}.
+ * A VM can be reused by several executions but not concurrently.
+ *
+ * While an execution runs, the VM is the context of the current thread. An execution suspended by a call
+ * to a native function records the end of its frames and its roots, so an interpreted function called back
+ * by the native function pushes its frames on the same stack and allocates in the same heap.
+ *
+ * The {@link Fiber}s of an isolate share its VM, the running fiber uses the stack, the parked ones
+ * keep a copy of their frames that is scanned by the GC.
+ */
+public final class VM {
+  private static final ThreadLocal<VM> CURRENT = new ThreadLocal<>();
+
+  private final VMConfig config;
+  private final Heap heap;
+  private int[] stack;
+  private ClosureInterpreter closureInterpreter;  // lazily created
+
+  private Dictionary dict;  // dictionary of the running execution or null
+  private Thread thread;  // thread of the running execution
+  private int suspendedTop;  // end of the frames of the suspended executions
+  private Heap.Roots suspendedRoots;  // roots of the suspended executions or null
+  private int nativeDepth;  // number of native calls in progress
+
+  private Fiber fiber;  // fiber running on the VM or null
+  private final Set<Fiber> parkedFibers = new HashSet<>();
+
+  // statistics
+  private int stackGrowCount;
+  private int stackHighWaterMark;
+  private long dispatchCount;
+
+  public VM(VMConfig config) {
+    this.config = requireNonNull(config);
+    this.heap = new Heap(config.initialHeapSize(), config.maxHeapSize(), config.heapGrowthThreshold(), config.nurseryPercent(),
+        config.heapMemory());
+    this.stack = new int[config.initialStackSize()];
+  }
+
+  public VMConfig config() {
+    return config;
+  }
+
+  public Heap heap() {
+    return heap;
+  }
+
+  ClosureInterpreter closureInterpreter() {
+    if (closureInterpreter == null) {
+      closureInterpreter = new ClosureInterpreter();
+    }
+    return closureInterpreter;
+  }
+
+  int[] stack() {
+    return stack;
+  }
+
+  /**
+   * Checks that the stack can contain {@code required} words, grows it if necessary.
+   * @return the stack, maybe a new array.
+   * @throws Failure if the stack needs to be bigger than the maximum stack size.
+   */
+  int[] ensureStackCapacity(int required) {
+    if (required > stackHighWaterMark) {
+      stackHighWaterMark = required;
+    }
+    if (required <= stack.length) {
+      return stack;
+    }
+    if (required > config.maxStackSize()) {
+      throw new Failure("stack overflow, the stack needs " + required + " words but the maximum is " + config.maxStackSize());
+    }
+    var newSize = (int) Math.min(Math.max((long) stack.length << 1, required), config.maxStackSize());
+    stack = Arrays.copyOf(stack, newSize);
+    stackGrowCount++;
+    return stack;
+  }
+
+  /**
+   * @return the size of the stack in words.
+   */
+  public int stackCapacity() {
+    return stack.length;
+  }
+
+  public int stackGrowCount() {
+    return stackGrowCount;
+  }
+
+  /**
+   * @return the maximum number of words of the stack reserved by the frames.
+   */
+  public int stackHighWaterMark() {
+    return stackHighWaterMark;
+  }
+
+  /**
+   * @return the VM of the execution running on the current thread or null.
+   */
+  static VM current() {
+    return CURRENT.get();
+  }
+
+  // true if an execution is running on this VM
+  boolean isRunning() {
+    return dict != null;
+  }
+
+  // true if an execution that uses the dictionary is running on this VM on the current thread
+  boolean isRunning(Dictionary dict) {
+    return this.dict == dict && thread == Thread.currentThread();
+  }
+
+  // start an execution, returns the previous VM of the current thread
+  VM start(Dictionary dict) {
+    if (isRunning()) {
+      throw new IllegalStateException("the VM is already used by another execution");
+    }
+    this.dict = dict;
+    thread = Thread.currentThread();
+    var previous = CURRENT.get();
+    CURRENT.set(this);
+    return previous;
+  }
+
+  void stop(VM previous) {
+    dict = null;
+    thread = null;
+    suspendedTop = 0;
+    suspendedRoots = null;
+    CURRENT.set(previous);
+  }
+
+  int suspendedTop() {
+    return suspendedTop;
+  }
+
+  Heap.Roots suspendedRoots() {
+    return suspendedRoots;
+  }
+
+  /**
+   * Calls a native function, the frames below {@code top} and the roots are kept during the call.
+   */
+  Object invokeNative(JSObject function, Object receiver, Object[] args, int top, Heap.Roots roots) {
+    var oldTop = suspendedTop;
+    var oldRoots = suspendedRoots;
+    suspendedTop = top;
+    suspendedRoots = roots;
+    nativeDepth++;
+    try {
+      return function.invoke(receiver, args);
+    } finally {
+      nativeDepth--;
+      suspendedTop = oldTop;
+      suspendedRoots = oldRoots;
+    }
+  }
+
+  int nativeDepth() {
+    return nativeDepth;
+  }
+
+  Fiber fiber() {
+    return fiber;
+  }
+
+  Set<Fiber> parkedFibers() {
+    return parkedFibers;
+  }
+
+  // run a fiber on this VM, its frames are not roots of the parked fibers anymore
+  void enterFiber(Fiber fiber) {
+    parkedFibers.remove(fiber);
+    this.fiber = fiber;
+  }
+
+  // the fiber stops to run, it is parked if it has yielded
+  void exitFiber() {
+    if (fiber.yielding && !fiber.done) {
+      parkedFibers.add(fiber);
+    }
+    fiber = null;
+  }
+
+  void addDispatchCount(long count) {
+    dispatchCount += count;
+  }
+
+  /**
+   * @return the number of instructions dispatched by the executions that have completed.
+   */
+  public long dispatchCount() {
+    return dispatchCount;
+  }
+}
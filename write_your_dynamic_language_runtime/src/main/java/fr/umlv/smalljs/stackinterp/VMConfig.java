@@ -0,0 +1,107 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Sizes of the stack and of the heap used by an execution of the stack interpreter, how the code is generated
+ * and which engine executes it.
+ *
+ * @param initialStackSize initial size of the stack in words.
+ * @param maxStackSize maximum size of the stack in words, a call that needs more raises a stack overflow.
+ * @param initialHeapSize initial size of the heap in words.
+ * @param maxHeapSize maximum size of the heap in words.
+ * @param heapGrowthThreshold the heap grows after a GC if the live data is above this percentage of the heap.
+ * @param nurseryPercent percentage of the heap used by the nursery (from 0 to 50), 0 means no nursery.
+ * @param heapMemory how the memory of the heap is allocated, on the Java heap, off heap or mapped on a file.
+ * @param superinstructions true if common sequences of instructions are fused into superinstructions.
+ * @param intrinsics true if the arithmetic and comparison operators on small ints are executed by dedicated instructions.
+ * @param constantFolding true if the operators called on constants are computed when the code is generated.
+ * @param engine the engine that executes the instructions.
+ */
+public record VMConfig(int initialStackSize, int maxStackSize, int initialHeapSize, int maxHeapSize, int heapGrowthThreshold,
+                       int nurseryPercent, HeapMemory.Factory heapMemory, boolean superinstructions, boolean intrinsics,
+                       boolean constantFolding, Engine engine) {
+  /**
+   * The engines that can execute the functions.
+   */
+  public enum Engine {
+    /**
+     * A loop around a switch on the opcodes, see {@link StackInterpreter}.
+     */
+    SWITCH,
+    /**
+     * The instructions are translated once into an array of handlers, see {@link ClosureInterpreter}.
+     */
+    CLOSURE,
+    /**
+     * The functions are translated into instructions of a register machine, see {@link RegisterInterpreter},
+     * the superinstructions are not used.
+     */
+    REGISTER
+  }
+
+  public static final VMConfig DEFAULT = new VMConfig(4096, 1 << 20, 4096, 1 << 24, 75, 25, HeapMemory.onHeap(), true, true,
+      true, Engine.SWITCH);
+
+  public VMConfig {
+    requireNonNull(heapMemory);
+    requireNonNull(engine);
+    if (initialStackSize < 1 || maxStackSize < initialStackSize) {
+      throw new IllegalArgumentException("invalid stack sizes " + initialStackSize + " " + maxStackSize);
+    }
+    if (initialHeapSize < TagValues.OBJECT_HEADER_SIZE || maxHeapSize < initialHeapSize) {
+      throw new IllegalArgumentException("invalid heap sizes " + initialHeapSize + " " + maxHeapSize);
+    }
+    if (heapGrowthThreshold < 1 || heapGrowthThreshold > 100) {
+      throw new IllegalArgumentException("invalid heap growth threshold " + heapGrowthThreshold);
+    }
+    if (nurseryPercent < 0 || nurseryPercent > 50) {
+      throw new IllegalArgumentException("invalid nursery percentage " + nurseryPercent);
+    }
+  }
+
+  public VMConfig withStackSize(int initialStackSize, int maxStackSize) {
+    return new VMConfig(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, heapGrowthThreshold, nurseryPercent,
+        heapMemory, superinstructions, intrinsics, constantFolding, engine);
+  }
+
+  public VMConfig withHeapSize(int initialHeapSize, int maxHeapSize) {
+    return new VMConfig(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, heapGrowthThreshold, nurseryPercent,
+        heapMemory, superinstructions, intrinsics, constantFolding, engine);
+  }
+
+  public VMConfig withHeapGrowthThreshold(int heapGrowthThreshold) {
+    return new VMConfig(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, heapGrowthThreshold, nurseryPercent,
+        heapMemory, superinstructions, intrinsics, constantFolding, engine);
+  }
+
+  public VMConfig withNurseryPercent(int nurseryPercent) {
+    return new VMConfig(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, heapGrowthThreshold, nurseryPercent,
+        heapMemory, superinstructions, intrinsics, constantFolding, engine);
+  }
+
+  public VMConfig withHeapMemory(HeapMemory.Factory heapMemory) {
+    return new VMConfig(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, heapGrowthThreshold, nurseryPercent,
+        heapMemory, superinstructions, intrinsics, constantFolding, engine);
+  }
+
+  public VMConfig withSuperinstructions(boolean superinstructions) {
+    return new VMConfig(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, heapGrowthThreshold, nurseryPercent,
+        heapMemory, superinstructions, intrinsics, constantFolding, engine);
+  }
+
+  public VMConfig withIntrinsics(boolean intrinsics) {
+    return new VMConfig(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, heapGrowthThreshold, nurseryPercent,
+        heapMemory, superinstructions, intrinsics, constantFolding, engine);
+  }
+
+  public VMConfig withConstantFolding(boolean constantFolding) {
+    return new VMConfig(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, heapGrowthThreshold, nurseryPercent,
+        heapMemory, superinstructions, intrinsics, constantFolding, engine);
+  }
+
+  public VMConfig withEngine(Engine engine) {
+    return new VMConfig(initialStackSize, maxStackSize, initialHeapSize, maxHeapSize, heapGrowthThreshold, nurseryPercent,
+        heapMemory, superinstructions, intrinsics, constantFolding, engine);
+  }
+}
@@ -9,11 +9,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
 import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
 
 @SuppressWarnings("static-method")
 public class JVMInterpreterTests {
@@ -446,4 +449,82 @@ public class JVMInterpreterTests {
         object.foo(42);
         """));
   }
+
+  @Test
+  public void constantFolding() {
+    assertEquals(
+      "7200\nlive\nundefined true\n",
+      execute("""
+        print(2 * 60 * 60);
+        if (1) {
+          print('live');
+        } else {
+          print('dead');
+        }
+        if (1 > 2) {
+          var x = 1;
+        } else {
+          print(x, 3 < 4 + 1);
+        }
+        """));
+  }
+
+  private static JSObject globalEnv(ByteArrayOutputStream outStream) {
+    var global = JSObject.newEnv(null);
+    global.register("print", JSObject.newFunction("print", (self, receiver, args) -> {
+      outStream.writeBytes((args[0] + "\n").getBytes(StandardCharsets.UTF_8));
+      return JSObject.UNDEFINED;
+    }));
+    JVMInterpreter.registerBuiltinOperators(global);
+    return global;
+  }
+
+  @Test
+  public void foldedConstantsHonorARedefinitionOfTheOperator() {
+    var script = createScript(new StringReader("print(2 * 3 + 1);\n"));
+    var outStream = new ByteArrayOutputStream(8192);
+    var global = globalEnv(outStream);
+    var function = ByteCodeRewriter.createFunction("main", List.of(), script.body(), global);
+    function.invoke(JSObject.UNDEFINED, new Object[0]);
+    // the redefinition invalidates the guard of the folded call
+    var calls = new AtomicInteger();
+    global.register("*", JSObject.newFunction("*", (self, receiver, args) -> {
+      calls.incrementAndGet();
+      return (Integer) args[0] * 10 + (Integer) args[1];
+    }));
+    function.invoke(JSObject.UNDEFINED, new Object[0]);
+    function.invoke(JSObject.UNDEFINED, new Object[0]);
+    assertEquals("7\n24\n24\n", outStream.toString(StandardCharsets.UTF_8));
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void foldedConditionsHonorARedefinitionOfTheOperator() {
+    var script = createScript(new StringReader("if (2 < 1) { print('yes'); } else { print('no'); }\n"));
+    var outStream = new ByteArrayOutputStream(8192);
+    var global = globalEnv(outStream);
+    var function = ByteCodeRewriter.createFunction("main", List.of(), script.body(), global);
+    function.invoke(JSObject.UNDEFINED, new Object[0]);
+    global.register("<", JSObject.newFunction("<", (self, receiver, args) -> true));
+    function.invoke(JSObject.UNDEFINED, new Object[0]);
+    assertEquals("no\nyes\n", outStream.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void onlyTheBuiltinOperatorsAreFolded() {
+    var script = createScript(new StringReader("print(2 + 3);\n"));
+    var outStream = new ByteArrayOutputStream(8192);
+    var global = globalEnv(outStream);
+    var calls = new AtomicInteger();
+    global.register("+", JSObject.newFunction("+", (self, receiver, args) -> {
+      calls.incrementAndGet();
+      return (Integer) args[0] + (Integer) args[1];
+    }));
+    var function = ByteCodeRewriter.createFunction("main", List.of(), script.body(), global);
+    // a user defined operator is not called when the code is generated
+    assertEquals(0, calls.get());
+    function.invoke(JSObject.UNDEFINED, new Object[0]);
+    assertEquals("5\n", outStream.toString(StandardCharsets.UTF_8));
+    assertEquals(1, calls.get());
+  }
 }
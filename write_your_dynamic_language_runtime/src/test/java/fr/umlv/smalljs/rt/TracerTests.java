@@ -0,0 +1,65 @@
+package fr.umlv.smalljs.rt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@SuppressWarnings("static-method")
+public class TracerTests {
+  @Test
+  public void disabledByDefault() {
+    assertFalse(Tracer.enabled(Tracer.DISPATCH, Tracer.INFO));
+    assertFalse(Tracer.enabled(Tracer.CALLS, Tracer.INFO));
+    assertFalse(Tracer.enabled(Tracer.HEAP, Tracer.INFO));
+    assertFalse(Tracer.enabled(Tracer.CODEGEN, Tracer.INFO));
+  }
+
+  @Test
+  public void ringBufferEvents() {
+    var ringBuffer = new Tracer.RingBuffer(4);
+    ringBuffer.record(Tracer.CALLS, Tracer.DEBUG, "foo");
+    ringBuffer.record(Tracer.HEAP, Tracer.INFO, "bar");
+    assertEquals(List.of("[calls debug] foo", "[heap info] bar"), ringBuffer.events());
+  }
+
+  @Test
+  public void ringBufferKeepsTheLastEvents() {
+    var ringBuffer = new Tracer.RingBuffer(3);  // rounded to 4
+    for (var i = 0; i < 10; i++) {
+      ringBuffer.record(Tracer.DISPATCH, Tracer.TRACE, "" + i);
+    }
+    assertEquals(
+        IntStream.range(6, 10).mapToObj(i -> "[dispatch trace] " + i).collect(toList()),
+        ringBuffer.events());
+  }
+
+  @Test
+  public void ringBufferConcurrentWriters() throws InterruptedException {
+    var ringBuffer = new Tracer.RingBuffer(1024);
+    var threads = IntStream.range(0, 4)
+        .mapToObj(id -> new Thread(() -> {
+          for (var i = 0; i < 10_000; i++) {
+            ringBuffer.record(Tracer.CALLS, Tracer.INFO, id + " " + i);
+          }
+        }))
+        .collect(toList());
+    for (var thread : threads) {
+      thread.start();
+    }
+    for (var thread : threads) {
+      thread.join();
+    }
+    assertEquals(1024, ringBuffer.events().size());
+  }
+
+  @Test
+  public void ringBufferInvalidCapacity() {
+    assertThrows(IllegalArgumentException.class, () -> new Tracer.RingBuffer(0));
+  }
+}
@@ -0,0 +1,117 @@
+package fr.umlv.smalljs.stackinterp;
+
+import fr.umlv.smalljs.rt.JSObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@SuppressWarnings("static-method")
+public class DictionaryTests {
+  @Test
+  public void stringsAreComparedByValue() {
+    var dict = new Dictionary();
+    var index = dict.index("hello");
+    assertEquals(index, dict.index(new String("hello")));
+    assertEquals(index, dict.index(String.valueOf(new char[] { 'h', 'e', 'l', 'l', 'o' })));
+    assertEquals(1, dict.size());
+    assertEquals("hello", dict.getConst(index));
+  }
+
+  @Test
+  public void objectsAreComparedByIdentity() {
+    var dict = new Dictionary();
+    var inlineCaches = new InlineCaches();
+    var code1 = new Code(new int[] { Instructions.RET }, 1, 1, inlineCaches);
+    var code2 = new Code(code1.instrs(), 1, 1, inlineCaches);
+    assertEquals(code1, code2);  // a record
+    assertNotEquals(dict.index(code1), dict.index(code2));
+    var object = JSObject.newObject(null);
+    assertSame(object, dict.getConst(dict.index(object)));
+  }
+
+  @Test
+  public void nullConstant() {
+    var dict = new Dictionary();
+    var index = dict.index(null);
+    assertEquals(index, dict.index(null));
+    assertNull(dict.getConst(index));
+  }
+
+  @Test
+  public void manyConstants() {
+    var dict = new Dictionary(0);
+    for (var i = 0; i < 10_000; i++) {
+      assertEquals(i, dict.index("" + i));
+    }
+    for (var i = 0; i < 10_000; i++) {
+      assertEquals(i, dict.index("" + i));
+      assertEquals("" + i, dict.getConst(i));
+    }
+    assertEquals(10_000, dict.size());
+  }
+
+  @Test
+  public void invalidIndex() {
+    var dict = new Dictionary();
+    dict.index("foo");
+    assertThrows(IndexOutOfBoundsException.class, () -> dict.getConst(1));
+    assertThrows(IllegalArgumentException.class, () -> new Dictionary(-1));
+  }
+
+  @Test
+  public void functionTable() {
+    var dict = new Dictionary();
+    var codes = new ArrayList<Code>();
+    for (var i = 0; i < 100; i++) {
+      var code = new Code(new int[] { Instructions.RET }, 1, 1, new InlineCaches());
+      var function = JSObject.newFunction("f" + i, (self, receiver, args) -> UNDEFINED);
+      function.register("__code__", code);
+      dict.index("constant " + i);
+      assertEquals(i, dict.functionId(function, code));
+      assertEquals(i, dict.functionId(function, code));
+      assertSame(function, dict.function(i));
+      codes.add(code);
+    }
+    for (var i = 0; i < 100; i++) {
+      assertSame(codes.get(i), dict.functionCode(i));
+    }
+  }
+
+  @Test
+  public void concurrentIndex() throws InterruptedException, ExecutionException {
+    var executor = Executors.newFixedThreadPool(8);
+    try {
+      // several rounds, so a worker is likely to read a constant while another worker is adding it
+      for (var round = 0; round < 20; round++) {
+        var dict = new Dictionary();
+        var futures = IntStream.range(0, 8)
+            .mapToObj(id -> executor.submit(() -> {
+              for (var i = 0; i < 100_000; i++) {
+                var index = dict.index("" + i);
+                assertEquals("" + i, dict.getConst(index));
+              }
+              return null;
+            }))
+            .collect(toList());
+        // an exception of a worker is rethrown by get()
+        for (var future : futures) {
+          future.get();
+        }
+        assertEquals(100_000, dict.size());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package fr.umlv.smalljs.stackinterp;
+
+import fr.umlv.smalljs.rt.Failure;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+import static fr.umlv.smalljs.ast.ASTBuilder.createScript;
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SuppressWarnings("static-method")
+public class FiberTests {
+  private static final String COUNTER = """
+      function count(i, n) {
+        if (i < n) {
+          var received = yield(i);
+          print(received);
+          return count(i + 1, n);
+        } else {
+          return n;
+        }
+      }
+      count(0, 3);
+      """;
+
+  @Test
+  public void yieldAndResume() {
+    var outStream = new ByteArrayOutputStream();
+    var isolate = new Isolate(new PrintStream(outStream), VMConfig.DEFAULT);
+    var fiber = isolate.spawn(createScript(new StringReader(COUNTER)));
+    assertAll(
+        () -> assertEquals(0, fiber.resume(UNDEFINED)),
+        () -> assertEquals(1, fiber.resume("a")),
+        () -> assertEquals(2, fiber.resume("b")),
+        () -> assertFalse(fiber.isDone())
+    );
+    fiber.resume("c");
+    assertTrue(fiber.isDone());
+    assertThrows(IllegalStateException.class, () -> fiber.resume(UNDEFINED));
+    assertEquals("a\nb\nc\n", outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"));
+  }
+
+  @Test
+  public void parkedFibersKeepTheirObjects() {
+    // the heap is small so the objects of the parked fibers are moved by the GC
+    var outStream = new ByteArrayOutputStream();
+    var isolate = new Isolate(new PrintStream(outStream), VMConfig.DEFAULT.withHeapSize(64, 1 << 16));
+    var script = createScript(new StringReader("""
+        function loop(point, n) {
+          if (n < 3) {
+            var garbage = { x: n, y: n };
+            yield(point.x + point.y);
+            return loop(point, n + 1);
+          } else {
+            return 0;
+          }
+        }
+        loop({ x: 40, y: 2 }, 0);
+        """));
+    var fibers = IntStream.range(0, 1_000).mapToObj(__ -> isolate.spawn(script)).collect(toList());
+    for (var round = 0; round < 3; round++) {
+      for (var fiber : fibers) {
+        assertEquals(42, fiber.resume(UNDEFINED));
+      }
+    }
+    for (var fiber : fibers) {
+      assertEquals(UNDEFINED, fiber.resume(UNDEFINED));  // the result of the script
+      assertTrue(fiber.isDone());
+    }
+    assertTrue(isolate.vm().heap().collectionCount() + isolate.vm().heap().minorCollectionCount() > 0);
+  }
+
+  @Test
+  public void fibersOfSeveralIsolatesOnAFewThreads() {
+    var script = createScript(new StringReader(COUNTER));
+    var executor = Executors.newFixedThreadPool(4);
+    try {
+      var outStreams = new ArrayList<ByteArrayOutputStream>();
+      var fibers = IntStream.range(0, 8)
+          .mapToObj(i -> {
+            var outStream = new ByteArrayOutputStream();
+            outStreams.add(outStream);
+            return new Isolate(new PrintStream(outStream), VMConfig.DEFAULT);
+          })
+          .flatMap(isolate -> IntStream.range(0, 100).mapToObj(i -> isolate.spawn(script)))
+          .collect(toList());
+      for (var round = 0; round < 4; round++) {
+        var value = "v" + round;
+        CompletableFuture.allOf(fibers.stream().map(fiber -> fiber.submit(value, executor)).toArray(CompletableFuture[]::new)).join();
+      }
+      for (var fiber : fibers) {
+        assertTrue(fiber.isDone());
+      }
+      for (var outStream : outStreams) {
+        assertEquals(300, outStream.toString(StandardCharsets.UTF_8).lines().count());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void yieldOutsideAFiber() {
+    var isolate = new Isolate(new PrintStream(new ByteArrayOutputStream()), VMConfig.DEFAULT);
+    assertThrows(Failure.class, () -> isolate.execute(createScript(new StringReader("yield(1);\n"))));
+  }
+
+  @Test
+  public void onlyTheSwitchEngineSupportsFibers() {
+    var isolate = new Isolate(new PrintStream(new ByteArrayOutputStream()),
+        VMConfig.DEFAULT.withEngine(VMConfig.Engine.REGISTER));
+    assertThrows(IllegalStateException.class, () -> isolate.spawn(createScript(new StringReader(COUNTER))));
+  }
+}
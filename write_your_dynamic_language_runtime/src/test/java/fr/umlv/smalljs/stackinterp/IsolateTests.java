@@ -0,0 +1,83 @@
+package fr.umlv.smalljs.stackinterp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+import static fr.umlv.smalljs.ast.ASTBuilder.createScript;
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+@SuppressWarnings("static-method")
+public class IsolateTests {
+  @Test
+  public void manyIsolatesShareAScript() {
+    var script = createScript(new StringReader("""
+        function fib(n) {
+          if (n < 2) {
+            return 1;
+          } else {
+            return fib(n - 1) + fib(n - 2);
+          }
+        }
+        var point = {
+          x: 3,
+          y: 4,
+          sum: function() {
+            return this.x + this.y;
+          }
+        };
+        print(fib(15));
+        print(point.sum());
+        """));
+    var executor = Executors.newFixedThreadPool(4);
+    try {
+      var outStreams = new ArrayList<ByteArrayOutputStream>();
+      var futures = IntStream.range(0, 16)
+          .mapToObj(i -> {
+            var outStream = new ByteArrayOutputStream();
+            outStreams.add(outStream);
+            var config = i % 2 == 0 ? VMConfig.DEFAULT : VMConfig.DEFAULT.withEngine(VMConfig.Engine.CLOSURE);
+            return new Isolate(new PrintStream(outStream), config).submit(script, executor);
+          })
+          .collect(toList());
+      CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+      for (var outStream : outStreams) {
+        assertEquals("987\n7\n", outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void globalsAreNotShared() {
+    var outStream1 = new ByteArrayOutputStream();
+    var outStream2 = new ByteArrayOutputStream();
+    var isolate1 = new Isolate(new PrintStream(outStream1), VMConfig.DEFAULT);
+    var isolate2 = new Isolate(new PrintStream(outStream2), VMConfig.DEFAULT);
+    isolate1.execute(createScript(new StringReader("function one() { return 1; }\n")));
+    isolate1.execute(createScript(new StringReader("print(one());\n")));
+    isolate2.execute(createScript(new StringReader("print(one);\n")));
+    assertEquals("1\n", outStream1.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"));
+    assertEquals("undefined\n", outStream2.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"));
+  }
+
+  @Test
+  public void theCodeOfAScriptIsGeneratedOnce() {
+    var isolate = new Isolate(new PrintStream(new ByteArrayOutputStream()), VMConfig.DEFAULT);
+    var script = createScript(new StringReader("function one() { return 1; }\n"));
+    isolate.execute(script);
+    var one = isolate.globalEnv().lookup("one");
+    isolate.execute(script);
+    assertSame(one, isolate.globalEnv().lookup("one"));
+  }
+}
@@ -0,0 +1,146 @@
+package fr.umlv.smalljs.stackinterp;
+
+import fr.umlv.smalljs.rt.JSObject;
+import org.junit.jupiter.api.Test;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.Instructions.ADD;
+import static fr.umlv.smalljs.stackinterp.Instructions.CONST;
+import static fr.umlv.smalljs.stackinterp.Instructions.FUNCALL;
+import static fr.umlv.smalljs.stackinterp.Instructions.GOTO;
+import static fr.umlv.smalljs.stackinterp.Instructions.JUMP_IF_FALSE;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOAD;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOOKUP;
+import static fr.umlv.smalljs.stackinterp.Instructions.NEW;
+import static fr.umlv.smalljs.stackinterp.Instructions.POP;
+import static fr.umlv.smalljs.stackinterp.Instructions.RET;
+import static fr.umlv.smalljs.stackinterp.Instructions.STORE;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@SuppressWarnings("static-method")
+public class StackAnalyzerTests {
+  private static int maxStack(int[] instrs, int slotCount, Dictionary dict) {
+    return StackAnalyzer.maxStack(instrs, slotCount, new InlineCaches(), dict);
+  }
+
+  @Test
+  public void funcall() {
+    // print(1, 2)
+    var dict = new Dictionary();
+    int[] instrs = {
+      LOOKUP, encodeDictObject("print", dict),
+      CONST, encodeDictObject(UNDEFINED, dict),
+      CONST, encodeSmallInt(1),
+      CONST, encodeSmallInt(2),
+      FUNCALL, 2,
+      RET
+    };
+    assertEquals(4, maxStack(instrs, 1, dict));
+  }
+
+  @Test
+  public void newObject() {
+    var dict = new Dictionary();
+    var clazz = JSObject.newObject(null);
+    clazz.register("x", 0);
+    clazz.register("y", 1);
+    int[] instrs = {
+      CONST, encodeSmallInt(1),
+      CONST, encodeSmallInt(2),
+      NEW, encodeDictObject(clazz, dict),
+      RET
+    };
+    assertEquals(2, maxStack(instrs, 1, dict));
+  }
+
+  @Test
+  public void intrinsicFallback() {
+    // the fallback FUNCALL needs the function and the receiver below the arguments
+    var dict = new Dictionary();
+    var inlineCaches = new InlineCaches();
+    int[] instrs = {
+      CONST, encodeSmallInt(1),
+      CONST, encodeSmallInt(2),
+      ADD, inlineCaches.newGlobalSite(encodeDictObject("+", dict)),
+      FUNCALL, 2,
+      RET
+    };
+    assertEquals(4, StackAnalyzer.maxStack(instrs, 1, inlineCaches, dict));
+  }
+
+  @Test
+  public void loop() {
+    // var a = 0; while(a) { a = 1; }
+    var dict = new Dictionary();
+    int[] instrs = {
+      /* 0*/ CONST, encodeSmallInt(0),
+      /* 2*/ STORE, 1,
+      /* 4*/ LOAD, 1,
+      /* 6*/ JUMP_IF_FALSE, 14,
+      /* 8*/ CONST, encodeSmallInt(1),
+      /*10*/ STORE, 1,
+      /*12*/ GOTO, 4,
+      /*14*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*16*/ RET
+    };
+    assertEquals(1, maxStack(instrs, 2, dict));
+  }
+
+  @Test
+  public void depthMismatch() {
+    var dict = new Dictionary();
+    int[] instrs = {
+      /* 0*/ CONST, encodeSmallInt(0),
+      /* 2*/ CONST, encodeSmallInt(0),
+      /* 4*/ JUMP_IF_FALSE, 10,
+      /* 6*/ CONST, encodeSmallInt(1),
+      /* 8*/ POP,
+      /* 9*/ POP,
+      /*10*/ RET
+    };
+    assertThrows(IllegalArgumentException.class, () -> maxStack(instrs, 1, dict));
+  }
+
+  @Test
+  public void stackUnderflow() {
+    var dict = new Dictionary();
+    int[] instrs = {
+      CONST, encodeSmallInt(0),
+      POP,
+      RET
+    };
+    assertThrows(IllegalArgumentException.class, () -> maxStack(instrs, 1, dict));
+  }
+
+  @Test
+  public void invalidJumpTarget() {
+    var dict = new Dictionary();
+    int[] instrs = {
+      GOTO, 42,
+      RET
+    };
+    assertThrows(IllegalArgumentException.class, () -> maxStack(instrs, 1, dict));
+  }
+
+  @Test
+  public void invalidSlot() {
+    var dict = new Dictionary();
+    int[] instrs = {
+      LOAD, 1,
+      RET
+    };
+    assertThrows(IllegalArgumentException.class, () -> maxStack(instrs, 1, dict));
+  }
+
+  @Test
+  public void fallThroughTheEnd() {
+    var dict = new Dictionary();
+    int[] instrs = {
+      CONST, encodeSmallInt(0)
+    };
+    assertThrows(IllegalArgumentException.class, () -> maxStack(instrs, 1, dict));
+  }
+}
@@ -0,0 +1,96 @@
+package fr.umlv.smalljs.stackinterp;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Optional;
+
+import static fr.umlv.smalljs.ast.ASTBuilder.createScript;
+
+/**
+ * Runs some programs on the stack interpreter with several configurations and engines and prints
+ * the number of dispatched instructions and the execution time.
+ *
+ * Not a unit test, run it with its main.
+ */
+public class StackInterpreterBenchmark {
+  private static final String FIBONACCI = """
+      function fib(n) {
+        if (n < 2) {
+          return 1;
+        } else {
+          return fib(n - 1) + fib(n - 2);
+        }
+      }
+      print(fib(15));
+      """;
+
+  private static final String METHODS = """
+      function Point(x, y) {
+        return {
+          x: x,
+          y: y,
+          norm: function() {
+            var x = this.x;
+            var y = this.y;
+            return x * x + y * y;
+          }
+        };
+      }
+      function loop(n, point, sum) {
+        if (n == 0) {
+          return sum;
+        } else {
+          return loop(n - 1, point, sum + point.norm());
+        }
+      }
+      print(loop(200, Point(3, 4), 0));
+      """;
+
+  private static void run(String name, String program, VMConfig config) {
+    var script = createScript(new StringReader(program));
+    var vm = new VM(config);
+    var start = System.nanoTime();
+    StackInterpreter.interpret(script, new PrintStream(OutputStream.nullOutputStream()), vm);
+    var end = System.nanoTime();
+    System.out.printf("%-40s %12d dispatches %8d us%n", name, vm.dispatchCount(), (end - start) / 1_000);
+  }
+
+  private static void benchmark(String name, String program) {
+    var base = VMConfig.DEFAULT.withSuperinstructions(false).withIntrinsics(false);
+    run(name, program, base);
+    run(name + " superinstructions", program, base.withSuperinstructions(true));
+    run(name + " intrinsics", program, base.withIntrinsics(true));
+    run(name + " all", program, VMConfig.DEFAULT);
+    run(name + " register", program, VMConfig.DEFAULT.withEngine(VMConfig.Engine.REGISTER));
+  }
+
+  // run the same program with each engine, the switch and the closure engines share the same Code
+  private static void engines(String name, String program, int iterations) {
+    var script = createScript(new StringReader(program));
+    var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(OutputStream.nullOutputStream()));
+    var dict = new Dictionary();
+    var stackFunction = InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv);
+    var registerFunction = RegisterRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv,
+        VMConfig.DEFAULT);
+    for (var engine : VMConfig.Engine.values()) {
+      var vm = new VM(VMConfig.DEFAULT.withEngine(engine));
+      var function = engine == VMConfig.Engine.REGISTER ? registerFunction : stackFunction;
+      var start = System.nanoTime();
+      for (var i = 0; i < iterations; i++) {
+        StackInterpreter.execute(function, dict, globalEnv, vm);
+      }
+      var end = System.nanoTime();
+      System.out.printf("%-40s %12d dispatches %8d us%n", name + " " + engine, vm.dispatchCount() / iterations,
+          (end - start) / 1_000 / iterations);
+    }
+  }
+
+  public static void main(String[] args) {
+    benchmark("fibonacci", FIBONACCI);
+    benchmark("methods", METHODS);
+    engines("fibonacci", FIBONACCI, 10);
+    engines("methods", METHODS, 10);
+  }
+}
@@ -4,11 +4,20 @@ import fr.umlv.smalljs.rt.Failure;
 import fr.umlv.smalljs.rt.JSObject;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 
+import static fr.umlv.smalljs.ast.ASTBuilder.createScript;
 import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
 import static fr.umlv.smalljs.stackinterp.Instructions.CONST;
 import static fr.umlv.smalljs.stackinterp.Instructions.FUNCALL;
@@ -26,6 +35,10 @@ import static fr.umlv.smalljs.stackinterp.Instructions.STORE;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SuppressWarnings("static-method")
 public class StackInterpreterGCTests {
@@ -39,178 +52,689 @@ public class StackInterpreterGCTests {
   }
 
   private static String execute(Code mainCode, Dictionary dict) {
+    return execute(mainCode, dict, new VM(VMConfig.DEFAULT.withHeapSize(96, 96)));
+  }
+
+  private static String execute(Code mainCode, Dictionary dict, VM vm) {
     var outStream = new ByteArrayOutputStream(8192);
     var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream));
     var mainFun = newMainFunction(mainCode);
     globalEnv.register("main", mainFun);
-    StackInterpreter.execute(mainFun, dict, globalEnv);
+    StackInterpreter.execute(mainFun, dict, globalEnv, vm);
     return outStream.toString(StandardCharsets.UTF_8)
       .replace("\r\n", "\n");
   }
 
 
-//  @Tag("Q2")
-//  @Test
-//  public void gcTest() {
-//    var dict = new Dictionary();
-//    var pointClass = JSObject.newObject(null);
-//    pointClass.register("x", 0);
-//    pointClass.register("y", 1);
-//    int[] instrs = {
-//      /* 0:*/ CONST, encodeSmallInt(100),
-//      /* 2:*/ STORE, 1,
-//
-//      /* 4:*/ LOAD, 1,
-//      /* 6:*/ JUMP_IF_FALSE, 29,
-//
-//      /* 8:*/ CONST, encodeSmallInt(1),
-//      /*10:*/ CONST, encodeSmallInt(2),
-//      /*12:*/ NEW, encodeDictObject(pointClass, dict),
-//      /*14:*/ POP,
-//
-//      /*15:*/ LOOKUP, encodeDictObject("-", dict),
-//      /*17:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//      /*19:*/ LOAD, 1,
-//      /*21:*/ CONST, encodeSmallInt(1),
-//      /*23:*/ FUNCALL, 2,
-//      /*25:*/ STORE, 1,
-//
-//      /*27:*/ GOTO, 4,
-//
-//      /*29:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//      /*31:*/ RET
-//    };
-//    var code = new Code(instrs, 1, 2);
-//    execute(code, dict);
-//  }
-//
-//  @Tag("Q3") @Test
-//  public void gcTestRewriteField() {
-//  	var dict = new Dictionary();
-//  	var clazz = JSObject.newObject(null);
-//  	clazz.register("field", 0);
-//  	int[] instrs = {
-//  		/* 0:*/ CONST, encodeSmallInt(21),
-//    	/* 2:*/ NEW, encodeDictObject(clazz, dict),
-//    	/* 4:*/ POP,  // should be GCed
-//
-//    	/* 5:*/ CONST, encodeSmallInt(42),
-//    	/* 7:*/ NEW, encodeDictObject(clazz, dict),
-//    	/* 9:*/ STORE, 2, // should not be GCed
-//
-//    	/*11:*/ LOAD, 2,
-//    	/*13:*/ CONST, encodeSmallInt(84),
-//    	/*15:*/ NEW, encodeDictObject(clazz, dict),
-//    	/*17:*/ PUT, encodeDictObject("field", dict), // modification after creation
-//
-//  		/*19:*/ CONST, encodeSmallInt(100),
-//  	  /*21:*/ STORE, 1,
-//
-//  	  /*23:*/ LOAD, 1,
-//  	  /*25:*/ JUMP_IF_FALSE, 46,
-//
-//  	  /*27:*/ LOAD, 2,
-//  	  /*29:*/ NEW, encodeDictObject(clazz, dict),
-//  	  /*31:*/ POP,  // should be GCed
-//
-//  	  /*32:*/ LOOKUP, encodeDictObject("-", dict),
-//  	  /*34:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*36:*/ LOAD, 1,
-//  	  /*38:*/ CONST, encodeSmallInt(1),
-//  	  /*40:*/ FUNCALL, 2,
-//  	  /*42:*/ STORE, 1,
-//
-//  	  /*44:*/ GOTO, 23,
-//
-//  	  /*46:*/ LOAD, 2,
-//  	  /*48:*/ GET, encodeDictObject("field", dict),
-//  	  /*50:*/ GET, encodeDictObject("field", dict),
-//  	  /*52:*/ PRINT,
-//
-//  	  /*53:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*31:*/ RET
-//  	};
-//    assertEquals("84\n", execute(new Code(instrs, 1, 3), dict));
-//  }
-//
-//  @Tag("Q4") @Test
-//  public void gcTestWithFields() {
-//  	var dict = new Dictionary();
-//  	var pointClass = JSObject.newObject(null);
-//  	pointClass.register("x", 0);
-//  	pointClass.register("y", 1);
-//  	var emptyClass = JSObject.newObject(null);
-//  	int[] instrs = {
-//  		/* 0:*/ CONST, encodeSmallInt(100),
-//  	  /* 2:*/ STORE, 1,
-//
-//  	  /* 4:*/ LOAD, 1,
-//  	  /* 6:*/ JUMP_IF_FALSE, 29,
-//
-//  	  /* 8:*/ NEW, encodeDictObject(emptyClass, dict),
-//  	  /*10:*/ NEW, encodeDictObject(emptyClass, dict),
-//  	  /*12:*/ NEW, encodeDictObject(pointClass, dict),
-//
-//  	  /*14:*/ POP,
-//
-//  	  /*15:*/ LOOKUP, encodeDictObject("-", dict),
-//  	  /*17:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*19:*/ LOAD, 1,
-//  	  /*21:*/ CONST, encodeSmallInt(1),
-//  	  /*23:*/ FUNCALL, 2,
-//  	  /*25:*/ STORE, 1,
-//
-//  	  /*27:*/ GOTO, 4,
-//
-//  	  /*29:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*31:*/ RET
-//  	};
-//    execute(new Code(instrs, 1, 2), dict);
-//  }
-//
-//  @Tag("Q5") @Test
-//  public void gcTestLikedList() {
-//  	var dict = new Dictionary();
-//  	var linkClass = JSObject.newObject(null);
-//  	linkClass.register("value", 0);
-//  	linkClass.register("next", 1);
-//  	int[] instrs = {
-//  		/* 0:*/ CONST, encodeSmallInt(100),
-//  	  /* 2:*/ STORE, 1,
-//  	  /* 4:*/ LOAD, 1,
-//  	  /* 6:*/ JUMP_IF_FALSE, 60,
-//  	  /* 8:*/ CONST, encodeSmallInt(10),
-//  	  /*10:*/ STORE, 2,
-//  	  /*12:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*14:*/ STORE, 3,
-//  	  /*16:*/ LOAD, 2,
-//  	  /*18:*/ JUMP_IF_FALSE, 42,
-//  	  /*20:*/ LOAD, 3,
-//  	  /*22:*/ LOAD, 2,
-//  	  /*24:*/ NEW, encodeDictObject(linkClass, dict),
-//  	  /*26:*/ STORE, 3,
-//
-//  	  /*28:*/ LOOKUP, encodeDictObject("-", dict),
-//  	  /*30:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*32:*/ LOAD, 2,
-//  	  /*34:*/ CONST, encodeSmallInt(1),
-//  	  /*36:*/ FUNCALL, 2,
-//  	  /*38:*/ STORE, 2,
-//
-//  	  /*40:*/ GOTO, 16,
-//  	  /*42:*/ CONST, encodeDictObject(UNDEFINED, dict),  // free
-//  	  /*44:*/ STORE, 3,
-//
-//  	  /*46:*/ LOOKUP, encodeDictObject("-", dict),
-//  	  /*48:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*50:*/ LOAD, 1,
-//  	  /*52:*/ CONST, encodeSmallInt(1),
-//  	  /*54:*/ FUNCALL, 2,
-//  	  /*56:*/ STORE, 1,
-//  	  /*58:*/ GOTO, 4,
-//  	  /*60:*/ CONST, encodeDictObject(UNDEFINED, dict),
-//  	  /*62:*/ RET
-//  	};
-//    execute(new Code(instrs, 1, 4), dict);
-//  }
+  @Tag("Q2")
+  @Test
+  public void gcTest() {
+    var dict = new Dictionary();
+    var pointClass = JSObject.newObject(null);
+    pointClass.register("x", 0);
+    pointClass.register("y", 1);
+    int[] instrs = {
+      /* 0:*/ CONST, encodeSmallInt(100),
+      /* 2:*/ STORE, 1,
+
+      /* 4:*/ LOAD, 1,
+      /* 6:*/ JUMP_IF_FALSE, 29,
+
+      /* 8:*/ CONST, encodeSmallInt(1),
+      /*10:*/ CONST, encodeSmallInt(2),
+      /*12:*/ NEW, encodeDictObject(pointClass, dict),
+      /*14:*/ POP,
+
+      /*15:*/ LOOKUP, encodeDictObject("-", dict),
+      /*17:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*19:*/ LOAD, 1,
+      /*21:*/ CONST, encodeSmallInt(1),
+      /*23:*/ FUNCALL, 2,
+      /*25:*/ STORE, 1,
+
+      /*27:*/ GOTO, 4,
+
+      /*29:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*31:*/ RET
+    };
+    var code = new Code(instrs, 1, 2);
+    execute(code, dict);
+  }
+
+  @Tag("Q3") @Test
+  public void gcTestRewriteField() {
+  	var dict = new Dictionary();
+  	var clazz = JSObject.newObject(null);
+  	clazz.register("field", 0);
+  	int[] instrs = {
+  		/* 0:*/ CONST, encodeSmallInt(21),
+    	/* 2:*/ NEW, encodeDictObject(clazz, dict),
+    	/* 4:*/ POP,  // should be GCed
+
+    	/* 5:*/ CONST, encodeSmallInt(42),
+    	/* 7:*/ NEW, encodeDictObject(clazz, dict),
+    	/* 9:*/ STORE, 2, // should not be GCed
+
+    	/*11:*/ LOAD, 2,
+    	/*13:*/ CONST, encodeSmallInt(84),
+    	/*15:*/ NEW, encodeDictObject(clazz, dict),
+    	/*17:*/ PUT, encodeDictObject("field", dict), // modification after creation
+
+  		/*19:*/ CONST, encodeSmallInt(100),
+  	  /*21:*/ STORE, 1,
+
+  	  /*23:*/ LOAD, 1,
+  	  /*25:*/ JUMP_IF_FALSE, 46,
+
+  	  /*27:*/ LOAD, 2,
+  	  /*29:*/ NEW, encodeDictObject(clazz, dict),
+  	  /*31:*/ POP,  // should be GCed
+
+  	  /*32:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*34:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*36:*/ LOAD, 1,
+  	  /*38:*/ CONST, encodeSmallInt(1),
+  	  /*40:*/ FUNCALL, 2,
+  	  /*42:*/ STORE, 1,
+
+  	  /*44:*/ GOTO, 23,
+
+  	  /*46:*/ LOAD, 2,
+  	  /*48:*/ GET, encodeDictObject("field", dict),
+  	  /*50:*/ GET, encodeDictObject("field", dict),
+  	  /*52:*/ PRINT,
+
+  	  /*53:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*31:*/ RET
+  	};
+    assertEquals("84\n", execute(new Code(instrs, 1, 3), dict));
+  }
+
+  @Tag("Q4") @Test
+  public void gcTestWithFields() {
+  	var dict = new Dictionary();
+  	var pointClass = JSObject.newObject(null);
+  	pointClass.register("x", 0);
+  	pointClass.register("y", 1);
+  	var emptyClass = JSObject.newObject(null);
+  	int[] instrs = {
+  		/* 0:*/ CONST, encodeSmallInt(100),
+  	  /* 2:*/ STORE, 1,
+
+  	  /* 4:*/ LOAD, 1,
+  	  /* 6:*/ JUMP_IF_FALSE, 29,
+
+  	  /* 8:*/ NEW, encodeDictObject(emptyClass, dict),
+  	  /*10:*/ NEW, encodeDictObject(emptyClass, dict),
+  	  /*12:*/ NEW, encodeDictObject(pointClass, dict),
+
+  	  /*14:*/ POP,
+
+  	  /*15:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*17:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*19:*/ LOAD, 1,
+  	  /*21:*/ CONST, encodeSmallInt(1),
+  	  /*23:*/ FUNCALL, 2,
+  	  /*25:*/ STORE, 1,
+
+  	  /*27:*/ GOTO, 4,
+
+  	  /*29:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*31:*/ RET
+  	};
+    execute(new Code(instrs, 1, 2), dict);
+  }
+
+  @Tag("Q5") @Test
+  public void gcTestLikedList() {
+  	var dict = new Dictionary();
+  	var linkClass = JSObject.newObject(null);
+  	linkClass.register("value", 0);
+  	linkClass.register("next", 1);
+  	int[] instrs = {
+  		/* 0:*/ CONST, encodeSmallInt(100),
+  	  /* 2:*/ STORE, 1,
+  	  /* 4:*/ LOAD, 1,
+  	  /* 6:*/ JUMP_IF_FALSE, 60,
+  	  /* 8:*/ CONST, encodeSmallInt(10),
+  	  /*10:*/ STORE, 2,
+  	  /*12:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*14:*/ STORE, 3,
+  	  /*16:*/ LOAD, 2,
+  	  /*18:*/ JUMP_IF_FALSE, 42,
+  	  /*20:*/ LOAD, 3,
+  	  /*22:*/ LOAD, 2,
+  	  /*24:*/ NEW, encodeDictObject(linkClass, dict),
+  	  /*26:*/ STORE, 3,
+
+  	  /*28:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*30:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*32:*/ LOAD, 2,
+  	  /*34:*/ CONST, encodeSmallInt(1),
+  	  /*36:*/ FUNCALL, 2,
+  	  /*38:*/ STORE, 2,
+
+  	  /*40:*/ GOTO, 16,
+  	  /*42:*/ CONST, encodeDictObject(UNDEFINED, dict),  // free
+  	  /*44:*/ STORE, 3,
+
+  	  /*46:*/ LOOKUP, encodeDictObject("-", dict),
+  	  /*48:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*50:*/ LOAD, 1,
+  	  /*52:*/ CONST, encodeSmallInt(1),
+  	  /*54:*/ FUNCALL, 2,
+  	  /*56:*/ STORE, 1,
+  	  /*58:*/ GOTO, 4,
+  	  /*60:*/ CONST, encodeDictObject(UNDEFINED, dict),
+  	  /*62:*/ RET
+  	};
+    execute(new Code(instrs, 1, 4), dict);
+  }
+
+  @Tag("Q6") @Test
+  public void gcStatistics() {
+    var dict = new Dictionary();
+    var pointClass = JSObject.newObject(null);
+    pointClass.register("x", 0);
+    pointClass.register("y", 1);
+    int[] instrs = {
+      /* 0:*/ CONST, encodeSmallInt(100),
+      /* 2:*/ STORE, 1,
+
+      /* 4:*/ LOAD, 1,
+      /* 6:*/ JUMP_IF_FALSE, 29,
+
+      /* 8:*/ CONST, encodeSmallInt(1),
+      /*10:*/ CONST, encodeSmallInt(2),
+      /*12:*/ NEW, encodeDictObject(pointClass, dict),
+      /*14:*/ POP,
+
+      /*15:*/ LOOKUP, encodeDictObject("-", dict),
+      /*17:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*19:*/ LOAD, 1,
+      /*21:*/ CONST, encodeSmallInt(1),
+      /*23:*/ FUNCALL, 2,
+      /*25:*/ STORE, 1,
+
+      /*27:*/ GOTO, 4,
+
+      /*29:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*31:*/ RET
+    };
+    var vm = new VM(VMConfig.DEFAULT.withHeapSize(40, 40).withNurseryPercent(0));
+    execute(new Code(instrs, 1, 2), dict, vm);
+    var heap = vm.heap();
+    // 100 points of 4 words, 10 points by collection
+    assertEquals(9, heap.collectionCount());
+    assertEquals(9 * 40 * Integer.BYTES, heap.reclaimedBytes());
+    assertTrue(heap.maxPauseNanos() <= heap.totalPauseNanos());
+  }
+
+  @Tag("Q6") @Test
+  public void gcOutOfMemory() {
+    var dict = new Dictionary();
+    var linkClass = JSObject.newObject(null);
+    linkClass.register("next", 0);
+    int[] instrs = {
+      /* 0:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /* 2:*/ NEW, encodeDictObject(linkClass, dict),
+      /* 4:*/ GOTO, 2,
+    };
+    assertThrows(Failure.class, () -> execute(new Code(instrs, 1, 1), dict, new VM(VMConfig.DEFAULT.withHeapSize(30, 30))));
+  }
+
+  // create a linked list of 100 links
+  private static int[] linkedListCode(Dictionary dict) {
+    var linkClass = JSObject.newObject(null);
+    linkClass.register("next", 0);
+    return new int[] {
+      /* 0:*/ CONST, encodeSmallInt(100),
+      /* 2:*/ STORE, 1,
+      /* 4:*/ CONST, encodeDictObject(UNDEFINED, dict),
+
+      /* 6:*/ LOAD, 1,
+      /* 8:*/ JUMP_IF_FALSE, 27,
+
+      /*10:*/ NEW, encodeDictObject(linkClass, dict),
+
+      /*12:*/ LOOKUP, encodeDictObject("-", dict),
+      /*14:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*16:*/ LOAD, 1,
+      /*18:*/ CONST, encodeSmallInt(1),
+      /*20:*/ FUNCALL, 2,
+      /*22:*/ STORE, 1,
+
+      /*24:*/ GOTO, 6,
+
+      /*26:*/ POP,  // dead code
+      /*27:*/ POP,
+      /*28:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*30:*/ RET
+    };
+  }
+
+  @Tag("Q7") @Test
+  public void gcGrowHeap() {
+    var dict = new Dictionary();
+    var instrs = linkedListCode(dict);
+    var vm = new VM(VMConfig.DEFAULT.withHeapSize(30, 1024).withHeapGrowthThreshold(50));
+    execute(new Code(instrs, 1, 2), dict, vm);
+    var heap = vm.heap();
+    // the 100 links are alive, 300 words
+    assertEquals(300, heap.peakUsed());
+    assertTrue(heap.growCount() > 0);
+    assertTrue(heap.capacity() >= 300 && heap.capacity() <= 1024);
+  }
+
+  @Test
+  public void gcClosureEngine() {
+    var dict = new Dictionary();
+    var instrs = linkedListCode(dict);
+    var vm = new VM(VMConfig.DEFAULT.withHeapSize(30, 1024).withHeapGrowthThreshold(50).withEngine(VMConfig.Engine.CLOSURE));
+    execute(new Code(instrs, 1, 2), dict, vm);
+    var heap = vm.heap();
+    assertEquals(300, heap.peakUsed());
+    assertTrue(heap.collectionCount() + heap.minorCollectionCount() > 0);
+  }
+
+  // allocate two objects of 16 words, the first one is stored in a local variable that is never loaded
+  private static int[] deadLocalCode(Dictionary dict) {
+    var bigClass = JSObject.newObject(null);
+    for (var i = 0; i < 14; i++) {
+      bigClass.register("field" + i, i);
+    }
+    var instrs = new ArrayList<Integer>();
+    for (var object = 0; object < 2; object++) {
+      for (var i = 0; i < 14; i++) {
+        instrs.addAll(List.of(CONST, encodeSmallInt(i)));
+      }
+      instrs.addAll(List.of(NEW, encodeDictObject(bigClass, dict)));
+      instrs.addAll(object == 0 ? List.of(STORE, 1) : List.of(POP));
+    }
+    instrs.addAll(List.of(CONST, encodeDictObject(UNDEFINED, dict), RET));
+    return instrs.stream().mapToInt(i -> i).toArray();
+  }
+
+  @Test
+  public void gcDeadLocalIsNotARoot() {
+    for (var engine : List.of(VMConfig.Engine.SWITCH, VMConfig.Engine.CLOSURE)) {
+      var dict = new Dictionary();
+      var instrs = deadLocalCode(dict);
+      var vm = new VM(VMConfig.DEFAULT.withHeapSize(30, 30).withNurseryPercent(0).withEngine(engine));
+      execute(new Code(instrs, 1, 2), dict, vm);
+      assertEquals(1, vm.heap().collectionCount(), engine.name());
+    }
+  }
+
+  @Test
+  public void stackMapLiveSlots() {
+    var dict = new Dictionary();
+    int[] instrs = {
+      /* 0:*/ CONST, encodeSmallInt(1),
+      /* 2:*/ STORE, 1,
+      /* 4:*/ LOAD, 1,
+      /* 6:*/ JUMP_IF_FALSE, 4,
+      /* 8:*/ LOAD, 0,
+      /*10:*/ RET
+    };
+    var stackMap = new Code(instrs, 1, 2).stackMap();
+    assertTrue(stackMap.isLive(0, 0));
+    assertFalse(stackMap.isLive(0, 1));
+    assertTrue(stackMap.isLive(4, 1));
+    // slot 1 is loaded again by the loop
+    assertTrue(stackMap.isLive(6, 1));
+    assertFalse(stackMap.isLive(8, 1));
+    assertFalse(stackMap.isLive(10, 0));
+  }
+
+  @Test
+  public void gcRegisterEngine() {
+    // the links are only referenced by the overlapping frames of the recursive calls
+    var script = createScript(new StringReader("""
+        function build(n, list) {
+          if (n == 0) {
+            return list;
+          } else {
+            var link = { index: n, next: list };
+            return build(n - 1, link);
+          }
+        }
+        var list = build(100, 0);
+        print(list.index, list.next.index, list.next.next.index);
+        """));
+    var outStream = new ByteArrayOutputStream(8192);
+    var vm = new VM(VMConfig.DEFAULT.withHeapSize(64, 1024).withEngine(VMConfig.Engine.REGISTER));
+    StackInterpreter.interpret(script, new PrintStream(outStream), vm);
+    assertEquals("1 2 3\n", outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"));
+    var heap = vm.heap();
+    assertEquals(400, heap.peakUsed());
+    assertTrue(heap.collectionCount() + heap.minorCollectionCount() > 0);
+  }
+
+  @Test
+  public void gcReclaimsHandles() {
+    // each leaf creates a boxed integer stored in a handle, only the handles of the current path are live
+    var script = createScript(new StringReader("""
+        function tree(n) {
+          if (n == 0) {
+            return 1073741823 + 1;
+          } else {
+            tree(n - 1);
+            return tree(n - 1);
+          }
+        }
+        print(tree(12));
+        """));
+    for (var engine : VMConfig.Engine.values()) {
+      var outStream = new ByteArrayOutputStream(8192);
+      var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream));
+      var dict = new Dictionary();
+      // the addition is not folded so each leaf boxes its result
+      var config = VMConfig.DEFAULT.withEngine(engine).withConstantFolding(false);
+      var function = engine == VMConfig.Engine.REGISTER
+          ? RegisterRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv, config)
+          : InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv, config);
+      var vm = new VM(config);
+      StackInterpreter.execute(function, dict, globalEnv, vm);
+      assertEquals("1073741824\n", outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"), engine.name());
+      assertTrue(dict.handleCount() < 1_024, engine + " " + dict.handleCount());
+      assertTrue(vm.heap().collectionCount() > 0, engine.name());
+    }
+  }
+
+  @Test
+  public void gcCallbackSharesTheVM() {
+    // the links are created by a function called back by the native function apply,
+    // the frames of the callback are pushed on the stack of the script and the links allocated in its heap
+    var script = createScript(new StringReader("""
+        function link(n, next) {
+          return { index: n, next: next };
+        }
+        function build(n, list) {
+          if (n == 0) {
+            return list;
+          } else {
+            return build(n - 1, apply(link, n, list));
+          }
+        }
+        var list = build(100, 0);
+        print(list.index, list.next.index, list.next.next.index);
+        """));
+    for (var engine : VMConfig.Engine.values()) {
+      var outStream = new ByteArrayOutputStream(8192);
+      var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream));
+      var dict = new Dictionary();
+      var config = VMConfig.DEFAULT.withHeapSize(64, 1024).withEngine(engine);
+      var vm = new VM(config);
+      var callbacks = new int[1];
+      globalEnv.register("apply", JSObject.newFunction("apply", (self, receiver, args) -> {
+        if (VM.current() == vm) {
+          callbacks[0]++;
+        }
+        return ((JSObject) args[0]).invoke(UNDEFINED, new Object[] { args[1], args[2] });
+      }));
+      var function = engine == VMConfig.Engine.REGISTER
+          ? RegisterRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv, config)
+          : InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv, config);
+      StackInterpreter.execute(function, dict, globalEnv, vm);
+      assertEquals("1 2 3\n", outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"), engine.name());
+      assertEquals(100, callbacks[0], engine.name());
+      assertEquals(400, vm.heap().peakUsed(), engine.name());
+      assertTrue(vm.heap().collectionCount() + vm.heap().minorCollectionCount() > 0, engine.name());
+      assertNull(VM.current(), engine.name());
+    }
+  }
+
+  @Test
+  public void gcKeepsTheObjectOfANativeView() {
+    // the point is only referenced by the view kept by the native function keep
+    var script = createScript(new StringReader("""
+        function build(n, list) {
+          if (n == 0) {
+            return list;
+          } else {
+            var link = { index: n, next: list };
+            return build(n - 1, link);
+          }
+        }
+        function test() {
+          var point = { x: 1, y: 2 };
+          keep(point);
+          return 0;
+        }
+        test();
+        build(100, 0);
+        var point = kept();
+        setX(point, 42);
+        print(point.x, point.y);
+        """));
+    var outStream = new ByteArrayOutputStream(8192);
+    var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream));
+    var views = new ArrayList<JSObject>();
+    globalEnv.register("keep", JSObject.newFunction("keep", (self, receiver, args) -> {
+      views.add((JSObject) args[0]);
+      return UNDEFINED;
+    }));
+    globalEnv.register("kept", JSObject.newFunction("kept", (self, receiver, args) -> views.get(0)));
+    globalEnv.register("setX", JSObject.newFunction("setX", (self, receiver, args) -> {
+      ((JSObject) args[0]).register("x", args[1]);
+      return UNDEFINED;
+    }));
+    var dict = new Dictionary();
+    var function = InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv);
+    var vm = new VM(VMConfig.DEFAULT.withHeapSize(64, 1024));
+    StackInterpreter.execute(function, dict, globalEnv, vm);
+    assertEquals("42 2\n", outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"));
+    assertTrue(vm.heap().collectionCount() + vm.heap().minorCollectionCount() > 0);
+    var view = (HeapObjectView) views.get(0);
+    assertEquals(2, view.lookup("y"));
+    assertEquals(2, view.length());
+    assertThrows(Failure.class, () -> view.register("z", 3));
+  }
+
+  @Test
+  public void gcStringsAreAllocatedInTheHeap() {
+    // the strings returned by str are heap objects, the string of the field must survive the collections
+    var script = createScript(new StringReader("""
+        function tree(n) {
+          if (n == 0) {
+            return str(n);
+          } else {
+            tree(n - 1);
+            return tree(n - 1);
+          }
+        }
+        var holder = { name: str(42), wide: str(1000) };
+        tree(10);
+        print(holder.name, holder.wide, tree(3));
+        """));
+    for (var engine : VMConfig.Engine.values()) {
+      var outStream = new ByteArrayOutputStream(8192);
+      var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream, true, StandardCharsets.UTF_8));
+      globalEnv.register("str", JSObject.newFunction("str", (self, receiver, args) -> {
+        var n = (int) args[0];
+        return n == 1000 ? "\u00e9t\u00e9 \u20ac" : "string " + n;
+      }));
+      var dict = new Dictionary();
+      var config = VMConfig.DEFAULT.withHeapSize(64, 1024).withEngine(engine);
+      var function = engine == VMConfig.Engine.REGISTER
+          ? RegisterRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv, config)
+          : InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv, config);
+      var size = dict.size();
+      var vm = new VM(config);
+      StackInterpreter.execute(function, dict, globalEnv, vm);
+      assertEquals("string 42 \u00e9t\u00e9 \u20ac string 0\n", outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"), engine.name());
+      assertEquals(0, dict.handleCount(), engine.name());
+      assertTrue(dict.size() < size + 10, engine.name());
+      assertTrue(vm.heap().collectionCount() + vm.heap().minorCollectionCount() > 0, engine.name());
+    }
+  }
+
+  @Tag("Q7") @Test
+  public void gcGrowHeapUpToTheMaximum() {
+    var dict = new Dictionary();
+    var linkClass = JSObject.newObject(null);
+    linkClass.register("next", 0);
+    int[] instrs = {
+      /* 0:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /* 2:*/ NEW, encodeDictObject(linkClass, dict),
+      /* 4:*/ GOTO, 2,
+    };
+    var vm = new VM(VMConfig.DEFAULT.withHeapSize(30, 120));
+    assertThrows(Failure.class, () -> execute(new Code(instrs, 1, 1), dict, vm));
+    assertEquals(120, vm.heap().capacity());
+  }
+
+  @Tag("Q8") @Test
+  public void gcNursery() {
+    var dict = new Dictionary();
+    var pointClass = JSObject.newObject(null);
+    pointClass.register("x", 0);
+    pointClass.register("y", 1);
+    int[] instrs = {
+      /* 0:*/ CONST, encodeSmallInt(100),
+      /* 2:*/ STORE, 1,
+
+      /* 4:*/ LOAD, 1,
+      /* 6:*/ JUMP_IF_FALSE, 29,
+
+      /* 8:*/ CONST, encodeSmallInt(1),
+      /*10:*/ CONST, encodeSmallInt(2),
+      /*12:*/ NEW, encodeDictObject(pointClass, dict),
+      /*14:*/ POP,
+
+      /*15:*/ LOOKUP, encodeDictObject("-", dict),
+      /*17:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*19:*/ LOAD, 1,
+      /*21:*/ CONST, encodeSmallInt(1),
+      /*23:*/ FUNCALL, 2,
+      /*25:*/ STORE, 1,
+
+      /*27:*/ GOTO, 4,
+
+      /*29:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*31:*/ RET
+    };
+    var vm = new VM(VMConfig.DEFAULT.withHeapSize(80, 80).withNurseryPercent(50));
+    execute(new Code(instrs, 1, 2), dict, vm);
+    var heap = vm.heap();
+    // all points die young, 10 points by minor collection
+    assertEquals(40, heap.nurseryCapacity());
+    assertEquals(9, heap.minorCollectionCount());
+    assertEquals(0, heap.collectionCount());
+    assertEquals(0, heap.promotedBytes());
+  }
+
+  @Tag("Q8") @Test
+  public void gcNurseryWriteBarrier() {
+    // var old = { field: 0 };
+    // var i = 30;
+    // while(i) { old.field = { field: i }; i = i - 1; }
+    // print(old.field.field);
+    var dict = new Dictionary();
+    var clazz = JSObject.newObject(null);
+    clazz.register("field", 0);
+    int[] instrs = {
+      /* 0:*/ CONST, encodeSmallInt(0),
+      /* 2:*/ NEW, encodeDictObject(clazz, dict),
+      /* 4:*/ STORE, 2,
+      /* 6:*/ CONST, encodeSmallInt(30),
+      /* 8:*/ STORE, 1,
+
+      /*10:*/ LOAD, 1,
+      /*12:*/ JUMP_IF_FALSE, 37,
+
+      /*14:*/ LOAD, 2,
+      /*16:*/ LOAD, 1,
+      /*18:*/ NEW, encodeDictObject(clazz, dict),
+      /*20:*/ PUT, encodeDictObject("field", dict),
+
+      /*22:*/ LOOKUP, encodeDictObject("-", dict),
+      /*24:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*26:*/ LOAD, 1,
+      /*28:*/ CONST, encodeSmallInt(1),
+      /*30:*/ FUNCALL, 2,
+      /*32:*/ STORE, 1,
+
+      /*34:*/ GOTO, 10,
+
+      /*36:*/ POP,  // dead code
+      /*37:*/ LOAD, 2,
+      /*39:*/ GET, encodeDictObject("field", dict),
+      /*41:*/ GET, encodeDictObject("field", dict),
+      /*43:*/ PRINT,
+      /*44:*/ POP,
+      /*45:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*47:*/ RET
+    };
+    var vm = new VM(VMConfig.DEFAULT.withHeapSize(60, 60).withNurseryPercent(50));
+    assertEquals("1\n", execute(new Code(instrs, 1, 3), dict, vm));
+    assertTrue(vm.heap().minorCollectionCount() > 0);
+  }
+
+  private static int[] writeBarrierCode(Dictionary dict) {
+    var clazz = JSObject.newObject(null);
+    clazz.register("field", 0);
+    return new int[] {
+      /* 0:*/ CONST, encodeSmallInt(0),
+      /* 2:*/ NEW, encodeDictObject(clazz, dict),
+      /* 4:*/ STORE, 2,
+      /* 6:*/ CONST, encodeSmallInt(30),
+      /* 8:*/ STORE, 1,
+
+      /*10:*/ LOAD, 1,
+      /*12:*/ JUMP_IF_FALSE, 37,
+
+      /*14:*/ LOAD, 2,
+      /*16:*/ LOAD, 1,
+      /*18:*/ NEW, encodeDictObject(clazz, dict),
+      /*20:*/ PUT, encodeDictObject("field", dict),
+
+      /*22:*/ LOOKUP, encodeDictObject("-", dict),
+      /*24:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*26:*/ LOAD, 1,
+      /*28:*/ CONST, encodeSmallInt(1),
+      /*30:*/ FUNCALL, 2,
+      /*32:*/ STORE, 1,
+
+      /*34:*/ GOTO, 10,
+
+      /*36:*/ POP,  // dead code
+      /*37:*/ LOAD, 2,
+      /*39:*/ GET, encodeDictObject("field", dict),
+      /*41:*/ GET, encodeDictObject("field", dict),
+      /*43:*/ PRINT,
+      /*44:*/ POP,
+      /*45:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*47:*/ RET
+    };
+  }
+
+  @Tag("Q9") @Test
+  public void gcOffHeap() {
+    var dict = new Dictionary();
+    var config = VMConfig.DEFAULT.withHeapSize(16, 1024).withHeapMemory(HeapMemory.offHeap());
+    var vm = new VM(config);
+    assertEquals("1\n", execute(new Code(writeBarrierCode(dict), 1, 3), dict, vm));
+    assertTrue(vm.heap().minorCollectionCount() > 0);
+  }
+
+  @Tag("Q9") @Test
+  public void gcMappedHeap(@TempDir Path directory) throws IOException {
+    var dict = new Dictionary();
+    var file = directory.resolve("heap");
+    var config = VMConfig.DEFAULT.withHeapSize(30, 1024).withHeapMemory(HeapMemory.mapped(file));
+    var vm = new VM(config);
+    execute(new Code(linkedListCode(dict), 1, 2), dict, vm);
+    assertEquals(300, vm.heap().peakUsed());
+    assertTrue(vm.heap().growCount() > 0);
+    assertEquals(vm.heap().capacity() * Integer.BYTES, Files.size(file));
+  }
+
+  @Tag("Q9") @Test
+  public void gcMappedHeapIsNotShared(@TempDir Path directory) {
+    var config = VMConfig.DEFAULT.withHeapMemory(HeapMemory.mapped(directory.resolve("heap")));
+    new VM(config);
+    assertThrows(IllegalStateException.class, () -> new VM(config));
+  }
 }
@@ -13,6 +13,7 @@ import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
 import static fr.umlv.smalljs.stackinterp.Instructions.CONST;
 import static fr.umlv.smalljs.stackinterp.Instructions.DUP;
 import static fr.umlv.smalljs.stackinterp.Instructions.FUNCALL;
+import static fr.umlv.smalljs.stackinterp.Instructions.FUNCALL_CACHED;
 import static fr.umlv.smalljs.stackinterp.Instructions.GET;
 import static fr.umlv.smalljs.stackinterp.Instructions.GOTO;
 import static fr.umlv.smalljs.stackinterp.Instructions.JUMP_IF_FALSE;
@@ -168,6 +169,29 @@ public class StackInterpreterInstrTests {
     assertEquals("1\n", execute(new Code(instrs, 1, 1), dict));
   }
 
+  @Test
+  public void printNegativeSmallInts() {
+    // print(-3 - 2); if (-1) { print(-1); }
+    var dict = new Dictionary();
+    int[] instrs = {
+      /* 0:*/ LOOKUP, encodeDictObject("-", dict),
+      /* 2:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /* 4:*/ CONST, encodeSmallInt(-3),
+      /* 6:*/ CONST, encodeSmallInt(2),
+      /* 8:*/ FUNCALL, 2,
+      /*10:*/ PRINT,
+      /*11:*/ POP,
+      /*12:*/ CONST, encodeSmallInt(-1),
+      /*14:*/ JUMP_IF_FALSE, 20,
+      /*16:*/ CONST, encodeSmallInt(-1),
+      /*18:*/ PRINT,
+      /*19:*/ RET,
+      /*20:*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*22:*/ RET
+    };
+    assertEquals("-5\n-1\n", execute(new Code(instrs, 1, 1), dict));
+  }
+
   @Tag("Q6")
   @Test
   public void printOperationMul() {
@@ -1262,4 +1286,46 @@ public class StackInterpreterInstrTests {
     assertEquals("hello 42\nhello 42\n",
       execute(new Code(instrs, 1, 2), dict));
   }
+
+  @Test
+  public void funcallCallSite() {
+    // var i = 0;
+    // while (i < 3) {
+    //   print(i);
+    //   i = i + 1;
+    // }
+    var dict = new Dictionary();
+    int[] main = {
+      /* 0*/ CONST, encodeSmallInt(0),
+      /* 2*/ STORE, 1,
+      /* 4*/ LOOKUP, encodeDictObject("<", dict),
+      /* 6*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /* 8*/ LOAD, 1,
+      /*10*/ CONST, encodeSmallInt(3),
+      /*12*/ FUNCALL, 2,
+      /*14*/ JUMP_IF_FALSE, 39,
+      /*16*/ LOOKUP, encodeDictObject("print", dict),
+      /*18*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*20*/ LOAD, 1,
+      /*22*/ FUNCALL, 1,
+      /*24*/ POP,
+      /*25*/ LOOKUP, encodeDictObject("+", dict),
+      /*27*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*29*/ LOAD, 1,
+      /*31*/ CONST, encodeSmallInt(1),
+      /*33*/ FUNCALL, 2,
+      /*35*/ STORE, 1,
+      /*37*/ GOTO, 4,
+      /*39*/ CONST, encodeDictObject(UNDEFINED, dict),
+      /*41*/ RET
+    };
+    var code = new Code(main, 1, 2);
+    assertEquals("0\n1\n2\n", execute(code, dict));
+    assertEquals(FUNCALL_CACHED, main[12]);
+    assertEquals(FUNCALL_CACHED, main[22]);
+    assertEquals(FUNCALL_CACHED, main[33]);
+    assertEquals(3, code.inlineCaches().callSiteCount());
+    assertEquals(3, code.inlineCaches().callMissCount());
+    assertEquals(7, code.inlineCaches().callHitCount());
+  }
 }
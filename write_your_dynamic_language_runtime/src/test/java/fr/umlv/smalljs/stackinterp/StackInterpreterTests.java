@@ -1,6 +1,7 @@
 package fr.umlv.smalljs.stackinterp;
 
 import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
@@ -8,18 +9,31 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 
 import static fr.umlv.smalljs.ast.ASTBuilder.createScript;
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SuppressWarnings("static-method")
 public class StackInterpreterTests {
   private static String execute(String code) {
+    return execute(code, VMConfig.DEFAULT);
+  }
+
+  private static String execute(String code, VMConfig config) {
+    return execute(code, new VM(config));
+  }
+
+  private static String execute(String code, VM vm) {
     var script = createScript(new StringReader(code));
     var outStream = new ByteArrayOutputStream(8192);
-    StackInterpreter.interpret(script, new PrintStream(outStream));
+    StackInterpreter.interpret(script, new PrintStream(outStream), vm);
     return outStream.toString(StandardCharsets.UTF_8)
       .replace("\r\n", "\n");
   }
@@ -342,6 +356,32 @@ public class StackInterpreterTests {
       """));
   }
 
+  @Tag("Q12")
+  @Test
+  public void callRecursiveFunctionWithAGrowableStack() {
+    assertEquals("2\n", execute("""
+      function f(n) {
+        if (n < 1) {
+          return 2;
+        } else {
+          return f(n - 1);
+        }
+      }
+      print(f(50));
+      """, VMConfig.DEFAULT.withStackSize(32, 4096)));
+  }
+
+  @Tag("Q12")
+  @Test
+  public void callRecursiveFunctionStackOverflow() {
+    assertThrows(Failure.class, () -> execute("""
+      function f(n) {
+        return 1 + f(n + 1);
+      }
+      f(0);
+      """, VMConfig.DEFAULT.withStackSize(32, 1024)));
+  }
+
   @Tag("Q13")
   @Test
   public void createAnObject() {
@@ -442,6 +482,379 @@ public class StackInterpreterTests {
         """));
   }
 
+  @Test
+  public void objectGetAFieldPolymorphic() {
+    assertEquals(
+      "1\n2\n3\n1\nundefined\n",
+      execute("""
+        function f(o) { return o.x; }
+        var a = { x: 1 };
+        var b = { y: 0, x: 2 };
+        var c = { z: 0, y: 0, x: 3 };
+        var d = { w: 0 };
+        print(f(a));
+        print(f(b));
+        print(f(c));
+        print(f(a));
+        print(f(d));
+        """));
+  }
+
+  @Test
+  public void objectGetAndSetAFieldMegamorphic() {
+    assertEquals(
+      "10\n20\n30\n40\n50\n60\n",
+      execute("""
+        function set(o, v) { o.x = v; }
+        function get(o) { return o.x; }
+        var a = { x: 1 };
+        var b = { a: 0, x: 1 };
+        var c = { a: 0, b: 0, x: 1 };
+        var d = { a: 0, b: 0, c: 0, x: 1 };
+        var e = { a: 0, b: 0, c: 0, d: 0, x: 1 };
+        var f = { a: 0, b: 0, c: 0, d: 0, e: 0, x: 1 };
+        set(a, 10);
+        set(b, 20);
+        set(c, 30);
+        set(d, 40);
+        set(e, 50);
+        set(f, 60);
+        print(get(a));
+        print(get(b));
+        print(get(c));
+        print(get(d));
+        print(get(e));
+        print(get(f));
+        """));
+  }
+
+  @Test
+  public void objectSetAFieldPolymorphicInvalidField() {
+    assertThrows(Failure.class, () -> execute("""
+        function set(o) { o.x = 3; }
+        set({ x: 1 });
+        set({ y: 2 });
+        """));
+  }
+
+  @Test
+  public void lookupAGlobalFunctionAfterItsRedefinition() {
+    assertEquals(
+      "foo\nbar\nbaz\n",
+      execute("""
+        function g() { return 'foo'; }
+        function h() { return g(); }
+        print(h());
+        function g() { return 'bar'; }
+        print(h());
+        function g() { return 'baz'; }
+        print(h());
+        """));
+  }
+
+  @Test
+  public void superinstructionsReduceTheDispatchCount() {
+    var code = """
+        function fib(n) {
+          if (n < 2) {
+            return 1;
+          } else {
+            return fib(n - 1) + fib(n - 2);
+          }
+        }
+        var point = {
+          x: 3,
+          y: 4,
+          sum: function() {
+            var x = this.x;
+            return x + this.y;
+          }
+        };
+        print(fib(7));
+        print(point.sum());
+        """;
+    var vm = new VM(VMConfig.DEFAULT.withSuperinstructions(false));
+    var superVM = new VM(VMConfig.DEFAULT);
+    assertEquals("21\n7\n", execute(code, vm));
+    assertEquals("21\n7\n", execute(code, superVM));
+    assertTrue(superVM.dispatchCount() < vm.dispatchCount());
+  }
+
+  @Test
+  public void intrinsicOperationsFallbackToTheGlobalFunctions() {
+    assertEquals(
+      "1\n-3\n1\n0\n1\n",
+      execute("""
+        print(7 % 3);
+        print(2 - 5);
+        print('foo' == 'foo');
+        print('foo' != 'foo');
+        print(3 != 4);
+        """));
+  }
+
+  @Test
+  public void intrinsicOperationsHonorARedefinitionOfTheOperator() {
+    var script = createScript(new StringReader("print(1 + 2);\nprint(3 < 4);\n"));
+    var outStream = new ByteArrayOutputStream(8192);
+    var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream));
+    var dict = new Dictionary();
+    var function = InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv);
+    globalEnv.register("+", JSObject.newFunction("+", (self, receiver, args) -> (Integer) args[0] * 10 + (Integer) args[1]));
+    StackInterpreter.execute(function, dict, globalEnv);
+    assertEquals("12\n1\n", outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"));
+  }
+
+  @Test
+  public void globalsAreResolvedInTheGlobalEnvironmentOfTheExecution() {
+    var script = createScript(new StringReader("print(answer() + 1);\n"));
+    for (var engine : VMConfig.Engine.values()) {
+      var outStream1 = new ByteArrayOutputStream(8192);
+      var outStream2 = new ByteArrayOutputStream(8192);
+      var globalEnv1 = StackInterpreter.createGlobalEnv(new PrintStream(outStream1));
+      var globalEnv2 = StackInterpreter.createGlobalEnv(new PrintStream(outStream2));
+      globalEnv1.register("answer", JSObject.newFunction("answer", (self, receiver, args) -> 41));
+      globalEnv2.register("answer", JSObject.newFunction("answer", (self, receiver, args) -> 1));
+      var dict = new Dictionary();
+      var config = VMConfig.DEFAULT.withEngine(engine);
+      var function = engine == VMConfig.Engine.REGISTER
+          ? RegisterRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv1, config)
+          : InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv1, config);
+      var vm = new VM(config);
+      StackInterpreter.execute(function, dict, globalEnv1, vm);
+      StackInterpreter.execute(function, dict, globalEnv2, vm);
+      assertEquals("42\n", outStream1.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"), engine.name());
+      assertEquals("2\n", outStream2.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"), engine.name());
+    }
+  }
+
+  @Test
+  public void intrinsicOperationsRequireTheBuiltinOperator() {
+    var script = createScript(new StringReader("print(1 + 2);\n"));
+    for (var engine : VMConfig.Engine.values()) {
+      var globalEnv = JSObject.newEnv(null);
+      globalEnv.register("print", JSObject.newFunction("print", (self, receiver, args) -> UNDEFINED));
+      var dict = new Dictionary();
+      var config = VMConfig.DEFAULT.withEngine(engine);
+      var function = engine == VMConfig.Engine.REGISTER
+          ? RegisterRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv, config)
+          : InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv, config);
+      assertThrows(Failure.class, () -> StackInterpreter.execute(function, dict, globalEnv, new VM(config)), engine.name());
+    }
+  }
+
+  @Test
+  public void callingTheObjectAtAddressZeroFails() {
+    // without a nursery, the first object is allocated at the address 0
+    for (var engine : List.of(VMConfig.Engine.SWITCH, VMConfig.Engine.CLOSURE)) {
+      var config = VMConfig.DEFAULT.withNurseryPercent(0).withEngine(engine);
+      assertThrows(Failure.class, () -> execute("var o = { x: 1 };\no(1);\n", config), engine.name());
+      assertThrows(Failure.class, () -> execute("function f(o) { return o(1); }\nf({ x: 1 });\n", config), engine.name());
+    }
+  }
+
+  @Test
+  public void tailCallsAreCached() {
+    var script = createScript(new StringReader("""
+        function even(n) {
+          if (n == 0) {
+            return 'even';
+          } else {
+            return odd(n - 1);
+          }
+        }
+        function odd(n) {
+          if (n == 0) {
+            return 'odd';
+          } else {
+            return even(n - 1);
+          }
+        }
+        print(even(10));
+        """));
+    var outStream = new ByteArrayOutputStream(8192);
+    var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream));
+    var dict = new Dictionary();
+    var function = InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv);
+    StackInterpreter.execute(function, dict, globalEnv, new VM(VMConfig.DEFAULT));
+    assertEquals("even\n", outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"));
+    var code = (Code) ((JSObject) globalEnv.lookup("even")).lookup("__code__");
+    var instrs = code.instrs();
+    var pc = 0;
+    while (instrs[pc] != Instructions.TAILCALL_CACHED) {
+      pc += Instructions.length(instrs[pc]);
+    }
+    var site = code.inlineCaches().callSite(instrs[pc + 1]);
+    assertEquals(1, site.missCount);
+    assertEquals(4, site.hitCount);
+  }
+
+  @Test
+  public void closureEngine() {
+    var code = """
+        function fib(n) {
+          if (n < 2) {
+            return 1;
+          } else {
+            return fib(n - 1) + fib(n - 2);
+          }
+        }
+        var point = {
+          x: 3,
+          y: 4,
+          sum: function() {
+            var x = this.x;
+            return x + this.y;
+          }
+        };
+        print(fib(7));
+        print(point.sum());
+        print(point.z);
+        point.x = 'foo';
+        print(point.x);
+        """;
+    var config = VMConfig.DEFAULT.withEngine(VMConfig.Engine.CLOSURE);
+    assertEquals("21\n7\nundefined\nfoo\n", execute(code, config));
+    assertEquals("21\n7\nundefined\nfoo\n", execute(code, config.withSuperinstructions(false).withIntrinsics(false)));
+  }
+
+  @Test
+  public void closureEngineAndSwitchEngineOnTheSameCode() {
+    var script = createScript(new StringReader("""
+        function f(o) { return o.x; }
+        print(f({ x: 1 }) + f({ y: 0, x: 2 }));
+        """));
+    var outStream = new ByteArrayOutputStream(8192);
+    var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream));
+    var dict = new Dictionary();
+    var function = InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv);
+    StackInterpreter.execute(function, dict, globalEnv, new VM(VMConfig.DEFAULT));
+    StackInterpreter.execute(function, dict, globalEnv, new VM(VMConfig.DEFAULT.withEngine(VMConfig.Engine.CLOSURE)));
+    assertEquals("3\n3\n", outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"));
+  }
+
+  @Test
+  public void registerEngine() {
+    var code = """
+        function fib(n) {
+          if (n < 2) {
+            return 1;
+          } else {
+            return fib(n - 1) + fib(n - 2);
+          }
+        }
+        var point = {
+          x: 3,
+          y: 4,
+          sum: function(z) {
+            var x = this.x;
+            return x + this.y + z;
+          }
+        };
+        print(fib(7));
+        print(point.sum(1), point.z);
+        point.x = 'foo';
+        print(point.x, 2 - 5, 'a' == 'a');
+        var a = 1;
+        a = a + fib(3);
+        print(a);
+        """;
+    var config = VMConfig.DEFAULT.withEngine(VMConfig.Engine.REGISTER);
+    assertEquals("21\n8 undefined\nfoo -3 1\n4\n", execute(code, config));
+    assertEquals("21\n8 undefined\nfoo -3 1\n4\n", execute(code, config.withIntrinsics(false)));
+  }
+
+  @Test
+  public void registerEngineDispatchesLessInstructions() {
+    var code = """
+        function fib(n) {
+          if (n < 2) {
+            return 1;
+          } else {
+            return fib(n - 1) + fib(n - 2);
+          }
+        }
+        print(fib(10));
+        """;
+    var vm = new VM(VMConfig.DEFAULT);
+    var registerVM = new VM(VMConfig.DEFAULT.withEngine(VMConfig.Engine.REGISTER));
+    assertEquals("89\n", execute(code, vm));
+    assertEquals("89\n", execute(code, registerVM));
+    assertTrue(registerVM.dispatchCount() < vm.dispatchCount());
+  }
+
+  @Test
+  public void tailCallsRunInConstantStackSpace() {
+    var code = """
+        function even(n) {
+          if (n == 0) {
+            return 'even';
+          } else {
+            return odd(n - 1);
+          }
+        }
+        function odd(n) {
+          if (n == 0) {
+            return 'odd';
+          } else {
+            return even(n - 1);
+          }
+        }
+        var counter = {
+          count: function(n, acc) {
+            if (n == 0) {
+              return print(acc);
+            } else {
+              return this.count(n - 1, acc + 2);
+            }
+          }
+        };
+        print(even(10001));
+        counter.count(50000, 0);
+        """;
+    for (var engine : List.of(VMConfig.Engine.SWITCH, VMConfig.Engine.CLOSURE)) {
+      var vm = new VM(VMConfig.DEFAULT.withStackSize(64, 128).withEngine(engine));
+      assertEquals("odd\n100000\n", execute(code, vm));
+      assertTrue(vm.stackHighWaterMark() <= 128);
+    }
+  }
+
+  @Test
+  public void negativeNumbersAreSmallInts() {
+    var script = createScript(new StringReader("""
+        function loop(n, sum) {
+          if (n == 0) {
+            return sum;
+          } else {
+            return loop(n - 1, sum - n * 3);
+          }
+        }
+        print(loop(1000, 0));
+        """));
+    var outStream = new ByteArrayOutputStream(8192);
+    var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream));
+    var dict = new Dictionary();
+    var function = InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv);
+    var size = dict.size();
+    StackInterpreter.execute(function, dict, globalEnv);
+    assertEquals("-1501500\n", outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"));
+    // the globals resolved at runtime are added but not the 1000 intermediary sums
+    assertTrue(dict.size() < size + 10);
+  }
+
+  @Test
+  public void smallIntOverflowIsPromotedToABoxedInteger() {
+    var code = """
+        var max = 1073741823;
+        var min = 0 - 1073741824;
+        print(max + 1, min - 1, max * 2, min / (0 - 1), max + 1 - 1);
+        """;
+    var expected = "1073741824 -1073741825 2147483646 1073741824 1073741823\n";
+    assertEquals(expected, execute(code));
+    assertEquals(expected, execute(code, VMConfig.DEFAULT.withEngine(VMConfig.Engine.CLOSURE)));
+    assertEquals(expected, execute(code, VMConfig.DEFAULT.withEngine(VMConfig.Engine.REGISTER)));
+  }
+
   @Tag("Q17")
   @Test
   public void objectCallAMethod() {
@@ -458,4 +871,96 @@ public class StackInterpreterTests {
         object.foo(42);
         """));
   }
+
+  @Test
+  public void constantFoldingDispatchesLessInstructions() {
+    var code = """
+        function seconds(hours) {
+          return hours * 60 * 60;
+        }
+        print(2 * 60 * 60, seconds(2));
+        if (1) {
+          print('live');
+        } else {
+          print('dead');
+        }
+        if (0) {
+          var x = 1;
+        } else {
+          print(x, 3 < 4 + 1);
+        }
+        """;
+    for (var engine : List.of(VMConfig.Engine.SWITCH, VMConfig.Engine.CLOSURE)) {
+      var vm = new VM(VMConfig.DEFAULT.withEngine(engine).withConstantFolding(false));
+      var foldingVM = new VM(VMConfig.DEFAULT.withEngine(engine));
+      assertEquals("7200 7200\nlive\nundefined 1\n", execute(code, vm), engine.name());
+      assertEquals("7200 7200\nlive\nundefined 1\n", execute(code, foldingVM), engine.name());
+      assertTrue(foldingVM.dispatchCount() < vm.dispatchCount(), engine.name());
+    }
+  }
+
+  @Test
+  public void foldedConstantsHonorARedefinitionOfTheOperator() {
+    var script = createScript(new StringReader("print(2 * 3 + 1);\nif (2 < 1) { print('yes'); } else { print('no'); }\n"));
+    for (var engine : List.of(VMConfig.Engine.SWITCH, VMConfig.Engine.CLOSURE)) {
+      var outStream = new ByteArrayOutputStream(8192);
+      var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream));
+      var dict = new Dictionary();
+      var vm = new VM(VMConfig.DEFAULT.withEngine(engine));
+      var function = InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv);
+      StackInterpreter.execute(function, dict, globalEnv, vm);
+      globalEnv.register("*", JSObject.newFunction("*", (self, receiver, args) -> (Integer) args[0] * 10 + (Integer) args[1]));
+      globalEnv.register("<", JSObject.newFunction("<", (self, receiver, args) -> 1));
+      StackInterpreter.execute(function, dict, globalEnv, vm);
+      assertEquals("7\nno\n24\nyes\n", outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"), engine.name());
+    }
+  }
+
+  @Test
+  public void foldedConditionsJumpToTheLiveBranch() {
+    var code = """
+        if (1 == 1) {
+          print('live');
+        } else {
+          print('dead');
+        }
+        if (2 < 1) {
+          print('dead');
+        } else {
+          print('live');
+        }
+        """;
+    for (var engine : List.of(VMConfig.Engine.SWITCH, VMConfig.Engine.CLOSURE)) {
+      var vm = new VM(VMConfig.DEFAULT.withEngine(engine).withConstantFolding(false));
+      var foldingVM = new VM(VMConfig.DEFAULT.withEngine(engine));
+      assertEquals("live\nlive\n", execute(code, vm), engine.name());
+      assertEquals("live\nlive\n", execute(code, foldingVM), engine.name());
+      assertTrue(foldingVM.dispatchCount() < vm.dispatchCount(), engine.name());
+    }
+  }
+
+  @Test
+  public void redefinedOperatorsUnfoldTheFoldedSites() {
+    var script = createScript(new StringReader("print(2 * 3 + 1);\nif (2 < 1) { print('yes'); } else { print('no'); }\n"));
+    var outStream = new ByteArrayOutputStream(8192);
+    var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream));
+    var dict = new Dictionary();
+    var vm = new VM(VMConfig.DEFAULT);
+    var function = InstrRewriter.createFunction(Optional.of("main"), List.of(), script.body(), dict, globalEnv);
+    var code = (Code) function.lookup("__code__");
+    StackInterpreter.execute(function, dict, globalEnv, vm);
+    globalEnv.register("<", JSObject.newFunction("<", (self, receiver, args) -> 1));
+    StackInterpreter.execute(function, dict, globalEnv, vm);
+    StackInterpreter.execute(function, dict, globalEnv, vm);
+    assertEquals("7\nno\n7\nyes\n7\nyes\n", outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"));
+    // only the condition that uses the redefined operator is unfolded
+    var instrs = code.instrs();
+    var opcodes = new ArrayList<Integer>();
+    for (var pc = 0; pc < instrs.length; pc += Instructions.length(instrs[pc])) {
+      opcodes.add(instrs[pc]);
+    }
+    assertTrue(opcodes.contains(Instructions.FOLDED));
+    assertTrue(opcodes.contains(Instructions.UNFOLDED));
+    assertFalse(opcodes.contains(Instructions.JUMP_FOLDED));
+  }
 }